@@ -6,13 +6,14 @@
 
 package wyautl_old.lang;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.BitSet;
 import java.util.Comparator;
+import java.util.HashMap;
 
 import wyautl_old.lang.Automaton.State;
-import wyautl_old.util.BinaryMatrix;
 
 /**
  * <p>
@@ -202,6 +203,15 @@ public final class Automata {
 	 * <li>They are nodes of the same (non-sequential) kind where for each child
 	 * in one, there is an equivalent child in the other and vice-versa.</li>
 	 * </ul>
+	 * <p>
+	 * Equivalence classes are determined by partition refinement, in the style
+	 * of Hopcroft's algorithm for minimising a DFA. States are initially
+	 * partitioned by their kind and supplementary data. Then, whenever a block
+	 * is split, all but the largest of the resulting pieces receive a new block
+	 * identifier and only those blocks containing predecessors of states in
+	 * these pieces are reconsidered. This avoids the pairwise comparison of
+	 * states, which is quadratic in the size of the automaton.
+	 * </p>
 	 *
 	 * @param automaton
 	 *            --- automaton to minimise
@@ -209,27 +219,22 @@ public final class Automata {
 	 */
 	public final static Automaton minimise(Automaton automaton) {
 		// First, determine equivalence classes
-		BinaryMatrix equivs = new BinaryMatrix(automaton.size(),automaton.size(),true);
-		determineEquivalenceClasses(equivs,automaton);
-
-		// TODO: optimise the case when all equivalence classes have unit size.
+		int oldSize = automaton.size();
+		int[] blocks = determineEquivalenceClasses(automaton);
 
 		// Second, determine representative nodes for each equivalence class.
-		int oldSize = automaton.size();
+		// Representatives are allocated in order of first occurrence, meaning
+		// the root always remains at index zero.
 		int[] mapping = new int[oldSize];
+		HashMap<Integer,Integer> representatives = new HashMap<Integer,Integer>();
 		int newSize = 0;
 		for(int i=0;i!=oldSize;++i) {
-			int classRep = i;
-			for(int j=0;j<i;++j) {
-				if(equivs.get(i,j)) {
-					classRep = j;
-					break;
-				}
-			}
-			if(i == classRep) {
+			Integer classRep = representatives.get(blocks[i]);
+			if(classRep == null) {
+				representatives.put(blocks[i],newSize);
 				mapping[i] = newSize++;
 			} else {
-				mapping[i] = mapping[classRep];
+				mapping[i] = classRep;
 			}
 		}
 
@@ -247,116 +252,472 @@ public final class Automata {
 		return new Automaton(newStates);
 	}
 
-	private final static void determineEquivalenceClasses(BinaryMatrix equivs,
-			Automaton automaton) {
-		boolean changed = true;
+	/**
+	 * Partition the states of an automaton into equivalence classes, returning
+	 * the block identifier of each state. Two states are equivalent if they
+	 * have the same block identifier.
+	 *
+	 * @param automaton
+	 *            --- automaton being minimised.
+	 * @return
+	 */
+	private final static int[] determineEquivalenceClasses(Automaton automaton) {
 		int size = automaton.size();
+		int[] blocks = new int[size];
+		ArrayList<ArrayList<Integer>> members = new ArrayList<ArrayList<Integer>>();
+
+		// First, construct the initial partition. This is based only on
+		// information local to each state.
+		HashMap<Signature,Integer> initial = new HashMap<Signature,Integer>();
+		for (int i = 0; i != size; ++i) {
+			Signature signature = new Signature(automaton.states[i]);
+			Integer block = initial.get(signature);
+			if (block == null) {
+				block = members.size();
+				initial.put(signature, block);
+				members.add(new ArrayList<Integer>());
+			}
+			blocks[i] = block;
+			members.get(block).add(i);
+		}
+
+		// Second, compute the predecessors of each state.
+		ArrayList<Integer>[] predecessors = predecessors(automaton);
+
+		// Third, refine the partition until no block can be split.
+		ArrayDeque<Integer> worklist = new ArrayDeque<Integer>();
+		BitSet queued = new BitSet();
+		for (int i = 0; i != members.size(); ++i) {
+			worklist.add(i);
+			queued.set(i);
+		}
 
-		while (changed) {
-			changed = false;
-			for (int i = 0; i < size; ++i) {
-				for (int j = i + 1; j < size; ++j) {
-					if(equivs.get(i,j)) {
-						// no need to explore nodes which are already known to
-						// be not equivalent.
-						boolean b = equivalent(i, j, equivs, automaton);
-						equivs.set(i, j, b);
-						equivs.set(j, i, b);
-						changed |= !b;
+		while (!worklist.isEmpty()) {
+			int block = worklist.remove();
+			queued.clear(block);
+			ArrayList<Integer> states = members.get(block);
+			if (states.size() <= 1) {
+				// singleton blocks cannot be split
+				continue;
+			}
+			ArrayList<ArrayList<Integer>> pieces = split(states, blocks, automaton);
+			if (pieces.size() == 1) {
+				continue;
+			}
+			// The largest piece retains the existing block identifier, as
+			// predecessors of those states need not be reconsidered.
+			int largest = 0;
+			for (int i = 1; i != pieces.size(); ++i) {
+				if (pieces.get(i).size() > pieces.get(largest).size()) {
+					largest = i;
+				}
+			}
+			members.set(block, pieces.get(largest));
+			for (int i = 0; i != pieces.size(); ++i) {
+				if (i == largest) {
+					continue;
+				}
+				ArrayList<Integer> piece = pieces.get(i);
+				int nblock = members.size();
+				members.add(piece);
+				for (int s : piece) {
+					blocks[s] = nblock;
+				}
+			}
+			// Now, reconsider any block containing a predecessor of a state
+			// whose block identifier has changed.
+			for (int i = 0; i != pieces.size(); ++i) {
+				if (i == largest) {
+					continue;
+				}
+				for (int s : pieces.get(i)) {
+					for (int p : predecessors[s]) {
+						int pblock = blocks[p];
+						if (!queued.get(pblock)) {
+							queued.set(pblock);
+							worklist.add(pblock);
+						}
 					}
 				}
 			}
 		}
+
+		return blocks;
 	}
 
-	/*
-	 * Check whether two states are equivalent under the rules set out for
-	 * minimisation above.
+	/**
+	 * Split a given block into pieces, such that all states in a piece have
+	 * children in the same blocks. For deterministic states, this means
+	 * children in the same blocks at each position. For non-deterministic
+	 * states, this means the set of blocks occupied by their children is the
+	 * same.
+	 *
+	 * @param states
+	 *            --- the states making up the block being split
+	 * @param blocks
+	 *            --- the current block identifier for each state
+	 * @param automaton
+	 *            --- the automaton being minimised
+	 * @return
 	 */
-	private final static boolean equivalent(int i, int j, BinaryMatrix equivs, Automaton automaton) {
-		State s1 = automaton.states[i];
-		State s2 = automaton.states[j];
-
-		// first, check supplementary data
-		Object s1data = s1.data;
-		Object s2data = s2.data;
-		if(s1data == null) {
-			 if(s2data != null) {
-				 return false;
-			 }
-		} else {
-			// following catches case where s2data == null as well
-			if(!s1data.equals(s2data)) {
-				return false;
+	private final static ArrayList<ArrayList<Integer>> split(ArrayList<Integer> states, int[] blocks,
+			Automaton automaton) {
+		HashMap<Signature,ArrayList<Integer>> pieces = new HashMap<Signature,ArrayList<Integer>>();
+		ArrayList<ArrayList<Integer>> result = new ArrayList<ArrayList<Integer>>();
+		for (int s : states) {
+			Signature signature = new Signature(automaton.states[s], blocks);
+			ArrayList<Integer> piece = pieces.get(signature);
+			if (piece == null) {
+				piece = new ArrayList<Integer>();
+				pieces.put(signature, piece);
+				result.add(piece);
 			}
+			piece.add(s);
 		}
+		return result;
+	}
 
-		// second, check node kind and children, etc.
-		if(s1.kind == s2.kind && s1.deterministic == s2.deterministic) {
-			boolean deterministic = s1.deterministic;
+	/**
+	 * Compute the predecessors of each state in a given automaton. That is, the
+	 * list of states which have it as a child.
+	 *
+	 * @param automaton
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	private final static ArrayList<Integer>[] predecessors(Automaton automaton) {
+		int size = automaton.size();
+		ArrayList<Integer>[] predecessors = new ArrayList[size];
+		for (int i = 0; i != size; ++i) {
+			predecessors[i] = new ArrayList<Integer>();
+		}
+		for (int i = 0; i != size; ++i) {
+			for (int child : automaton.states[i].children) {
+				predecessors[child].add(i);
+			}
+		}
+		return predecessors;
+	}
+
+	/**
+	 * The signature of a state is used to partition states during minimisation.
+	 * Initially, this consists only of the kind and supplementary data of a
+	 * state. Subsequently, it consists of the blocks occupied by the state's
+	 * children.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	private final static class Signature {
+		private final int kind;
+		private final boolean deterministic;
+		private final Object data;
+		private final int[] children;
+
+		/**
+		 * Construct the initial signature of a state.
+		 */
+		public Signature(State state) {
+			this.kind = state.kind;
+			this.deterministic = state.deterministic;
+			this.data = state.data;
 			if(deterministic) {
-				int[] s1children = s1.children;
-				int[] s2children = s2.children;
+				// only the number of children matters at this stage
+				this.children = new int[state.children.length];
+			} else {
+				this.children = Automaton.NOCHILDREN;
+			}
+		}
 
-				if(s1children.length != s2children.length) {
-					return false;
+		/**
+		 * Construct the signature of a state with respect to a given partition.
+		 * Since all states in a block already share kind and supplementary
+		 * data, these are not included.
+		 */
+		public Signature(State state, int[] blocks) {
+			this.kind = 0;
+			this.deterministic = state.deterministic;
+			this.data = null;
+			int[] children = state.children;
+			if(deterministic) {
+				this.children = new int[children.length];
+				for(int i=0;i!=children.length;++i) {
+					this.children[i] = blocks[children[i]];
 				}
+			} else {
+				this.children = distinct(children, blocks);
+			}
+		}
 
-				int length = s1children.length;
+		@Override
+		public boolean equals(Object o) {
+			if(o instanceof Signature) {
+				Signature s = (Signature) o;
+				return kind == s.kind && deterministic == s.deterministic
+						&& (data == null ? s.data == null : data.equals(s.data))
+						&& Arrays.equals(children, s.children);
+			}
+			return false;
+		}
 
-				for(int k=0;k!=length;++k) {
-					int s1child = s1children[k];
-					int s2child = s2children[k];
-					if(!equivs.get(s1child,s2child)) {
-						return false;
-					}
+		@Override
+		public int hashCode() {
+			int r = Arrays.hashCode(children) + kind;
+			if(data != null) {
+				r = r + data.hashCode();
+			}
+			return r;
+		}
+	}
+
+	/**
+	 * <p>
+	 * Convert an automaton into a canonical form. That is, any two automata
+	 * which are equivalent under the rules given for minimisation will have
+	 * identical canonical forms. Thus, after canonicalisation, equivalence can
+	 * be determined using <code>equals()</code>, and <code>hashCode()</code>
+	 * returns the same value for all equivalent automata. Note that
+	 * <code>equals()</code> still compares each state in turn, though automata
+	 * with different hash codes can be distinguished immediately.
+	 * </p>
+	 * <p>
+	 * The algorithm first assigns every state a canonical <i>rank</i>, which is
+	 * independent of how states are numbered. This is done by partition
+	 * refinement where, on each round, states are sorted according to their
+	 * current rank and the ranks of their children. States are then numbered
+	 * according to a depth-first traversal from the root, where the children
+	 * of non-deterministic states are visited in order of rank.
+	 * </p>
+	 * <p>
+	 * <b>NOTE:</b> the automaton should be minimised beforehand. Otherwise,
+	 * distinct states which are equivalent will share the same rank and the
+	 * result will not be canonical. Likewise, states unreachable from the root
+	 * are eliminated.
+	 * </p>
+	 *
+	 * @param automaton
+	 *            --- automaton to canonicalise.
+	 * @param dataComparator
+	 *            --- comparator for the supplementary data of two states of the
+	 *            same kind.
+	 * @return --- canonical automaton.
+	 */
+	public final static Automaton canonicalise(Automaton automaton, Comparator<State> dataComparator) {
+		int size = automaton.size();
+		final State[] states = automaton.states;
+		// First, determine the initial ranks using local information only.
+		Integer[] order = new Integer[size];
+		for (int i = 0; i != size; ++i) {
+			order[i] = i;
+		}
+		final Comparator<State> local = new LocalComparator(dataComparator);
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer i, Integer j) {
+				return local.compare(states[i], states[j]);
+			}
+		});
+		int[] ranks = new int[size];
+		int numRanks = 0;
+		for (int i = 0; i != size; ++i) {
+			if (i != 0 && local.compare(states[order[i - 1]], states[order[i]]) != 0) {
+				numRanks++;
+			}
+			ranks[order[i]] = numRanks;
+		}
+		numRanks = size == 0 ? 0 : numRanks + 1;
+
+		// Second, refine ranks until a fixed point is reached. Since each round
+		// refines the previous partition, the number of ranks can only grow.
+		while (numRanks < size) {
+			final int[][] signatures = new int[size][];
+			for (int i = 0; i != size; ++i) {
+				signatures[i] = rankSignature(i, states[i], ranks);
+			}
+			Arrays.sort(order, new Comparator<Integer>() {
+				@Override
+				public int compare(Integer i, Integer j) {
+					return compareSignatures(signatures[i], signatures[j]);
 				}
+			});
+			int[] nranks = new int[size];
+			int nNumRanks = 0;
+			for (int i = 0; i != size; ++i) {
+				if (i != 0 && compareSignatures(signatures[order[i - 1]], signatures[order[i]]) != 0) {
+					nNumRanks++;
+				}
+				nranks[order[i]] = nNumRanks;
+			}
+			nNumRanks++;
+			ranks = nranks;
+			if (nNumRanks == numRanks) {
+				break;
+			}
+			numRanks = nNumRanks;
+		}
+
+		// Third, number states according to a depth-first traversal.
+		ArrayList<Integer> visited = new ArrayList<Integer>();
+		if (size > 0) {
+			canonicalTraversal(0, new BitSet(size), visited, ranks, states);
+		}
+		int[] remap = new int[size];
+		int i = 0;
+		for (int j : visited) {
+			remap[j] = i++;
+		}
+		State[] newStates = new State[visited.size()];
+		i = 0;
+		for (int j : visited) {
+			newStates[i++] = remap(states[j], remap);
+		}
+		return new Automaton(newStates, true);
+	}
 
-				return true;
+	/**
+	 * Traverse the automaton from a given state in a canonical order, adding
+	 * states to <code>visited</code> in the order they are visited. An
+	 * explicit stack is used, rather than recursion, since the depth of an
+	 * automaton is bounded only by its size.
+	 */
+	private final static void canonicalTraversal(int root, BitSet visited, ArrayList<Integer> extracted,
+			final int[] ranks, State[] states) {
+		// Each frame holds the position of the next child to visit, followed
+		// by the children of a state in the order they are visited.
+		ArrayDeque<int[]> stack = new ArrayDeque<int[]>();
+		stack.push(canonicalVisit(root, visited, extracted, ranks, states));
+		while (!stack.isEmpty()) {
+			int[] frame = stack.peek();
+			if (frame[0] == frame.length) {
+				stack.pop();
 			} else {
-				// non-deterministic (i.e. more expensive) case
-				int[] s1children = s1.children;
-				int[] s2children = s2.children;
-				int s1length = s1children.length;
-				int s2length = s2children.length;
-
-				// First, check every node in s1 has equivalent in s2
-				for(int k=0;k!=s1length;++k) {
-					int s1child = s1children[k];
-					boolean matched = false;
-					for(int l=0;l!=s2length;++l) {
-						int s2child = s2children[l];
-						if(equivs.get(s1child,s2child)) {
-							matched = true;
-							break;
-						}
-					}
-					if(!matched) {
-						return false;
-					}
+				int child = frame[frame[0]++];
+				if (!visited.get(child)) {
+					stack.push(canonicalVisit(child, visited, extracted, ranks, states));
 				}
+			}
+		}
+	}
 
-				// Second, check every node in s2 has equivalent in s1
-				for(int k=0;k!=s2length;++k) {
-					int s2child = s2children[k];
-					boolean matched = false;
-					for(int l=0;l!=s1length;++l) {
-						int s1child = s1children[l];
-						if(equivs.get(s1child,s2child)) {
-							matched = true;
-							break;
-						}
-					}
-					if(!matched) {
-						return false;
-					}
+	/**
+	 * Visit a given state during a canonical traversal, returning the frame
+	 * for its children.
+	 */
+	private final static int[] canonicalVisit(int index, BitSet visited, ArrayList<Integer> extracted,
+			final int[] ranks, State[] states) {
+		extracted.add(index);
+		visited.set(index);
+		State state = states[index];
+		int[] children = state.children;
+		int[] frame = new int[children.length + 1];
+		frame[0] = 1;
+		if (!state.deterministic) {
+			Integer[] sorted = new Integer[children.length];
+			for (int i = 0; i != children.length; ++i) {
+				sorted[i] = children[i];
+			}
+			Arrays.sort(sorted, new Comparator<Integer>() {
+				@Override
+				public int compare(Integer i, Integer j) {
+					return Integer.compare(ranks[i], ranks[j]);
 				}
+			});
+			for (int i = 0; i != sorted.length; ++i) {
+				frame[i + 1] = sorted[i];
+			}
+		} else {
+			System.arraycopy(children, 0, frame, 1, children.length);
+		}
+		return frame;
+	}
 
-				return true;
+	/**
+	 * Determine the signature of a state with respect to a given ranking. This
+	 * consists of the state's own rank, followed by the ranks of its children.
+	 * For non-deterministic states, the children's ranks are sorted and
+	 * duplicates removed.
+	 */
+	private final static int[] rankSignature(int index, State state, int[] ranks) {
+		int[] children = state.children;
+		int[] childRanks;
+		if (state.deterministic) {
+			childRanks = new int[children.length];
+			for (int i = 0; i != children.length; ++i) {
+				childRanks[i] = ranks[children[i]];
 			}
+		} else {
+			childRanks = distinct(children, ranks);
 		}
+		int[] signature = new int[childRanks.length + 1];
+		signature[0] = ranks[index];
+		System.arraycopy(childRanks, 0, signature, 1, childRanks.length);
+		return signature;
+	}
+
+	private final static int compareSignatures(int[] s1, int[] s2) {
+		int length = Math.min(s1.length, s2.length);
+		for (int i = 0; i != length; ++i) {
+			int c = Integer.compare(s1[i], s2[i]);
+			if (c != 0) {
+				return c;
+			}
+		}
+		return Integer.compare(s1.length, s2.length);
+	}
 
-		return false;
+	/**
+	 * Map each child to its identifier in a given mapping, returning the
+	 * sorted array of distinct identifiers.
+	 */
+	private final static int[] distinct(int[] children, int[] mapping) {
+		BitSet bits = new BitSet();
+		for (int child : children) {
+			bits.set(mapping[child]);
+		}
+		int[] result = new int[bits.cardinality()];
+		int j = 0;
+		for (int i = bits.nextSetBit(0); i >= 0; i = bits.nextSetBit(i + 1)) {
+			result[j++] = i;
+		}
+		return result;
+	}
+
+	/**
+	 * Compares states using only local information, namely their kind, whether
+	 * they are deterministic, their number of children (when deterministic)
+	 * and their supplementary data.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	private final static class LocalComparator implements Comparator<State> {
+		private final Comparator<State> dataComparator;
+
+		public LocalComparator(Comparator<State> dataComparator) {
+			this.dataComparator = dataComparator;
+		}
+
+		@Override
+		public int compare(State s1, State s2) {
+			int c = Integer.compare(s1.kind, s2.kind);
+			if (c != 0) {
+				return c;
+			}
+			c = Boolean.compare(s1.deterministic, s2.deterministic);
+			if (c != 0) {
+				return c;
+			}
+			if (s1.deterministic) {
+				c = Integer.compare(s1.children.length, s2.children.length);
+				if (c != 0) {
+					return c;
+				}
+			}
+			if (s1.data == null || s2.data == null) {
+				return Boolean.compare(s1.data != null, s2.data != null);
+			}
+			return dataComparator.compare(s1, s2);
+		}
 	}
 
 	/**
@@ -48,8 +48,35 @@ import java.util.*;
 public final class Automaton {
 	public State[] states;	// should not be public!
 
+	/**
+	 * Signals that this automaton was produced by
+	 * <code>Automata.canonicalise()</code>. Canonical automata must not be
+	 * modified, since they are typically shared and used as keys. Hence, their
+	 * hash code can be cached.
+	 */
+	private final boolean canonical;
+
+	/**
+	 * The cached hash code of a canonical automaton, or zero if this has not
+	 * yet been computed.
+	 */
+	private int hash;
+
 	public Automaton(State... states) {
 		this.states = states;
+		this.canonical = false;
+	}
+
+	/**
+	 * Construct an automaton from the states of a canonical automaton, which
+	 * will not be modified.
+	 *
+	 * @param states
+	 * @param canonical
+	 */
+	Automaton(State[] states, boolean canonical) {
+		this.states = states;
+		this.canonical = canonical;
 	}
 
 	public Automaton(List<State> states) {
@@ -58,6 +85,7 @@ public final class Automaton {
 		for(int i=0;i!=statesSize;++i) {
 			this.states[i] = states.get(i);
 		}
+		this.canonical = false;
 	}
 
 	public Automaton(Automaton automaton) {
@@ -65,6 +93,7 @@ public final class Automaton {
 		for(int i=0;i!=states.length;++i) {
 			states[i] = new State(automaton.states[i]);
 		}
+		this.canonical = false;
 	}
 
 	public int size() {
@@ -72,13 +101,20 @@ public final class Automaton {
 	}
 
 	/**
-	 * Determine the hashCode of a type.
+	 * Determine the hashCode of a type. This is computed only once for a
+	 * canonical automaton.
 	 */
 	@Override
 	public int hashCode() {
-		int r = 0;
-		for(State c : states) {
-			r = r + c.hashCode();
+		int r = hash;
+		if (r == 0 || !canonical) {
+			r = 0;
+			for(State c : states) {
+				r = r + c.hashCode();
+			}
+			if (canonical) {
+				hash = r;
+			}
 		}
 		return r;
 	}
@@ -94,9 +130,13 @@ public final class Automaton {
 	@Override
 	public boolean equals(Object o) {
 		if(o instanceof Automaton) {
-			State[] cs = ((Automaton) o).states;
+			Automaton a = (Automaton) o;
+			State[] cs = a.states;
 			if(cs.length != states.length) {
 				return false;
+			} else if (canonical && a.canonical && hashCode() != a.hashCode()) {
+				// Both hash codes are cached, and so this is cheap
+				return false;
 			}
 			for(int i=0;i!=cs.length;++i) {
 				if(!states[i].equals(cs[i])) {
@@ -1,10 +0,0 @@
-// Copyright (c) 2011, David J. Pearce (djp@ecs.vuw.ac.nz)
-// All rights reserved.
-//
-// This software may be modified and distributed under the terms
-// of the BSD license.  See the LICENSE file for details.
-
-/**
- * Provides various utility classes, primarily for generating and testing automata.
- */
-package wyautl_old.util;
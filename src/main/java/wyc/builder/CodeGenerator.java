@@ -7,6 +7,7 @@
 package wyc.builder;
 
 import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import wybs.lang.Attribute;
 import wybs.lang.NameID;
@@ -1314,10 +1315,10 @@ public final class CodeGenerator {
 		return arr;
 	}
 
-	private static int _idx = 0;
+	private static final AtomicInteger _idx = new AtomicInteger();
 
 	public static String freshLabel() {
-		return "blklab" + _idx++;
+		return "blklab" + _idx.getAndIncrement();
 	}
 
 	/**
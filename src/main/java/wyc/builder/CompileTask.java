@@ -11,6 +11,7 @@ import static wyil.util.ErrorMessages.errorMessage;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 import wyal.lang.WyalFile;
 import wyfs.lang.Content;
@@ -18,7 +19,12 @@ import wyfs.lang.Path;
 import wyfs.util.Trie;
 import wyil.checks.CoercionCheck;
 import wyil.lang.*;
+import wyil.io.WyilFileReader;
+import wyil.util.BuildCache;
+import wyil.util.BuildMetrics;
+import wyil.util.ModuleInterface;
 import wyil.util.MoveAnalysis;
+import wyil.util.TaskExecutor;
 import wyil.util.TypeSystem;
 import wybs.lang.*;
 import wybs.lang.SyntaxError.InternalFailure;
@@ -94,6 +100,18 @@ public final class CompileTask implements Build.Task {
 	 */
 	private Logger logger;
 
+	/**
+	 * Records the time spent in each phase of the build and, where
+	 * appropriate, on each file.
+	 */
+	private BuildMetrics metrics = BuildMetrics.NULL;
+
+	/**
+	 * The cache from which previously generated WyIL files are restored, or
+	 * null if no cache is used.
+	 */
+	private BuildCache cache;
+
 	/**
 	 * A map of the source files currently being compiled.
 	 */
@@ -101,18 +119,76 @@ public final class CompileTask implements Build.Task {
 
 	private boolean generateLoopInvariants = false;
 
+	/**
+	 * The number of threads used for those phases of the build which operate
+	 * on each file (or declaration) independently. When this is one, all
+	 * phases are run sequentially on the calling thread. The same executor
+	 * (and, hence, thread pool) is used for every phase.
+	 */
+	private TaskExecutor executor = new TaskExecutor(1);
+
+	/**
+	 * Signals that memory should be conserved, at the expense of time. In this
+	 * mode, source files are discarded once code has been generated for them,
+	 * and generated files are written to disk (rather than held in memory)
+	 * once they have passed through the pipeline. Any file needed again is
+	 * then read back in.
+	 */
+	private boolean lowMemory = false;
+
 	/**
 	 * The import cache caches specific import queries to their result sets.
 	 * This is extremely important to avoid recomputing these result sets every
 	 * time. For example, the statement <code>import whiley.lang.*</code>
-	 * corresponds to the triple <code>("whiley.lang",*,null)</code>.
+	 * corresponds to the triple <code>("whiley.lang",*,null)</code>. Since
+	 * names may be resolved from several threads at once, this is a concurrent
+	 * map. In the event of a race, both threads compute the same result set.
 	 */
-	private final HashMap<Trie, ArrayList<Path.ID>> importCache = new HashMap<>();
+	private final ConcurrentHashMap<Trie, ArrayList<Path.ID>> importCache = new ConcurrentHashMap<>();
+
+	/**
+	 * Indexes the names declared in each module, and the source files in each
+	 * package. This is retained between builds.
+	 */
+	private final SymbolIndex index = new SymbolIndex();
+
+	/**
+	 * Caches the result of resolving a given name in a given context. Since
+	 * source files are parsed afresh for each build, this is cleared at the
+	 * start of every build.
+	 */
+	private final ConcurrentHashMap<Pair<Context, String>, NameID> nameCache = new ConcurrentHashMap<>();
+
+	/**
+	 * Caches the result of resolving a given module name in a given context.
+	 * Likewise, this is cleared at the start of every build.
+	 */
+	private final ConcurrentHashMap<Pair<Context, String>, Path.ID> moduleCache = new ConcurrentHashMap<>();
+
+	/**
+	 * The tasks to which each WyIL file is passed as soon as it has been
+	 * generated, paired with the root in which each places its output. This
+	 * allows e.g. verification of one file to proceed whilst others are still
+	 * being compiled, rather than waiting for the whole build to finish.
+	 */
+	private final ArrayList<Pair<Build.Task, Path.Root>> downstream = new ArrayList<>();
 
 	public CompileTask(Build.Project project) {
+		this(project, new TypeSystem(project));
+	}
+
+	/**
+	 * Construct a compile task which uses a given type system. This allows
+	 * the type system (and its caches) to be shared with other tasks operating
+	 * on the same project.
+	 *
+	 * @param project
+	 * @param typeSystem
+	 */
+	public CompileTask(Build.Project project, TypeSystem typeSystem) {
 		this.logger = Logger.NULL;
 		this.project = project;
-		this.typeSystem = new TypeSystem(project);
+		this.typeSystem = typeSystem;
 	}
 
 	public String id() {
@@ -137,9 +213,33 @@ public final class CompileTask implements Build.Task {
 		this.logger = logger;
 	}
 
+	public BuildMetrics getMetrics() {
+		return metrics;
+	}
+
+	public void setMetrics(BuildMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	public BuildCache getCache() {
+		return cache;
+	}
+
+	/**
+	 * Set the cache in which generated WyIL files are stored, and from which
+	 * they are restored when their source file (and those of its dependencies)
+	 * are unchanged.
+	 *
+	 * @param cache
+	 *            --- The cache, or null if no cache should be used.
+	 */
+	public void setCache(BuildCache cache) {
+		this.cache = cache;
+	}
+
 	@SuppressWarnings("unchecked")
 	@Override
-	public Set<Path.Entry<?>> build(Collection<Pair<Path.Entry<?>, Path.Root>> delta, Build.Graph graph)
+	public Set<Path.Entry<?>> build(Collection<Pair<Path.Entry<?>, Path.Root>> delta, final Build.Graph graph)
 			throws IOException {
 		Runtime runtime = Runtime.getRuntime();
 		long startTime = System.currentTimeMillis();
@@ -147,21 +247,51 @@ public final class CompileTask implements Build.Task {
 		long tmpTime = startTime;
 		long tmpMemory = startMemory;
 
+		// ========================================================================
+		// Restore cached files
+		// ========================================================================
+
+		final HashSet<Path.Entry<?>> generatedFiles = new HashSet<>();
+		final HashMap<Path.ID, BuildCache.Key> keys = new HashMap<>();
+		if (cache != null) {
+			BuildMetrics.Timer timer = metrics.start("restore", null);
+			int size = delta.size();
+			delta = restore(delta, graph, keys, generatedFiles);
+			timer.stop(size - delta.size());
+		}
+
 		// ========================================================================
 		// Parse and register source files
 		// ========================================================================
 
+		BuildMetrics.Timer timer = metrics.start("parse", null);
 		srcFiles.clear();
-		int count = 0;
+		importCache.clear();
+		nameCache.clear();
+		moduleCache.clear();
+		ArrayList<Callable<WhileyFile>> parsers = new ArrayList<>();
 		for (Pair<Path.Entry<?>, Path.Root> p : delta) {
 			Path.Entry<?> src = p.first();
 			if (src.contentType() == WhileyFile.ContentType) {
-				Path.Entry<WhileyFile> sf = (Path.Entry<WhileyFile>) src;
-				sf.read(); // force file to be parsed
-				count++;
+				final Path.Entry<WhileyFile> sf = (Path.Entry<WhileyFile>) src;
 				srcFiles.put(sf.id(), sf);
+				parsers.add(new Callable<WhileyFile>() {
+					@Override
+					public WhileyFile call() throws Exception {
+						BuildMetrics.Timer timer = metrics.start("parse", sf.id().toString());
+						WhileyFile wf = sf.read(); // force file to be parsed
+						timer.stop(1);
+						return wf;
+					}
+				});
 			}
 		}
+		index.update(srcFiles.keySet());
+		// Parse all source files. This may produce errors at this stage, which
+		// means compilation cannot proceed.
+		List<WhileyFile> files = executor.execute(parsers);
+		int count = files.size();
+		timer.stop(count);
 
 		logger.logTimedMessage("Parsed " + count + " source file(s).", System.currentTimeMillis() - tmpTime,
 				tmpMemory - runtime.freeMemory());
@@ -173,31 +303,43 @@ public final class CompileTask implements Build.Task {
 		runtime = Runtime.getRuntime();
 		tmpTime = System.currentTimeMillis();
 		tmpMemory = runtime.freeMemory();
+		timer = metrics.start("type", null);
 
-		ArrayList<WhileyFile> files = new ArrayList<>();
+		ArrayList<Callable<WyilFile>> skeletons = new ArrayList<>();
 		for (Pair<Path.Entry<?>, Path.Root> p : delta) {
 			Path.Entry<?> entry = p.first();
 			if (entry.contentType() == WhileyFile.ContentType) {
 				Path.Entry<WhileyFile> source = (Path.Entry<WhileyFile>) entry;
-				// Parse Whiley source file. This may produce errors at this
-				// stage, which means compilation of this file cannot proceed
-				WhileyFile wf = source.read();
-				files.add(wf);
-				// Write WyIL skeleton. This is a stripped down version of the
-				// source file which is easily translated into a temporary
-				// WyilFile. This is needed for resolution.
+				final WhileyFile wf = source.read();
+				// Create WyIL target. This modifies the destination root and,
+				// hence, is done sequentially.
 				Path.Root dst = p.second();
-				Path.Entry<WyilFile> target = dst.create(entry.id(), WyilFile.ContentType);
-				target.write(createWyilSkeleton(wf,target));
+				final Path.Entry<WyilFile> target = dst.create(entry.id(), WyilFile.ContentType);
 				// Register the derivation in the build graph. This is important
 				// to understand what a particular intermediate file was
 				// derived from.
 				graph.registerDerivation(source, target);
+				skeletons.add(new Callable<WyilFile>() {
+					@Override
+					public WyilFile call() throws Exception {
+						// Write WyIL skeleton. This is a stripped down version
+						// of the source file which is easily translated into a
+						// temporary WyilFile. This is needed for resolution.
+						WyilFile skeleton = createWyilSkeleton(wf, target);
+						target.write(skeleton);
+						typeSystem.modules().invalidate(target.id());
+						return skeleton;
+					}
+				});
 			}
 		}
+		// Skeletons only resolve names against the (already parsed) source
+		// files and, hence, can be created independently.
+		executor.execute(skeletons);
 
 		FlowTypeChecker flowChecker = new FlowTypeChecker(this);
 		flowChecker.propagate(files);
+		timer.stop(count);
 
 		logger.logTimedMessage("Typed " + count + " source file(s).", System.currentTimeMillis() - tmpTime,
 				tmpMemory - runtime.freeMemory());
@@ -209,41 +351,96 @@ public final class CompileTask implements Build.Task {
 		runtime = Runtime.getRuntime();
 		tmpTime = System.currentTimeMillis();
 		tmpMemory = runtime.freeMemory();
+		timer = metrics.start("generate", null);
 
-		CodeGenerator generator = new CodeGenerator(this);
-		HashSet<Path.Entry<?>> generatedFiles = new HashSet<>();
+		// Once types are resolved, each file can be checked and translated
+		// independently of the others.
+		final CodeGenerator generator = new CodeGenerator(this);
+		ArrayList<Callable<WyilFile>> generators = new ArrayList<>();
 		for (Pair<Path.Entry<?>, Path.Root> p : delta) {
 			Path.Entry<?> src = p.first();
 			Path.Root dst = p.second();
 			if (src.contentType() == WhileyFile.ContentType) {
-				Path.Entry<WhileyFile> source = (Path.Entry<WhileyFile>) src;
-				Path.Entry<WyilFile> target = dst.get(src.id(), WyilFile.ContentType);
-				generatedFiles.add(target);
-				WhileyFile wf = source.read();
-				new DefiniteAssignmentAnalysis(wf).check();
-				new ModuleCheck(wf).check();
-				if (generateLoopInvariants) {
-					new LoopInvariantGenerator(wf).generate();
-				}
-				WyilFile wyil = generator.generate(wf, target);
-				new MoveAnalysis(this).apply(wyil);
-				target.write(wyil);
+				final Path.Entry<WhileyFile> source = (Path.Entry<WhileyFile>) src;
+				final Path.Entry<WyilFile> target = dst.get(src.id(), WyilFile.ContentType);
+				generators.add(new Callable<WyilFile>() {
+					@Override
+					public WyilFile call() throws Exception {
+						BuildMetrics.Timer timer = metrics.start("generate", source.id().toString());
+						WhileyFile wf = source.read();
+						new DefiniteAssignmentAnalysis(wf).check();
+						new ModuleCheck(wf).check();
+						if (generateLoopInvariants) {
+							new LoopInvariantGenerator(wf).generate();
+						}
+						WyilFile wyil = generator.generate(wf, target);
+						new MoveAnalysis(CompileTask.this).apply(wyil);
+						timer.stop(1);
+						return wyil;
+					}
+				});
 			}
 		}
-
-		logger.logTimedMessage("Generated code for " + count + " source file(s).", System.currentTimeMillis() - tmpTime,
-				tmpMemory - runtime.freeMemory());
+		List<WyilFile> generated = executor.execute(generators);
+		// Record the interfaces each generated file was compiled against.
+		// This must wait until all files are generated, since files in the
+		// delta may depend upon each other.
+		recordDependencies(generated);
+		timer.stop(count);
+		if (lowMemory) {
+			// Source files are not needed beyond this point
+			files.clear();
+			releaseSourceFiles();
+		}
+		timer = metrics.start("pipeline", null);
 
 		// ========================================================================
 		// Pipeline Stages
 		// ========================================================================
 
-		for (Pair<Path.Entry<?>, Path.Root> p : delta) {
-			Path.Entry<?> src = p.first();
-			Path.Root dst = p.second();
-			Path.Entry<WyilFile> wf = dst.get(src.id(), WyilFile.ContentType);
-			process(wf.read(), new CoercionCheck(this));
+		// From this point, each file flows through the remaining stages
+		// without waiting for the others, except that no file is passed to
+		// the downstream tasks until every file has been written. Otherwise,
+		// e.g. verification of one file could look up a function in another
+		// file of the delta and find only its skeleton.
+		ArrayList<Callable<Path.Entry<WyilFile>>> pipelines = new ArrayList<>();
+		for (final WyilFile wyil : generated) {
+			pipelines.add(new Callable<Path.Entry<WyilFile>>() {
+				@Override
+				public Path.Entry<WyilFile> call() throws Exception {
+					Path.Entry<WyilFile> target = (Path.Entry<WyilFile>) wyil.getEntry();
+					BuildMetrics.Timer timer = metrics.start("pipeline", target.id().toString());
+					target.write(wyil);
+					typeSystem.modules().invalidate(target.id());
+					process(wyil, new CoercionCheck(typeSystem));
+					store(keys.get(target.id()), wyil);
+					timer.stop(1);
+					return target;
+				}
+			});
+		}
+		final List<Path.Entry<WyilFile>> written = executor.execute(pipelines);
+		ArrayList<Callable<Path.Entry<WyilFile>>> streams = new ArrayList<>();
+		for (final Path.Entry<WyilFile> target : written) {
+			streams.add(new Callable<Path.Entry<WyilFile>>() {
+				@Override
+				public Path.Entry<WyilFile> call() throws Exception {
+					stream(target, graph);
+					if (lowMemory) {
+						// Write the file to disk, so that its entry can
+						// discard it. It is decoded again if needed.
+						target.flush();
+						target.refresh();
+					}
+					return target;
+				}
+			});
 		}
+		generatedFiles.addAll(executor.execute(streams));
+		timer.stop(count);
+
+		logger.logTimedMessage("Generated code for " + count + " source file(s).", System.currentTimeMillis() - tmpTime,
+				tmpMemory - runtime.freeMemory());
 
 		// ========================================================================
 		// Done
@@ -252,6 +449,20 @@ public final class CompileTask implements Build.Task {
 		long endTime = System.currentTimeMillis();
 		logger.logTimedMessage("Whiley => Wyil: compiled " + delta.size() + " file(s)", endTime - startTime,
 				startMemory - runtime.freeMemory());
+		logger.logTimedMessage("Module cache: " + typeSystem.modules(), 0, 0);
+
+		// Resolution results refer to the source files and, hence, would
+		// otherwise keep them alive until the next build.
+		nameCache.clear();
+		moduleCache.clear();
+		index.releaseSources();
+		if (lowMemory) {
+			// Symbol tables refer to the compiled modules, which could
+			// otherwise be reclaimed.
+			index.clear();
+			releaseSourceFiles();
+			srcFiles.clear();
+		}
 
 		return generatedFiles;
 	}
@@ -276,19 +487,9 @@ public final class CompileTask implements Build.Task {
 	 * @return
 	 */
 	public boolean isName(NameID nid) throws IOException {
-		Path.ID mid = nid.module();
-		Path.Entry<WhileyFile> wf = srcFiles.get(mid);
-		if (wf != null) {
-			// FIXME: check for the right kind of name
-			return wf.read().hasName(nid.name());
-		} else {
-			Path.Entry<WyilFile> m = project.get(mid, WyilFile.ContentType);
-			if (m != null) {
-				return m.read().hasName(nid.name());
-			} else {
-				return false;
-			}
-		}
+		// FIXME: check for the right kind of name
+		Map<String, SymbolIndex.Symbol> symbols = symbols(nid.module());
+		return symbols != null && symbols.containsKey(nid.name());
 	}
 
 	/**
@@ -352,33 +553,30 @@ public final class CompileTask implements Build.Task {
 	 * @throws IOException
 	 */
 	public boolean hasModifier(NameID nid, Context context, Modifier modifier) throws IOException {
-		Path.ID mid = nid.module();
-		// Attempt to access source file first.
+		Map<String, SymbolIndex.Symbol> symbols = symbols(nid.module());
+		SymbolIndex.Symbol symbol = symbols == null ? null : symbols.get(nid.name());
+		return symbol != null && symbol.hasModifier(modifier);
+	}
+
+	/**
+	 * Get the symbol table of a given module. This is constructed from the
+	 * source file when the module is being compiled, and from its WyIL file
+	 * otherwise. If neither exists, null is returned.
+	 *
+	 * @param mid
+	 * @return
+	 * @throws IOException
+	 */
+	private Map<String, SymbolIndex.Symbol> symbols(Path.ID mid) throws IOException {
 		WhileyFile wf = getSourceFile(mid);
 		if (wf != null) {
-			// Source file location, so check visible of element.
-			WhileyFile.NamedDeclaration nd = wf.declaration(nid.name());
-			return nd != null && nd.hasModifier(modifier);
-		} else {
-			// Source file not being compiled, therefore attempt to access wyil
-			// file directly.
-
-			// we have to do the following basically because we don't load
-			// modifiers properly out of jvm class files (at the moment).
-			// return false;
-			WyilFile w = getModule(mid);
-			List<WyilFile.Block> blocks = w.blocks();
-			for (int i = 0; i != blocks.size(); ++i) {
-				WyilFile.Block d = blocks.get(i);
-				if (d instanceof WyilFile.Declaration) {
-					WyilFile.Declaration nd = (WyilFile.Declaration) d;
-					if(nd.name().equals(nid.name())) {
-						return nd != null && nd.hasModifier(modifier);
-					}
-				}
-			}
-			return false;
+			return index.symbols(wf);
+		}
+		WyilFile m = typeSystem.modules().get(mid);
+		if (m != null) {
+			return index.symbols(m);
 		}
+		return null;
 	}
 
 	/**
@@ -393,14 +591,26 @@ public final class CompileTask implements Build.Task {
 			ArrayList<Path.ID> matches = importCache.get(key);
 			if (matches != null) {
 				// cache hit
+				metrics.hit("import");
 				return matches;
 			} else {
 				// cache miss
+				metrics.miss("import");
 				matches = new ArrayList<>();
 
-				for (Path.Entry<WhileyFile> sf : srcFiles.values()) {
-					if (key.matches(sf.id())) {
-						matches.add(sf.id());
+				if (key.isConcrete()) {
+					if (srcFiles.containsKey(key)) {
+						matches.add(key);
+					}
+				} else if (key.last().equals("*") && key.parent().isConcrete()) {
+					// A wildcard import of a single package, which is the
+					// common case.
+					matches.addAll(index.sources(key.parent()));
+				} else {
+					for (Path.Entry<WhileyFile> sf : srcFiles.values()) {
+						if (key.matches(sf.id())) {
+							matches.add(sf.id());
+						}
 					}
 				}
 				if (key.isConcrete()) {
@@ -452,7 +662,7 @@ public final class CompileTask implements Build.Task {
 	 * @throws IOException
 	 */
 	public WyilFile getModule(Path.ID mid) throws IOException {
-		return project.get(mid, WyilFile.ContentType).read();
+		return typeSystem.modules().get(mid);
 	}
 
 
@@ -496,6 +706,16 @@ public final class CompileTask implements Build.Task {
 	 *             if it couldn't resolve the name
 	 */
 	public NameID resolveAsName(String name, Context context) throws IOException, ResolveError {
+		Pair<Context, String> key = new Pair<>(context, name);
+		NameID nid = nameCache.get(key);
+		if (nid == null) {
+			nid = resolveAsNameUncached(name, context);
+			nameCache.put(key, nid);
+		}
+		return nid;
+	}
+
+	private NameID resolveAsNameUncached(String name, Context context) throws IOException, ResolveError {
 		for (WhileyFile.Import imp : context.imports()) {
 			String impName = imp.name;
 			if (impName == null || impName.equals(name) || impName.equals("*")) {
@@ -596,7 +816,16 @@ public final class CompileTask implements Build.Task {
 	 * @throws IOException
 	 */
 	public Path.ID resolveAsModule(String name, Context context) throws IOException, ResolveError {
+		Pair<Context, String> key = new Pair<>(context, name);
+		Path.ID mid = moduleCache.get(key);
+		if (mid == null) {
+			mid = resolveAsModuleUncached(name, context);
+			moduleCache.put(key, mid);
+		}
+		return mid;
+	}
 
+	private Path.ID resolveAsModuleUncached(String name, Context context) throws IOException, ResolveError {
 		for (WhileyFile.Import imp : context.imports()) {
 			Trie filter = imp.filter;
 			String last = filter.last();
@@ -619,6 +848,242 @@ public final class CompileTask implements Build.Task {
 	// Private Implementation
 	// ======================================================================
 
+	/**
+	 * Record the interface hash of every module each of a given set of
+	 * generated files depends upon. Dependencies are followed transitively,
+	 * since e.g. a file using a type from another module also depends upon
+	 * any types that type is defined in terms of. Modules which are not being
+	 * generated are read from the project, whilst those being generated are
+	 * taken as is.
+	 *
+	 * @param generated
+	 * @throws IOException
+	 */
+	private void recordDependencies(List<WyilFile> generated) throws IOException {
+		HashMap<Path.ID, WyilFile> modules = new HashMap<>();
+		for (WyilFile wyil : generated) {
+			modules.put(wyil.getEntry().id(), wyil);
+		}
+		HashMap<Path.ID, Long> hashes = new HashMap<>();
+		HashMap<Path.ID, Set<Path.ID>> dependencies = new HashMap<>();
+		for (WyilFile wyil : generated) {
+			Path.ID id = wyil.getEntry().id();
+			Map<Path.ID, Long> recorded = wyil.dependencies();
+			recorded.clear();
+			// Traverse the transitive closure of this file's dependencies
+			ArrayDeque<Path.ID> worklist = new ArrayDeque<>(dependencies(id, modules, dependencies));
+			while (!worklist.isEmpty()) {
+				Path.ID dep = worklist.pop();
+				if (dep.equals(id) || recorded.containsKey(dep)) {
+					continue;
+				}
+				Long hash = hashes.get(dep);
+				if (hash == null) {
+					WyilFile module = getModule(dep, modules);
+					if (module == null) {
+						// Can arise for modules provided by other means (e.g.
+						// native modules); there is nothing to record.
+						continue;
+					}
+					hash = ModuleInterface.hash(module);
+					hashes.put(dep, hash);
+				}
+				recorded.put(dep, hash);
+				worklist.addAll(dependencies(dep, modules, dependencies));
+			}
+		}
+	}
+
+	private Set<Path.ID> dependencies(Path.ID id, Map<Path.ID, WyilFile> modules,
+			Map<Path.ID, Set<Path.ID>> cache) throws IOException {
+		Set<Path.ID> deps = cache.get(id);
+		if (deps == null) {
+			WyilFile module = getModule(id, modules);
+			deps = module == null ? Collections.<Path.ID>emptySet() : ModuleInterface.dependencies(module);
+			cache.put(id, deps);
+		}
+		return deps;
+	}
+
+	/**
+	 * <p>
+	 * Restore as many files in a given delta as possible from the cache. A
+	 * file is restored when the cache holds a WyIL file generated from
+	 * identical source, and every module it was compiled against still has
+	 * the same interface. Since the dependencies of a file may themselves be
+	 * in the delta, a file can only be restored when all of its dependencies
+	 * in the delta are also restored.
+	 * </p>
+	 * <p>
+	 * The cache key of every source file in the delta is recorded, so that
+	 * those which are not restored can be stored once they are generated.
+	 * </p>
+	 *
+	 * @param delta
+	 *            --- The files to be compiled.
+	 * @param graph
+	 *            --- The build graph in which derivations are recorded.
+	 * @param keys
+	 *            --- The cache key of each source file in the delta.
+	 * @param restored
+	 *            --- The set to which restored files are added.
+	 * @return Those files in the delta which were not restored.
+	 * @throws IOException
+	 */
+	@SuppressWarnings("unchecked")
+	private Collection<Pair<Path.Entry<?>, Path.Root>> restore(Collection<Pair<Path.Entry<?>, Path.Root>> delta,
+			Build.Graph graph, Map<Path.ID, BuildCache.Key> keys, Set<Path.Entry<?>> restored) throws IOException {
+		HashMap<Path.ID, byte[]> candidates = new HashMap<>();
+		HashMap<Path.ID, WyilFile> modules = new HashMap<>();
+		for (Pair<Path.Entry<?>, Path.Root> p : delta) {
+			Path.Entry<?> src = p.first();
+			if (src.contentType() == WhileyFile.ContentType) {
+				BuildCache.Key key = new BuildCache.Key().add(src.id().toString()).add(generateLoopInvariants)
+						.add(BuildCache.readAll(src.inputStream()));
+				keys.put(src.id(), key);
+				byte[] bytes = cache.get(key, WyilFile.ContentType.getSuffix());
+				if (bytes != null) {
+					candidates.put(src.id(), bytes);
+					modules.put(src.id(), new WyilFileReader(new ByteArrayInputStream(bytes)).read());
+				}
+			}
+		}
+		// Remove any candidate compiled against an interface which has since
+		// changed. This must be repeated until no more are removed, since
+		// removing one candidate may invalidate others.
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			for (Path.ID id : new ArrayList<>(candidates.keySet())) {
+				if (!isValid(modules.get(id), keys, candidates, modules)) {
+					candidates.remove(id);
+					changed = true;
+				}
+			}
+		}
+		ArrayList<Pair<Path.Entry<?>, Path.Root>> remaining = new ArrayList<>();
+		for (Pair<Path.Entry<?>, Path.Root> p : delta) {
+			Path.Entry<?> src = p.first();
+			byte[] bytes = candidates.get(src.id());
+			if (bytes == null) {
+				remaining.add(p);
+			} else {
+				Path.Entry<WyilFile> target = p.second().create(src.id(), WyilFile.ContentType);
+				graph.registerDerivation(src, target);
+				target.write(new WyilFileReader(target, new ByteArrayInputStream(bytes)).read());
+				typeSystem.modules().invalidate(target.id());
+				restored.add(target);
+			}
+		}
+		// Restored files may depend on each other and, hence, are only
+		// passed downstream once all have been written.
+		for (Path.Entry<?> target : restored) {
+			stream((Path.Entry<WyilFile>) target, graph);
+		}
+		if (!candidates.isEmpty()) {
+			logger.logTimedMessage("Restored " + candidates.size() + " file(s) from cache.", 0, 0);
+		}
+		return remaining;
+	}
+
+	/**
+	 * Check whether every dependency recorded in a cached WyIL file still has
+	 * the same interface. A dependency in the delta must itself be restored
+	 * from the cache, whilst any other must exist in the project.
+	 *
+	 * @param module
+	 * @param keys
+	 * @param candidates
+	 * @param modules
+	 * @return
+	 * @throws IOException
+	 */
+	private boolean isValid(WyilFile module, Map<Path.ID, BuildCache.Key> keys, Map<Path.ID, byte[]> candidates,
+			Map<Path.ID, WyilFile> modules) throws IOException {
+		for (Map.Entry<Path.ID, Long> dep : module.dependencies().entrySet()) {
+			WyilFile current;
+			if (keys.containsKey(dep.getKey())) {
+				current = candidates.containsKey(dep.getKey()) ? modules.get(dep.getKey()) : null;
+			} else {
+				current = typeSystem.modules().get(dep.getKey());
+			}
+			if (current == null || ModuleInterface.hash(current) != dep.getValue()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Store a newly generated WyIL file in the cache (if there is one).
+	 *
+	 * @param key
+	 *            --- The cache key of the source file it was generated from.
+	 * @param module
+	 * @throws IOException
+	 */
+	private void store(BuildCache.Key key, WyilFile module) throws IOException {
+		if (cache != null && key != null) {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			WyilFile.ContentType.write(bytes, module);
+			cache.put(key, WyilFile.ContentType.getSuffix(), bytes.toByteArray());
+		}
+	}
+
+	/**
+	 * Discard the parsed contents of all source files being compiled. Since
+	 * source files are never modified, they can simply be parsed again if
+	 * needed.
+	 *
+	 * @throws IOException
+	 */
+	private void releaseSourceFiles() throws IOException {
+		for (Path.Entry<WhileyFile> e : srcFiles.values()) {
+			e.refresh();
+		}
+	}
+
+	private WyilFile getModule(Path.ID id, Map<Path.ID, WyilFile> modules) throws IOException {
+		WyilFile module = modules.get(id);
+		if (module == null) {
+			module = typeSystem.modules().get(id);
+			if (module != null) {
+				modules.put(id, module);
+			}
+		}
+		return module;
+	}
+
+	/**
+	 * Pass a newly generated WyIL file through the downstream tasks of this
+	 * task (if any). Each task is given the files produced by the one before
+	 * it. Since neither the downstream tasks nor the build graph are
+	 * thread-safe, at most one file is passed downstream at any time. The
+	 * file must only be passed downstream once every other file in the delta
+	 * it may depend upon has been written.
+	 *
+	 * @param entry
+	 *            --- The WyIL file which has been generated.
+	 * @param graph
+	 *            --- The build graph in which derivations are recorded.
+	 * @throws IOException
+	 */
+	private void stream(Path.Entry<WyilFile> entry, Build.Graph graph) throws IOException {
+		if (downstream.isEmpty()) {
+			return;
+		}
+		synchronized (downstream) {
+			Collection<Path.Entry<?>> entries = Collections.<Path.Entry<?>>singleton(entry);
+			for (Pair<Build.Task, Path.Root> task : downstream) {
+				ArrayList<Pair<Path.Entry<?>, Path.Root>> delta = new ArrayList<>();
+				for (Path.Entry<?> e : entries) {
+					delta.add(new Pair<Path.Entry<?>, Path.Root>(e, task.second()));
+				}
+				entries = task.first().build(delta, graph);
+			}
+		}
+	}
+
 	private void process(WyilFile module, Build.Stage<WyilFile> stage) throws IOException {
 		Runtime runtime = Runtime.getRuntime();
 		long start = System.currentTimeMillis();
@@ -816,4 +1281,51 @@ public final class CompileTask implements Build.Task {
 	public void setGenerateLoopInvariants(boolean generateLoopInvariants) {
 		this.generateLoopInvariants = generateLoopInvariants;
 	}
+
+	/**
+	 * Add a task to which the output of this task is passed on a per-file
+	 * basis. Tasks are applied in the order they are added, with each
+	 * receiving the output of the one before.
+	 *
+	 * @param task
+	 *            --- The downstream task.
+	 * @param target
+	 *            --- The root in which the downstream task places its output.
+	 */
+	public void addDownstream(Build.Task task, Path.Root target) {
+		downstream.add(new Pair<>(task, target));
+	}
+
+	public boolean isLowMemory() {
+		return lowMemory;
+	}
+
+	public void setLowMemory(boolean lowMemory) {
+		this.lowMemory = lowMemory;
+	}
+
+	public int getThreads() {
+		return executor.getThreads();
+	}
+
+	/**
+	 * Get the executor used for those phases of the build which operate on
+	 * each file (or declaration) independently.
+	 *
+	 * @return
+	 */
+	TaskExecutor getExecutor() {
+		return executor;
+	}
+
+	/**
+	 * Set the number of threads used for those phases of the build which
+	 * operate on each file independently.
+	 *
+	 * @param threads
+	 *            Number of threads (must be positive).
+	 */
+	public void setThreads(int threads) {
+		this.executor = new TaskExecutor(threads);
+	}
 }
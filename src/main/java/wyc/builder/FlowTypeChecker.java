@@ -14,6 +14,8 @@ import static wyil.util.ErrorMessages.*;
 import java.io.IOException;
 import java.math.BigDecimal;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 
 import wyal.lang.WyalFile;
 import wyautl_old.lang.Automata;
@@ -125,22 +127,106 @@ public class FlowTypeChecker {
 
 	/**
 	 * The constant cache contains a cache of expanded constant values. This is
-	 * simply to prevent recomputing them every time.
+	 * simply to prevent recomputing them every time. This is shared between
+	 * all checkers operating on behalf of the same build and, hence, may be
+	 * accessed concurrently.
 	 */
-	private final HashMap<NameID, Pair<Constant, Type>> constantCache = new HashMap<>();
+	private final ConcurrentHashMap<NameID, Pair<Constant, Type>> constantCache;
 
 	public FlowTypeChecker(CompileTask builder) {
 		this.builder = builder;
 		this.typeSystem = builder.getTypeSystem();
+		this.constantCache = new ConcurrentHashMap<>();
+	}
+
+	/**
+	 * Construct a checker for declarations in a given file, which shares the
+	 * constant cache of its parent. This allows declarations to be checked
+	 * concurrently, since the only mutable state of a checker is the file
+	 * being checked.
+	 *
+	 * @param parent
+	 * @param file
+	 */
+	private FlowTypeChecker(FlowTypeChecker parent, WhileyFile file) {
+		this.builder = parent.builder;
+		this.typeSystem = parent.typeSystem;
+		this.constantCache = parent.constantCache;
+		this.file = file;
 	}
 
 	// =========================================================================
 	// WhileyFile(s)
 	// =========================================================================
 
-	public void propagate(List<WhileyFile> files) {
-		for (WhileyFile wf : files) {
-			propagate(wf);
+	/**
+	 * <p>
+	 * Propagate types through all declarations in a given list of files. This
+	 * proceeds in two phases. Firstly, all constant declarations are expanded
+	 * in source order. Expanding a constant recursively expands those it
+	 * refers to and, hence, this corresponds to a traversal of the constant
+	 * dependency graph.
+	 * </p>
+	 * <p>
+	 * Secondly, all type, function, method and property declarations are
+	 * checked. At this point, they are independent of each other: named types
+	 * and the signatures of functions or methods are resolved from their
+	 * declared (i.e. syntactic) form when needed, whilst constants have
+	 * already been expanded. Therefore, these declarations are checked
+	 * concurrently using the thread pool of the enclosing build.
+	 * </p>
+	 * <p>
+	 * The error reported is always the first in source order, as though all
+	 * declarations had been checked one by one. If a constant fails to expand,
+	 * only those declarations preceding it are checked before its error is
+	 * reported.
+	 * </p>
+	 *
+	 * @param files
+	 * @throws IOException
+	 */
+	public void propagate(List<WhileyFile> files) throws IOException {
+		// Expand constants in source order, stopping at the first which fails
+		RuntimeException failure = null;
+		WhileyFile.Declaration failed = null;
+		for (int i = 0; i != files.size() && failed == null; ++i) {
+			WhileyFile wf = files.get(i);
+			this.file = wf;
+			for (WhileyFile.Declaration decl : wf.declarations) {
+				if (decl instanceof WhileyFile.Constant) {
+					try {
+						propagateDeclaration(decl);
+					} catch (RuntimeException e) {
+						failure = e;
+						failed = decl;
+						break;
+					}
+				}
+			}
+		}
+		// Check all other declarations preceding the failed constant (if any)
+		ArrayList<Callable<Void>> checkers = new ArrayList<>();
+		boolean reached = false;
+		for (int i = 0; i != files.size() && !reached; ++i) {
+			final WhileyFile wf = files.get(i);
+			for (final WhileyFile.Declaration decl : wf.declarations) {
+				if (decl == failed) {
+					reached = true;
+					break;
+				} else if (!(decl instanceof WhileyFile.Constant)) {
+					checkers.add(new Callable<Void>() {
+						@Override
+						public Void call() {
+							new FlowTypeChecker(FlowTypeChecker.this, wf).propagateDeclaration(decl);
+							return null;
+						}
+					});
+				}
+			}
+		}
+		builder.getExecutor().execute(checkers);
+		if (failure != null) {
+			throw failure;
 		}
 	}
 
@@ -148,21 +234,25 @@ public class FlowTypeChecker {
 		this.file = wf;
 
 		for (WhileyFile.Declaration decl : wf.declarations) {
-			try {
-				if (decl instanceof WhileyFile.FunctionOrMethodOrProperty) {
-					propagate((WhileyFile.FunctionOrMethodOrProperty) decl);
-				} else if (decl instanceof WhileyFile.Type) {
-					propagate((WhileyFile.Type) decl);
-				} else if (decl instanceof WhileyFile.Constant) {
-					propagate((WhileyFile.Constant) decl);
-				}
-			} catch (ResolveError e) {
-				throw new SyntaxError(errorMessage(RESOLUTION_ERROR, e.getMessage()), file.getEntry(), decl, e);
-			} catch (SyntaxError e) {
-				throw e;
-			} catch (Throwable t) {
-				throw new InternalFailure(t.getMessage(), file.getEntry(), decl, t);
+			propagateDeclaration(decl);
+		}
+	}
+
+	private void propagateDeclaration(WhileyFile.Declaration decl) {
+		try {
+			if (decl instanceof WhileyFile.FunctionOrMethodOrProperty) {
+				propagate((WhileyFile.FunctionOrMethodOrProperty) decl);
+			} else if (decl instanceof WhileyFile.Type) {
+				propagate((WhileyFile.Type) decl);
+			} else if (decl instanceof WhileyFile.Constant) {
+				propagate((WhileyFile.Constant) decl);
 			}
+		} catch (ResolveError e) {
+			throw new SyntaxError(errorMessage(RESOLUTION_ERROR, e.getMessage()), file.getEntry(), decl, e);
+		} catch (SyntaxError e) {
+			throw e;
+		} catch (Throwable t) {
+			throw new InternalFailure(t.getMessage(), file.getEntry(), decl, t);
 		}
 	}
 
@@ -2798,11 +2888,13 @@ public class FlowTypeChecker {
 			throws IOException, ResolveError {
 		Pair<Constant, Type> result = constantCache.get(key);
 		if (result != null) {
+			builder.getMetrics().hit("constant");
 			return result;
 		} else if (visited.contains(key)) {
 			throw new ResolveError("cyclic constant definition encountered (" + key + " -> " + key + ")");
 		} else {
 			visited.add(key);
+			builder.getMetrics().miss("constant");
 		}
 
 		WhileyFile wf = builder.getSourceFile(key.module());
@@ -0,0 +1,219 @@
+// Copyright (c) 2011, David J. Pearce (djp@ecs.vuw.ac.nz)
+// All rights reserved.
+//
+// This software may be modified and distributed under the terms
+// of the BSD license.  See the LICENSE file for details.
+
+package wyc.builder;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+import wyc.lang.WhileyFile;
+import wyfs.lang.Path;
+import wyil.lang.Modifier;
+import wyil.lang.WyilFile;
+
+/**
+ * <p>
+ * An index of the names declared in each module, and the modules declared in
+ * each package, which is used to speed up name resolution. Without this,
+ * determining whether a module declares a given name (or whether that name
+ * has a given modifier) requires a linear scan of its declarations, and
+ * expanding a wildcard import requires a linear scan of every source file
+ * being compiled.
+ * </p>
+ * <p>
+ * The symbol table of a module is constructed on demand from either its
+ * source file (when this is being compiled) or its WyIL file. Tables are
+ * retained between builds, and a table is reconstructed only when the
+ * source or WyIL file it was constructed from is replaced. Thus, the index is
+ * updated incrementally as files are recompiled. Tables may be requested from
+ * several threads at once.
+ * </p>
+ *
+ * @author David J. Pearce
+ *
+ */
+final class SymbolIndex {
+
+	/**
+	 * The kinds of named declaration.
+	 */
+	public enum Kind {
+		TYPE, CONSTANT, FUNCTION_OR_METHOD, PROPERTY
+	}
+
+	/**
+	 * Describes a named declaration. Where several declarations share the
+	 * same name (e.g. overloaded functions), this describes the first.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	public static final class Symbol {
+		private final Kind kind;
+		private final List<Modifier> modifiers;
+
+		private Symbol(Kind kind, List<Modifier> modifiers) {
+			this.kind = kind;
+			this.modifiers = modifiers;
+		}
+
+		public Kind kind() {
+			return kind;
+		}
+
+		public boolean hasModifier(Modifier modifier) {
+			return modifiers.contains(modifier);
+		}
+	}
+
+	/**
+	 * A symbol table, along with the compilation unit it was constructed from.
+	 */
+	private static final class Table {
+		private final Object unit;
+		private final Map<String, Symbol> symbols;
+
+		private Table(Object unit, Map<String, Symbol> symbols) {
+			this.unit = unit;
+			this.symbols = symbols;
+		}
+	}
+
+	private final ConcurrentHashMap<Path.ID, Table> tables = new ConcurrentHashMap<>();
+
+	/**
+	 * The source files being compiled, indexed by their enclosing package.
+	 */
+	private final HashMap<Path.ID, List<Path.ID>> packages = new HashMap<>();
+
+	/**
+	 * Reset the index of packages for a new set of source files. This should
+	 * be called at the start of each build, before any names are resolved.
+	 *
+	 * @param sources
+	 */
+	public void update(Collection<Path.ID> sources) {
+		packages.clear();
+		for (Path.ID id : sources) {
+			List<Path.ID> modules = packages.get(id.parent());
+			if (modules == null) {
+				modules = new ArrayList<>();
+				packages.put(id.parent(), modules);
+			}
+			modules.add(id);
+		}
+	}
+
+	/**
+	 * Get the source files being compiled which are declared in a given
+	 * package.
+	 *
+	 * @param pkg
+	 * @return
+	 */
+	public List<Path.ID> sources(Path.ID pkg) {
+		List<Path.ID> modules = packages.get(pkg);
+		if (modules == null) {
+			return Collections.emptyList();
+		}
+		return modules;
+	}
+
+	/**
+	 * Get the symbol table for a module being compiled from source.
+	 *
+	 * @param wf
+	 * @return
+	 */
+	public Map<String, Symbol> symbols(WhileyFile wf) {
+		Path.ID id = wf.getEntry().id();
+		Table table = tables.get(id);
+		if (table == null || table.unit != wf) {
+			LinkedHashMap<String, Symbol> symbols = new LinkedHashMap<>();
+			for (WhileyFile.Declaration d : wf.declarations) {
+				if (d instanceof WhileyFile.NamedDeclaration) {
+					WhileyFile.NamedDeclaration nd = (WhileyFile.NamedDeclaration) d;
+					if (!symbols.containsKey(nd.name())) {
+						symbols.put(nd.name(), new Symbol(kind(nd), nd.modifiers()));
+					}
+				}
+			}
+			table = new Table(wf, symbols);
+			tables.put(id, table);
+		}
+		return table.symbols;
+	}
+
+	/**
+	 * Get the symbol table for a compiled module.
+	 *
+	 * @param module
+	 * @return
+	 */
+	public Map<String, Symbol> symbols(WyilFile module) {
+		Path.ID id = module.getEntry().id();
+		Table table = tables.get(id);
+		if (table == null || table.unit != module) {
+			LinkedHashMap<String, Symbol> symbols = new LinkedHashMap<>();
+			for (WyilFile.Block b : module.blocks()) {
+				if (b instanceof WyilFile.Declaration) {
+					WyilFile.Declaration d = (WyilFile.Declaration) b;
+					if (!symbols.containsKey(d.name())) {
+						symbols.put(d.name(), new Symbol(kind(d), d.modifiers()));
+					}
+				}
+			}
+			table = new Table(module, symbols);
+			tables.put(id, table);
+		}
+		return table.symbols;
+	}
+
+	/**
+	 * Discard the symbol tables constructed from source files, since these
+	 * would otherwise keep the source files alive. The tables of compiled
+	 * modules are retained.
+	 */
+	public void releaseSources() {
+		Iterator<Table> tables = this.tables.values().iterator();
+		while (tables.hasNext()) {
+			if (tables.next().unit instanceof WhileyFile) {
+				tables.remove();
+			}
+		}
+	}
+
+	/**
+	 * Discard all symbol tables.
+	 */
+	public void clear() {
+		tables.clear();
+	}
+
+	private static Kind kind(WhileyFile.NamedDeclaration d) {
+		if (d instanceof WhileyFile.Type) {
+			return Kind.TYPE;
+		} else if (d instanceof WhileyFile.Constant) {
+			return Kind.CONSTANT;
+		} else if (d instanceof WhileyFile.Property) {
+			return Kind.PROPERTY;
+		} else {
+			return Kind.FUNCTION_OR_METHOD;
+		}
+	}
+
+	private static Kind kind(WyilFile.Declaration d) {
+		if (d instanceof WyilFile.Type) {
+			return Kind.TYPE;
+		} else if (d instanceof WyilFile.Constant) {
+			return Kind.CONSTANT;
+		} else if (d instanceof WyilFile.Property) {
+			return Kind.PROPERTY;
+		} else {
+			return Kind.FUNCTION_OR_METHOD;
+		}
+	}
+}
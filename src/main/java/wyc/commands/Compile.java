@@ -7,12 +7,35 @@
 package wyc.commands;
 
 import java.io.File;
+import java.io.FileWriter;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.PrintStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
 
+import wybs.lang.Build;
 import wybs.lang.SyntacticElement;
 import wybs.lang.SyntaxError;
 import wybs.lang.SyntaxError.InternalFailure;
@@ -21,9 +44,11 @@ import wybs.util.StdProject;
 import wyc.builder.CompileTask;
 import wyc.lang.WhileyFile;
 import wyc.util.AbstractProjectCommand;
+import wyc.util.InstrumentedProver;
 import wycc.lang.Feature.ConfigurationError;
 import wycc.util.ArrayUtils;
 import wycc.util.Logger;
+import wycc.util.Pair;
 import wyal.lang.NameResolver;
 import wyal.lang.WyalFile;
 import wyal.util.Interpreter;
@@ -33,8 +58,15 @@ import wyfs.lang.Content;
 import wyfs.lang.Path;
 import wyfs.util.DirectoryRoot;
 import wyfs.util.VirtualRoot;
+import wyil.builders.ProofCache;
 import wyil.builders.Wyil2WyalBuilder;
+import wyil.io.WyilFileReader;
 import wyil.lang.WyilFile;
+import wyil.util.BuildCache;
+import wyil.util.BuildMetrics;
+import wyil.util.ModuleCache;
+import wyil.util.ModuleInterface;
+import wyil.util.TypeSystem;
 import wytp.provers.AutomatedTheoremProver;
 import wytp.types.extractors.TypeInvariantExtractor;
 
@@ -100,6 +132,112 @@ public class Compile extends AbstractProjectCommand<Compile.Result> {
 	 */
 	protected boolean generateLoopInvariant = false;
 
+	/**
+	 * The number of threads used to compile source files.
+	 */
+	protected int threads = 1;
+
+	/**
+	 * Signals that, after compiling the requested source files, any other
+	 * source files compiled against an interface which has since changed
+	 * should also be recompiled.
+	 */
+	protected boolean incremental = false;
+
+	/**
+	 * Signals that, after compiling the requested source files, the source
+	 * directory should be watched for changes and any changed source files
+	 * (and those depending on them) recompiled.
+	 */
+	protected boolean watch = false;
+
+	/**
+	 * Signals that verification should be pipelined with compilation. That
+	 * is, each WyIL file is passed on for verification as soon as it has been
+	 * generated, rather than once all source files have been compiled.
+	 */
+	protected boolean pipeline = false;
+
+	/**
+	 * Signals that generated WyIL and WyAL files should be written to disk.
+	 * When this is not set, generated files are passed between build stages in
+	 * memory only. This is useful when only the verification result is of
+	 * interest.
+	 */
+	protected boolean artifacts = true;
+
+	/**
+	 * The file to which metrics for each build are written, or null if they
+	 * should not be written. Metrics are written in CSV format if the file
+	 * name ends in ".csv", and in JSON format otherwise.
+	 */
+	protected File metricsFile = null;
+
+	/**
+	 * Records the time spent in each phase of the build.
+	 */
+	private BuildMetrics metrics = BuildMetrics.NULL;
+
+	/**
+	 * The cache from which generated files are restored, rather than
+	 * regenerated, when their inputs are unchanged. This may be shared
+	 * between projects and machines. If null, no cache is used.
+	 */
+	protected BuildCache cache = null;
+
+	/**
+	 * Signals that memory should be conserved during compilation, at the
+	 * expense of time.
+	 */
+	protected boolean lowMemory = false;
+
+	/**
+	 * Signals that verification conditions should be sliced, such that only
+	 * those assumptions relevant to each assertion are retained. This is off
+	 * by default, since an assertion on an infeasible path may then no longer
+	 * be provable.
+	 */
+	protected boolean slicing = false;
+
+	/**
+	 * The time (in milliseconds) allowed for proving each assertion, or zero
+	 * if there is no limit.
+	 */
+	protected long proofBudget = 0;
+
+	/**
+	 * Writes generated files to disk, so that separate roots can be written
+	 * concurrently. This is created on demand.
+	 */
+	private ExecutorService flusher;
+
+	/**
+	 * Those writes to disk which may still be in progress. These must complete
+	 * before the binary roots are modified again.
+	 */
+	private final ArrayList<Future<Void>> pendingFlushes = new ArrayList<>();
+
+	/**
+	 * The dependency tables of WyIL files, along with the modification time of
+	 * each file when its table was read. These are retained between builds
+	 * (e.g. in watch mode), so that unchanged files need not be read again.
+	 */
+	private final HashMap<Path.ID, Pair<Long, Map<Path.ID, Long>>> dependencyTables = new HashMap<>();
+
+	/**
+	 * The interface hashes of modules, along with the modification time of
+	 * each module when its hash was computed.
+	 */
+	private final HashMap<Path.ID, Pair<Long, Long>> interfaceHashes = new HashMap<>();
+
+	/**
+	 * The period (in milliseconds) for which the source directory must be
+	 * quiet before changed files are recompiled. This prevents a burst of
+	 * changes (e.g. from saving several files at once) from triggering several
+	 * builds.
+	 */
+	private static final int WATCH_DELAY = 200;
+
 	/**
 	 * Identifies which whiley source files should be considered for
 	 * compilation. By default, all files reachable from srcdir are considered.
@@ -113,6 +251,41 @@ public class Compile extends AbstractProjectCommand<Compile.Result> {
 	 */
 	protected Content.Filter<WhileyFile> whileyExcludes = null;
 
+	/**
+	 * The type system shared by all build rules operating on the project
+	 * currently being compiled. This allows cached type information to be
+	 * reused between e.g. compilation and verification.
+	 */
+	private TypeSystem typeSystem;
+
+	/**
+	 * Modules decoded in advance from the library roots, which are shared
+	 * (read-only) with other commands. See <code>setSharedModules()</code>.
+	 */
+	private Map<Path.Entry<?>, WyilFile> sharedModules = Collections.emptyMap();
+
+	/**
+	 * Signals that the project being compiled should be retained between
+	 * executions of this command, rather than being constructed afresh each
+	 * time. This allows information cached in the project (e.g. parsed source
+	 * files, loaded WyIL files and resolved types) to be reused. This is
+	 * intended for long-running processes, such as a compile server.
+	 */
+	private boolean persistent = false;
+
+	/**
+	 * The project retained between executions, or null if this command is not
+	 * persistent or has not yet been executed.
+	 */
+	private StdProject project;
+
+	/**
+	 * The modification time of each source and binary file, as last seen by
+	 * this (persistent) command. This determines which entries must be
+	 * refreshed before the next execution.
+	 */
+	private final HashMap<Path.Entry<?>, Long> timestamps = new HashMap<>();
+
 	/**
 	 * Construct a new instance of this command.
 	 *
@@ -157,7 +330,17 @@ public class Compile extends AbstractProjectCommand<Compile.Result> {
 			"vcg",
 			"proof",
 			"brief",
-			"genloopinv"
+			"genloopinv",
+			"threads",
+			"incremental",
+			"watch",
+			"pipeline",
+			"noartifacts",
+			"metrics",
+			"cache",
+			"lowmemory",
+			"slicing",
+			"budget"
 	};
 
 	@Override
@@ -180,6 +363,26 @@ public class Compile extends AbstractProjectCommand<Compile.Result> {
 			return "Emit verification condition for Whiley source files";
         case "genloopinv":
             return "Enable generation of simple loop invariants";
+		case "threads":
+			return "Specify number of threads used to compile and verify Whiley source files";
+		case "incremental":
+			return "Recompile source files which depend upon a changed interface";
+		case "watch":
+			return "Watch source files for changes, recompiling them as necessary";
+		case "pipeline":
+			return "Verify each source file as soon as it has been compiled";
+		case "noartifacts":
+			return "Do not write generated WyIL or WyAL files to disk";
+		case "metrics":
+			return "Write build metrics to the given file (in CSV format if it ends in .csv, otherwise JSON)";
+		case "cache":
+			return "Specify directory of cache used to restore previously generated files and proofs";
+		case "lowmemory":
+			return "Conserve memory by discarding files once they have been compiled";
+		case "slicing":
+			return "Remove irrelevant assumptions from verification conditions";
+		case "budget":
+			return "Specify time (in milliseconds) allowed for proving each assertion";
 		default:
 			return super.describe(option);
 		}
@@ -209,6 +412,44 @@ public class Compile extends AbstractProjectCommand<Compile.Result> {
         case "genloopinv":
         	this.generateLoopInvariant = true;
 			break;
+		case "threads":
+			try {
+				setThreads(Integer.parseInt(value.toString()));
+			} catch (IllegalArgumentException e) {
+				throw new ConfigurationError(e);
+			}
+			break;
+		case "incremental":
+			this.incremental = true;
+			break;
+		case "watch":
+			this.watch = true;
+			break;
+		case "pipeline":
+			this.pipeline = true;
+			break;
+		case "noartifacts":
+			this.artifacts = false;
+			break;
+		case "metrics":
+			setMetricsFile(new File(value.toString()));
+			break;
+		case "cache":
+			setCacheDir(new File(value.toString()));
+			break;
+		case "lowmemory":
+			this.lowMemory = true;
+			break;
+		case "slicing":
+			this.slicing = true;
+			break;
+		case "budget":
+			try {
+				setProofBudget(Long.parseLong(value.toString()));
+			} catch (IllegalArgumentException e) {
+				throw new ConfigurationError(e);
+			}
+			break;
 		default:
 			super.set(option, value);
 		}
@@ -271,6 +512,155 @@ public class Compile extends AbstractProjectCommand<Compile.Result> {
 		this.generateLoopInvariant = generateLoopInvariant;
 	}
 
+	public int getThreads() {
+		return threads;
+	}
+
+	/**
+	 * Set the number of threads used to compile and verify source files.
+	 *
+	 * @param threads
+	 *            --- The number of threads, which must be at least one.
+	 */
+	public void setThreads(int threads) {
+		if (threads < 1) {
+			throw new IllegalArgumentException("invalid number of threads: " + threads);
+		}
+		this.threads = threads;
+	}
+
+	public boolean getIncremental() {
+		return incremental;
+	}
+
+	public void setIncremental(boolean incremental) {
+		this.incremental = incremental;
+	}
+
+	public boolean getPipeline() {
+		return pipeline;
+	}
+
+	public void setPipeline(boolean pipeline) {
+		this.pipeline = pipeline;
+	}
+
+	public boolean getArtifacts() {
+		return artifacts;
+	}
+
+	public void setArtifacts(boolean artifacts) {
+		this.artifacts = artifacts;
+	}
+
+	public File getMetricsFile() {
+		return metricsFile;
+	}
+
+	/**
+	 * Set the file to which build metrics are written after each build.
+	 *
+	 * @param file
+	 */
+	public void setMetricsFile(File file) {
+		this.metricsFile = file;
+		if (metrics == BuildMetrics.NULL) {
+			metrics = new BuildMetrics();
+		}
+	}
+
+	/**
+	 * Get the metrics recorded during the last build. These are only recorded
+	 * when a metrics file is given.
+	 *
+	 * @return
+	 */
+	public BuildMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Set the directory of the cache used to restore previously generated
+	 * files.
+	 *
+	 * @param dir
+	 *            --- The cache directory, or null if no cache should be used.
+	 */
+	public void setCacheDir(File dir) {
+		if (dir != null && !BuildCache.isSupported()) {
+			syserr.println("compile: cache disabled, since the compiler version cannot be determined");
+			dir = null;
+		}
+		this.cache = dir == null ? null : new BuildCache(dir);
+	}
+
+	public boolean isLowMemory() {
+		return lowMemory;
+	}
+
+	public void setLowMemory(boolean lowMemory) {
+		this.lowMemory = lowMemory;
+	}
+
+	public boolean isSlicing() {
+		return slicing;
+	}
+
+	public void setSlicing(boolean slicing) {
+		this.slicing = slicing;
+	}
+
+	public long getProofBudget() {
+		return proofBudget;
+	}
+
+	/**
+	 * Set the modules already decoded from entries of the library roots. These
+	 * are used in place of decoding those entries and, hence, the entries of
+	 * the library roots are never read or modified by this command. This
+	 * allows the same library roots to be shared by commands running at the
+	 * same time.
+	 *
+	 * @param modules
+	 *            --- Modules indexed by the entry they were decoded from,
+	 *            which must not subsequently change.
+	 */
+	public void setSharedModules(Map<Path.Entry<?>, WyilFile> modules) {
+		this.sharedModules = modules;
+		this.typeSystem = null;
+	}
+
+	/**
+	 * Set the time allowed for proving each assertion. An assertion which is
+	 * not proven within this time is reported as an error.
+	 *
+	 * @param budget
+	 *            --- The time in milliseconds, or zero for no limit.
+	 */
+	public void setProofBudget(long budget) {
+		if (budget < 0) {
+			throw new IllegalArgumentException("invalid proof budget: " + budget);
+		}
+		this.proofBudget = budget;
+	}
+
+	public boolean isPersistent() {
+		return persistent;
+	}
+
+	public boolean getWatch() {
+		return watch;
+	}
+
+	public void setWatch(boolean watch) {
+		this.watch = watch;
+	}
+
+	public void setPersistent(boolean persistent) {
+		this.persistent = persistent;
+		this.project = null;
+	}
+
 // =======================================================================
 	// Execute
 	// =======================================================================
@@ -294,11 +684,15 @@ public class Compile extends AbstractProjectCommand<Compile.Result> {
 				}
 			}
 			// Finalise the configuration before continuing.
-			StdProject project = initialiseProject();
+			StdProject project = getProject();
 			// Determine source files to build
-			List<Path.Entry<WhileyFile>> entries = whileydir.find(delta, WhileyFile.ContentType);
+			List<Path.Entry<WhileyFile>> entries = findSourceFiles(delta);
 			// Execute the build over the set of files requested
-			return compile(project,entries);
+			Result result = compile(project,entries);
+			if (watch) {
+				result = watch();
+			}
+			return result;
 		} catch(RuntimeException e) {
 			throw e;
 		} catch (Exception e) {
@@ -309,7 +703,7 @@ public class Compile extends AbstractProjectCommand<Compile.Result> {
 
 	public Result execute(List<Path.Entry<WhileyFile>> entries) {
 		try {
-			StdProject project = initialiseProject();
+			StdProject project = getProject();
 			return compile(project,entries);
 		} catch (RuntimeException e) {
 			throw e;
@@ -326,18 +720,50 @@ public class Compile extends AbstractProjectCommand<Compile.Result> {
 	protected Result compile(StdProject project, List<Path.Entry<WhileyFile>> entries) {
 		// Initialise Project
 		try {
-			addCompilationBuildRules(project);
-			if (verify || verificationConditions) {
-				addVerificationBuildRules(project);
+			// Files from a previous build which failed part way through must
+			// be on disk before any are regenerated.
+			awaitFlush();
+			metrics.clear();
+			BuildMetrics.Timer timer = metrics.start("build", null);
+			if (project != this.project) {
+				// Build rules for a persistent project are added only once
+				addBuildRules(project);
 			}
 			// =====================================================================
 			// Build Delta + Santity Check
 			// =====================================================================
 			// Build the source files
 			project.build(entries);
-			// Force all binary files to be written to disk (if appropriate)
-			wyildir.flush();
-			wyaldir.flush();
+			if (incremental || watch) {
+				// Rebuilding one file may change its interface and, hence,
+				// invalidate others. Therefore, iterate until no more remain.
+				// Each pass must invalidate a different set of files, since
+				// otherwise rebuilding them has not brought them up to date
+				// and never will.
+				HashSet<List<Path.Entry<WhileyFile>>> rebuilt = new HashSet<>();
+				List<Path.Entry<WhileyFile>> invalidated = getInvalidatedSourceFiles(project);
+				while (!invalidated.isEmpty()) {
+					if (!rebuilt.add(invalidated)) {
+						throw new IllegalStateException("files remain invalidated after being rebuilt: " + invalidated);
+					}
+					project.build(invalidated);
+					invalidated = getInvalidatedSourceFiles(project);
+				}
+			}
+			// Write all binary files to disk (if appropriate). Both roots are
+			// written concurrently, but the build is not complete until both
+			// are on disk. Otherwise, a client of a persistent command could
+			// be told the build had finished before its files existed.
+			if (artifacts) {
+				flush(wyildir);
+				flush(wyaldir);
+				awaitFlush();
+				if (persistent || watch) {
+					releaseWrittenEntries(wyildir, Content.filter("**", WyilFile.ContentType));
+				}
+			}
+			timer.stop(entries.size());
+			writeMetrics();
 			//
 			return Result.SUCCESS;
 		} catch(InternalFailure e) {
@@ -351,6 +777,7 @@ public class Compile extends AbstractProjectCommand<Compile.Result> {
 			if (verbose) {
 				printStackTrace(syserr, e);
 			}
+			writeMetrics();
 			return Result.ERRORS;
 		} catch (Exception e) {
 			// now what?
@@ -358,6 +785,181 @@ public class Compile extends AbstractProjectCommand<Compile.Result> {
 		}
 	}
 
+	/**
+	 * Write the metrics recorded for the last build to the metrics file (if
+	 * one was given). Failing to do so does not cause the build to fail.
+	 */
+	private void writeMetrics() {
+		if (metricsFile != null) {
+			try (FileWriter out = new FileWriter(metricsFile)) {
+				if (metricsFile.getName().endsWith(".csv")) {
+					metrics.writeCSV(out);
+				} else {
+					metrics.writeJSON(out);
+				}
+			} catch (IOException e) {
+				syserr.println("compile: unable to write metrics to " + metricsFile + " (" + e.getMessage() + ")");
+			}
+		}
+	}
+
+	/**
+	 * Write all modified files in a given root to disk in the background. The
+	 * write must be awaited using <code>awaitFlush()</code>.
+	 *
+	 * @param root
+	 */
+	private synchronized void flush(final Path.Root root) {
+		if (flusher == null) {
+			flusher = Executors.newCachedThreadPool(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "wyc-flush");
+					// Every build awaits its writes before completing, so
+					// these threads are idle whenever the JVM may exit.
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		pendingFlushes.add(flusher.submit(new Callable<Void>() {
+			@Override
+			public Void call() throws Exception {
+				root.flush();
+				return null;
+			}
+		}));
+	}
+
+	/**
+	 * Wait for any writes still in progress to complete. If any failed, the
+	 * first failure is rethrown.
+	 *
+	 * @throws IOException
+	 */
+	private synchronized void awaitFlush() throws IOException {
+		try {
+			for (Future<Void> f : pendingFlushes) {
+				f.get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException(e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException(e.getCause());
+		} finally {
+			pendingFlushes.clear();
+		}
+	}
+
+	/**
+	 * Get the project to be compiled. Normally, this constructs a new project.
+	 * However, if this command is persistent, the project constructed by the
+	 * first execution is returned (with its build rules already added). In
+	 * such case, those source and binary entries whose files have changed
+	 * since the last execution are refreshed.
+	 *
+	 * @return
+	 * @throws IOException
+	 */
+	protected StdProject getProject() throws IOException {
+		if (!persistent && !watch) {
+			return initialiseProject();
+		} else if (project == null) {
+			project = initialiseProject();
+			addBuildRules(project);
+		}
+		refreshChangedEntries(whileydir, whileyIncludes);
+		// The type system caches what it resolves from modules until they are
+		// invalidated, so it must be told of those which have changed.
+		ModuleCache modules = getTypeSystem(project).modules();
+		for (Path.Entry<WyilFile> entry : refreshChangedEntries(wyildir, Content.filter("**", WyilFile.ContentType))) {
+			modules.invalidate(entry.id());
+		}
+		return project;
+	}
+
+	/**
+	 * Refresh those entries of a given root whose files have been changed on
+	 * disk since they were last seen. Refreshing an entry discards whatever was
+	 * loaded from it. Hence, refreshing the roots wholesale would throw away
+	 * every parsed source file and decoded WyIL file, which is exactly what a
+	 * persistent command is meant to retain. Entries with changes not yet
+	 * written to disk are left alone, since they are newer than their files.
+	 *
+	 * @param root
+	 * @param filter
+	 * @return The entries which were refreshed.
+	 * @throws IOException
+	 */
+	private <T> List<Path.Entry<T>> refreshChangedEntries(Path.Root root, Content.Filter<T> filter)
+			throws IOException {
+		ArrayList<Path.Entry<T>> refreshed = new ArrayList<>();
+		for (Path.Entry<T> entry : root.get(filter)) {
+			long lastModified = entry.lastModified();
+			Long previous = timestamps.put(entry, lastModified);
+			if (previous != null && previous != lastModified && !entry.isModified()) {
+				entry.refresh();
+				refreshed.add(entry);
+			}
+		}
+		return refreshed;
+	}
+
+	/**
+	 * Record the current modification time of every entry in a given root
+	 * which has just been written to disk, so that the write is not mistaken
+	 * for an external change. The contents of each entry are also discarded,
+	 * since a persistent command would otherwise retain every file it had
+	 * generated, regardless of the module cache.
+	 *
+	 * @param root
+	 * @param filter
+	 * @throws IOException
+	 */
+	private <T> void releaseWrittenEntries(Path.Root root, Content.Filter<T> filter) throws IOException {
+		for (Path.Entry<T> entry : root.get(filter)) {
+			timestamps.put(entry, entry.lastModified());
+			if (!entry.isModified()) {
+				entry.refresh();
+			}
+		}
+	}
+
+	/**
+	 * Determine the source entries corresponding to a given list of files. A
+	 * persistent command may be asked to compile a file created after its
+	 * source root was last scanned, in which case the root is rescanned.
+	 *
+	 * @param files
+	 * @return
+	 * @throws IOException
+	 */
+	private List<Path.Entry<WhileyFile>> findSourceFiles(List<File> files) throws IOException {
+		List<Path.Entry<WhileyFile>> entries = whileydir.find(files, WhileyFile.ContentType);
+		if (entries.size() < files.size() && (persistent || watch)) {
+			whileydir.refresh();
+			entries = whileydir.find(files, WhileyFile.ContentType);
+		}
+		return entries;
+	}
+
+	/**
+	 * Add all build rules necessary for this command, as determined by its
+	 * configuration.
+	 *
+	 * @param project
+	 */
+	protected void addBuildRules(StdProject project) {
+		addCompilationBuildRules(project);
+		if ((verify || verificationConditions) && !pipeline) {
+			addVerificationBuildRules(project);
+		}
+	}
+
 	/**
 	 * Add build rules necessary for compiling whiley source files into binary
 	 * wyil files.
@@ -375,11 +977,22 @@ public class Compile extends AbstractProjectCommand<Compile.Result> {
 	 */
 	protected void addWhiley2WyilBuildRule(StdProject project) {
 		// Rule for compiling Whiley to WyIL
-		CompileTask wyilBuilder = new CompileTask(project);
+		CompileTask wyilBuilder = new CompileTask(project, getTypeSystem(project));
 		wyilBuilder.setGenerateLoopInvariants(this.generateLoopInvariant);
+		wyilBuilder.setThreads(this.threads);
+		wyilBuilder.setMetrics(metrics);
+		wyilBuilder.setCache(cache);
+		wyilBuilder.setLowMemory(lowMemory);
 		if(verbose) {
 			wyilBuilder.setLogger(logger);
 		}
+		if ((verify || verificationConditions) && pipeline) {
+			// Verification is driven directly by the compile task, rather
+			// than by separate build rules.
+			Wyil2WyalBuilder wyalBuilder = createWyil2WyalBuilder(project);
+			wyilBuilder.addDownstream(wyalBuilder, wyaldir);
+			wyilBuilder.addDownstream(createVerifier(project, wyalBuilder), wycsdir);
+		}
 		project.add(new StdBuildRule(wyilBuilder, whileydir, whileyIncludes, whileyExcludes, wyildir));
 	}
 
@@ -396,14 +1009,77 @@ public class Compile extends AbstractProjectCommand<Compile.Result> {
 		Content.Filter<WyalFile> wyalIncludes = Content.filter("**", WyalFile.ContentType);
 		Content.Filter<WyalFile> wyalExcludes = null;
 		// Rule for compiling WyIL to WyAL
-		Wyil2WyalBuilder wyalBuilder = new Wyil2WyalBuilder(project);
+		Wyil2WyalBuilder wyalBuilder = createWyil2WyalBuilder(project);
+		project.add(new StdBuildRule(wyalBuilder, wyildir, wyilIncludes, wyilExcludes, wyaldir));
+		// Rule for verifying WyAL
+		project.add(new StdBuildRule(createVerifier(project, wyalBuilder), wyaldir, wyalIncludes, wyalExcludes,
+				wycsdir));
+	}
+
+	/**
+	 * Create the task responsible for translating WyIL files into WyAL files.
+	 *
+	 * @param project
+	 * @return
+	 */
+	protected Wyil2WyalBuilder createWyil2WyalBuilder(StdProject project) {
+		Wyil2WyalBuilder wyalBuilder = new Wyil2WyalBuilder(project, getTypeSystem(project));
 		if(verbose) {
 			wyalBuilder.setLogger(logger);
 		}
-		project.add(new StdBuildRule(wyalBuilder, wyildir, wyilIncludes, wyilExcludes, wyaldir));
-		//
+		wyalBuilder.setFlush(artifacts);
+		wyalBuilder.setMetrics(metrics);
+		wyalBuilder.setCache(cache);
+		wyalBuilder.setThreads(threads);
+		wyalBuilder.setSlicing(slicing);
+		if (cache != null && verify) {
+			wyalBuilder.setProofCache(new ProofCache(cache, proverVersion(), getTypeSystem(project).modules()));
+		}
+		return wyalBuilder;
+	}
+
+	/**
+	 * Create the task responsible for verifying the WyAL files generated by a
+	 * given builder. When the builder omits previously proven assertions, the
+	 * task also records those assertions it proves.
+	 *
+	 * @param project
+	 * @param wyalBuilder
+	 * @return
+	 */
+	protected Build.Task createVerifier(StdProject project, Wyil2WyalBuilder wyalBuilder) {
+		ProofCache proofs = wyalBuilder.getProofCache();
+		wyal.tasks.CompileTask wyalBuildTask = createWyalBuildTask(project, proofs);
+		return proofs == null ? wyalBuildTask : proofs.record(wyalBuildTask);
+	}
+
+	/**
+	 * Determine the version of the prover, which identifies the proofs it
+	 * finds in the proof cache.
+	 *
+	 * @return
+	 */
+	private static String proverVersion() {
+		String version = AutomatedTheoremProver.class.getPackage().getImplementationVersion();
+		return version == null ? "dev" : version;
+	}
+
+	/**
+	 * Create the task responsible for checking (and, if requested, verifying)
+	 * WyAL files.
+	 *
+	 * @param project
+	 * @param proofs
+	 *            --- Proof cache notified of any assertion which is not
+	 *            proven, or null.
+	 * @return
+	 */
+	protected wyal.tasks.CompileTask createWyalBuildTask(StdProject project, ProofCache proofs) {
 		wytp.types.TypeSystem typeSystem = new wytp.types.TypeSystem(project);
-		AutomatedTheoremProver prover = new AutomatedTheoremProver(typeSystem);
+		// The prover records the outcome of each assertion in the build
+		// metrics, and enforces the proof budget (if any).
+		InstrumentedProver prover = new InstrumentedProver(project, typeSystem, metrics, proofBudget);
+		prover.setProofCache(proofs);
 		wyal.tasks.CompileTask wyalBuildTask = new wyal.tasks.CompileTask(project,typeSystem,prover);
 		if(verbose) {
 			wyalBuildTask.setLogger(logger);
@@ -412,8 +1088,166 @@ public class Compile extends AbstractProjectCommand<Compile.Result> {
 			prover.setPrintProof(true);
 		}
 		wyalBuildTask.setVerify(verify);
-		//
-		project.add(new StdBuildRule(wyalBuildTask, wyaldir, wyalIncludes, wyalExcludes, wycsdir));
+		return wyalBuildTask;
+	}
+
+	/**
+	 * Get the type system for a given project. A single instance is shared
+	 * between all build rules added for the same project.
+	 *
+	 * @param project
+	 * @return
+	 */
+	protected TypeSystem getTypeSystem(StdProject project) {
+		if (typeSystem == null || typeSystem.project() != project) {
+			typeSystem = new TypeSystem(project, new ModuleCache(project, sharedModules));
+		}
+		return typeSystem;
+	}
+
+	/**
+	 * Watch the source directory for changes, recompiling any changed source
+	 * files as they arise. The project is retained between builds and, hence,
+	 * only changed files (and any files depending upon their interface) are
+	 * recompiled. When a source file is deleted, the files generated from it
+	 * are deleted as well. This continues until the calling thread is
+	 * interrupted or the JVM shuts down and, in either case, any writes still
+	 * in progress are completed first.
+	 *
+	 * @return
+	 * @throws IOException
+	 */
+	protected Result watch() throws IOException {
+		File root = whileydir.location();
+		Thread shutdown = new Thread("wyc-shutdown") {
+			@Override
+			public void run() {
+				try {
+					awaitFlush();
+				} catch (IOException e) {
+					printStackTrace(syserr, e);
+				}
+			}
+		};
+		Runtime.getRuntime().addShutdownHook(shutdown);
+		try (WatchService watcher = FileSystems.getDefault().newWatchService()) {
+			register(root.toPath(), watcher);
+			sysout.println("compile: watching " + root);
+			while (true) {
+				WatchKey key = watcher.take();
+				// Wait until changes stop arriving before rebuilding
+				LinkedHashSet<File> changed = new LinkedHashSet<>();
+				LinkedHashSet<File> deleted = new LinkedHashSet<>();
+				while (key != null) {
+					java.nio.file.Path dir = (java.nio.file.Path) key.watchable();
+					for (WatchEvent<?> event : key.pollEvents()) {
+						if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+							continue;
+						}
+						java.nio.file.Path file = dir.resolve((java.nio.file.Path) event.context());
+						if (Files.isDirectory(file)) {
+							register(file, watcher);
+						} else if (!file.toString().endsWith(".whiley")) {
+							continue;
+						} else if (Files.exists(file)) {
+							changed.add(file.toFile());
+							deleted.remove(file.toFile());
+						} else {
+							deleted.add(file.toFile());
+							changed.remove(file.toFile());
+						}
+					}
+					key.reset();
+					key = watcher.poll(WATCH_DELAY, TimeUnit.MILLISECONDS);
+				}
+				if (!deleted.isEmpty()) {
+					remove(root, deleted);
+				}
+				if (!changed.isEmpty() || !deleted.isEmpty()) {
+					rebuild(new ArrayList<>(changed));
+				}
+			}
+		} catch (InterruptedException e) {
+			// Clear the interrupt whilst waiting for writes to complete
+			awaitFlush();
+			Thread.currentThread().interrupt();
+			return Result.SUCCESS;
+		} finally {
+			try {
+				Runtime.getRuntime().removeShutdownHook(shutdown);
+			} catch (IllegalStateException e) {
+				// The JVM is already shutting down
+			}
+		}
+	}
+
+	private void rebuild(List<File> files) throws IOException {
+		StdProject project = getProject();
+		List<Path.Entry<WhileyFile>> entries = findSourceFiles(files);
+		try {
+			// Files which depended on a deleted file are found to be
+			// invalidated, even when nothing else has changed.
+			Result result = compile(project, entries);
+			sysout.println("compile: rebuilt " + entries.size() + " changed file(s) (" + result + ")");
+		} catch (RuntimeException e) {
+			// Internal failures should not stop the watch
+			printStackTrace(syserr, e);
+		}
+	}
+
+	/**
+	 * Remove the files generated from a given set of deleted source files.
+	 * Otherwise, the stale WyIL and WyAL files would remain visible to the
+	 * project, and any file depending on a deleted file would continue to
+	 * compile against it. Since deletions are rare, the roots are then simply
+	 * rescanned.
+	 *
+	 * @param root
+	 *            --- The directory containing the deleted source files.
+	 * @param files
+	 *            --- The deleted source files.
+	 * @throws IOException
+	 */
+	private void remove(File root, Collection<File> files) throws IOException {
+		// Any generated files still being written must be on disk before they
+		// are deleted.
+		awaitFlush();
+		for (File file : files) {
+			String name = root.toPath().relativize(file.toPath()).toString();
+			name = name.substring(0, name.length() - ".whiley".length());
+			Files.deleteIfExists(new File(wyildir.location(), name + ".wyil").toPath());
+			if (wyaldir instanceof DirectoryRoot) {
+				File dir = ((DirectoryRoot) wyaldir).location();
+				Files.deleteIfExists(new File(dir, name + ".wyal").toPath());
+			}
+		}
+		whileydir.refresh();
+		wyildir.refresh();
+		wyaldir.refresh();
+		timestamps.clear();
+		getTypeSystem(project).modules().clear();
+		sysout.println("compile: removed " + files.size() + " deleted file(s)");
+	}
+
+	/**
+	 * Register a directory, along with all of its subdirectories, with a given
+	 * watch service.
+	 *
+	 * @param dir
+	 * @param watcher
+	 * @throws IOException
+	 */
+	private static void register(java.nio.file.Path dir, WatchService watcher) throws IOException {
+		try (Stream<java.nio.file.Path> dirs = Files.walk(dir)) {
+			Iterator<java.nio.file.Path> i = dirs.iterator();
+			while (i.hasNext()) {
+				java.nio.file.Path d = i.next();
+				if (Files.isDirectory(d)) {
+					d.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY,
+							StandardWatchEventKinds.ENTRY_DELETE);
+				}
+			}
+		}
 	}
 
 	public void findCounterexamples(WyalFile.Declaration.Assert assertion, StdProject project) {
@@ -469,6 +1303,105 @@ public class Compile extends AbstractProjectCommand<Compile.Result> {
 		return sources;
 	}
 
+	/**
+	 * Generate the list of source files which need to be recompiled because
+	 * the interface of some module they were compiled against has since
+	 * changed. This is determined by comparing the interface hashes recorded
+	 * in each wyil file against those of the modules currently in the project.
+	 * Source files without a corresponding wyil file are ignored, since they
+	 * are handled by <code>getModifiedSourceFiles()</code>.
+	 *
+	 * @param project
+	 * @return
+	 * @throws IOException
+	 */
+	public List<Path.Entry<WhileyFile>> getInvalidatedSourceFiles(StdProject project) throws IOException {
+		ArrayList<Path.Entry<WhileyFile>> sources = new ArrayList<>();
+		if (whileydir == null) {
+			return sources;
+		}
+		ModuleCache modules = getTypeSystem(project).modules();
+		HashMap<Path.ID, Long> hashes = new HashMap<>();
+		for (Path.Entry<WhileyFile> source : whileydir.get(whileyIncludes)) {
+			Path.Entry<WyilFile> binary = wyildir.get(source.id(), WyilFile.ContentType);
+			if (binary != null) {
+				for (Map.Entry<Path.ID, Long> dependency : readDependencies(binary, modules).entrySet()) {
+					Path.ID id = dependency.getKey();
+					Long hash = hashes.get(id);
+					if (hash == null) {
+						Path.Entry<WyilFile> module = project.get(id, WyilFile.ContentType);
+						// A module which has been removed is given a hash
+						// which cannot match
+						hash = module == null ? null : getInterfaceHash(module, modules);
+						hashes.put(id, hash);
+					}
+					if (!dependency.getValue().equals(hash)) {
+						sources.add(source);
+						break;
+					}
+				}
+			}
+		}
+		return sources;
+	}
+
+	/**
+	 * Get the dependency table of a given WyIL file. Only the header of the
+	 * file is read for this and, where the file is unchanged since its table
+	 * was last read, nothing is read at all.
+	 *
+	 * @param binary
+	 * @param modules
+	 *            --- The cache through which the file is obtained, if it has
+	 *            been written in memory only.
+	 * @return
+	 * @throws IOException
+	 */
+	private synchronized Map<Path.ID, Long> readDependencies(Path.Entry<WyilFile> binary, ModuleCache modules)
+			throws IOException {
+		if (binary.isModified()) {
+			// The file has been written in memory but not to disk and, hence,
+			// is already decoded.
+			return modules.get(binary).dependencies();
+		}
+		long lastModified = binary.lastModified();
+		Pair<Long, Map<Path.ID, Long>> cached = dependencyTables.get(binary.id());
+		if (cached == null || cached.first() != lastModified) {
+			WyilFileReader reader = new WyilFileReader(binary);
+			try {
+				cached = new Pair<>(lastModified, reader.readDependencies());
+			} finally {
+				reader.close();
+			}
+			dependencyTables.put(binary.id(), cached);
+		}
+		return cached.second();
+	}
+
+	/**
+	 * Get the interface hash of a given module. This is only recomputed when
+	 * the module has changed since its hash was last computed.
+	 *
+	 * @param module
+	 * @param modules
+	 *            --- The cache through which the module is obtained.
+	 * @return
+	 * @throws IOException
+	 */
+	private synchronized long getInterfaceHash(Path.Entry<WyilFile> module, ModuleCache modules)
+			throws IOException {
+		if (module.isModified()) {
+			return ModuleInterface.hash(modules.get(module));
+		}
+		long lastModified = module.lastModified();
+		Pair<Long, Long> cached = interfaceHashes.get(module.id());
+		if (cached == null || cached.first() != lastModified) {
+			cached = new Pair<>(lastModified, ModuleInterface.hash(modules.get(module)));
+			interfaceHashes.put(module.id(), cached);
+		}
+		return cached.second();
+	}
+
 	/**
 	 * Print a complete stack trace. This differs from
 	 * Throwable.printStackTrace() in that it always prints all of the trace.
@@ -67,6 +67,12 @@ public abstract class AbstractProjectCommand<T> implements Command<T> {
 	 */
 	protected Path.Root wycsdir;
 
+	/**
+	 * The root containing the standard library, or null if this should be
+	 * determined from the "wdk.bootpath" system property.
+	 */
+	protected Path.Root bootpath;
+
 	/**
 	 * The logger used for logging system events
 	 */
@@ -165,6 +171,28 @@ public abstract class AbstractProjectCommand<T> implements Command<T> {
 		}
 	}
 
+	/**
+	 * Set the roots in which to find compiled Whiley (WyIL) files. This allows
+	 * the same roots (and, hence, any files already loaded from them) to be
+	 * shared between commands.
+	 *
+	 * @param roots
+	 */
+	public void setWhileypath(List<Path.Root> roots) {
+		whileypath.clear();
+		whileypath.addAll(roots);
+	}
+
+	/**
+	 * Set the root containing the standard library. If this is not set, the
+	 * root is determined by the "wdk.bootpath" system property (if given).
+	 *
+	 * @param root
+	 */
+	public void setBootpath(Path.Root root) {
+		this.bootpath = root;
+	}
+
 	public void setWhileydir(File dir) throws IOException {
 		this.whileydir = new DirectoryRoot(dir,registry);
 	}
@@ -227,9 +255,13 @@ public abstract class AbstractProjectCommand<T> implements Command<T> {
 	 */
 	protected void addBootpath(List<Path.Root>roots) throws IOException {
 		// Configure boot path
-		String bootpath = System.getProperty("wdk.bootpath");
 		if (bootpath != null) {
-			roots.add(new JarFileRoot(bootpath, registry));
+			roots.add(bootpath);
+			return;
+		}
+		String path = System.getProperty("wdk.bootpath");
+		if (path != null) {
+			roots.add(new JarFileRoot(path, registry));
 		}
 	}
 
@@ -105,6 +105,10 @@ public class AntTask extends MatchingTask {
 		command.setVerbose(b);
 	}
 
+	public void setIncremental(boolean b) {
+		command.setIncremental(b);
+	}
+
 	@Override
 	public void setIncludes(String includes) {
 		String[] split = includes.split(",");
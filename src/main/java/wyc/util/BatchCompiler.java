@@ -0,0 +1,267 @@
+// Copyright (c) 2011, David J. Pearce (djp@ecs.vuw.ac.nz)
+// All rights reserved.
+//
+// This software may be modified and distributed under the terms
+// of the BSD license.  See the LICENSE file for details.
+package wyc.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+
+import wyc.commands.Compile;
+import wycc.util.Logger;
+import wycc.util.Pair;
+import wyfs.lang.Content;
+import wyfs.lang.Path;
+import wyfs.util.JarFileRoot;
+import wyil.lang.WyilFile;
+import wyil.util.ModuleCache;
+
+/**
+ * <p>
+ * Compiles many independent projects (e.g. test programs) within a single
+ * JVM, possibly at the same time. Each project is compiled by its own
+ * <code>Compile</code> command and, hence, has its own roots, build rules and
+ * type system. However, the content registry and the library roots (i.e. the
+ * standard library and any other whileypath roots) are shared between all
+ * projects. Every WyIL file in the library roots is decoded once, when the
+ * batch compiler is constructed, and the decoded modules are then shared
+ * (read-only) by all projects. The entries of the library roots are not
+ * themselves shared, since reading an entry modifies it. Thus, no project
+ * reads from (or refreshes) those entries.
+ * </p>
+ * <p>
+ * This avoids the cost of starting a fresh JVM, and of decoding the standard
+ * library afresh, for every project.
+ * </p>
+ *
+ * @author David J. Pearce
+ *
+ */
+public class BatchCompiler {
+	private final Content.Registry registry;
+
+	/**
+	 * The root containing the standard library, or null if there is none.
+	 */
+	private final Path.Root bootpath;
+
+	/**
+	 * Any other library roots shared by all projects.
+	 */
+	private final List<Path.Root> whileypath;
+
+	/**
+	 * The number of projects compiled at the same time.
+	 */
+	private final int threads;
+
+	/**
+	 * The modules decoded from the library roots, indexed by the entry they
+	 * were decoded from. This is never modified once constructed.
+	 */
+	private final Map<Path.Entry<?>, WyilFile> modules;
+
+	/**
+	 * Construct a batch compiler whose standard library is determined by the
+	 * "wdk.bootpath" system property (if given).
+	 *
+	 * @param registry
+	 * @param threads
+	 *            Number of projects to compile at the same time.
+	 * @throws IOException
+	 */
+	public BatchCompiler(Content.Registry registry, int threads) throws IOException {
+		this(registry, bootpath(registry), new ArrayList<Path.Root>(), threads);
+	}
+
+	/**
+	 * Construct a batch compiler with a given set of library roots.
+	 *
+	 * @param registry
+	 * @param bootpath
+	 *            Root containing the standard library, or null if none.
+	 * @param whileypath
+	 *            Other library roots.
+	 * @param threads
+	 *            Number of projects to compile at the same time.
+	 * @throws IOException
+	 */
+	public BatchCompiler(Content.Registry registry, Path.Root bootpath, List<Path.Root> whileypath, int threads)
+			throws IOException {
+		if (threads < 1) {
+			throw new IllegalArgumentException("invalid number of threads: " + threads);
+		}
+		this.registry = registry;
+		this.bootpath = bootpath;
+		this.whileypath = new ArrayList<>(whileypath);
+		this.threads = threads;
+		// Decode all library modules up front. Thereafter, projects obtain
+		// library modules from here and, hence, the library roots are only
+		// used to look up entries.
+		IdentityHashMap<Path.Entry<?>, WyilFile> modules = new IdentityHashMap<>();
+		if (bootpath != null) {
+			preload(bootpath, modules);
+		}
+		for (Path.Root root : whileypath) {
+			preload(root, modules);
+		}
+		this.modules = Collections.unmodifiableMap(modules);
+	}
+
+	/**
+	 * Compile a single project.
+	 *
+	 * @param job
+	 * @return The result of compilation, along with any output produced.
+	 */
+	public Pair<Compile.Result, String> compile(Job job) {
+		ByteArrayOutputStream syserr = new ByteArrayOutputStream();
+		ByteArrayOutputStream sysout = new ByteArrayOutputStream();
+		Compile cmd = new Compile(registry, Logger.NULL, sysout, syserr);
+		Compile.Result result;
+		try {
+			cmd.setBootpath(bootpath);
+			cmd.setWhileypath(whileypath);
+			cmd.setSharedModules(modules);
+			cmd.setWhileydir(job.whileydir);
+			cmd.setWyaldir(job.whileydir);
+			cmd.setVerify(job.verify);
+			cmd.setGenerateLoopInvariant(job.generateLoopInvariants);
+			cmd.setArtifacts(job.artifacts);
+			result = cmd.execute(job.files);
+		} catch (IOException e) {
+			e.printStackTrace(new PrintStream(syserr, true));
+			result = Compile.Result.INTERNAL_FAILURE;
+		}
+		String output = new String(syserr.toByteArray()) + new String(sysout.toByteArray());
+		return new Pair<>(result, output);
+	}
+
+	/**
+	 * Compile a number of independent projects, returning their results in
+	 * the same order. Up to the configured number of projects are compiled at
+	 * the same time.
+	 *
+	 * @param jobs
+	 * @return
+	 */
+	public List<Pair<Compile.Result, String>> compile(List<Job> jobs) {
+		ArrayList<Pair<Compile.Result, String>> results = new ArrayList<>();
+		if (threads == 1 || jobs.size() <= 1) {
+			for (Job job : jobs) {
+				results.add(compile(job));
+			}
+			return results;
+		}
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, jobs.size()));
+		try {
+			ArrayList<Future<Pair<Compile.Result, String>>> futures = new ArrayList<>();
+			for (final Job job : jobs) {
+				futures.add(executor.submit(new Callable<Pair<Compile.Result, String>>() {
+					@Override
+					public Pair<Compile.Result, String> call() {
+						return compile(job);
+					}
+				}));
+			}
+			for (Future<Pair<Compile.Result, String>> future : futures) {
+				try {
+					results.add(future.get());
+				} catch (ExecutionException e) {
+					// Internal failures are not confined to a single project
+					Throwable cause = e.getCause();
+					if (cause instanceof RuntimeException) {
+						throw (RuntimeException) cause;
+					} else {
+						throw (Error) cause;
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new RuntimeException(e);
+				}
+			}
+			return results;
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	private static Path.Root bootpath(Content.Registry registry) throws IOException {
+		String path = System.getProperty("wdk.bootpath");
+		return path == null ? null : new JarFileRoot(path, registry);
+	}
+
+	/**
+	 * Decode every module in a given library root. The entries themselves are
+	 * not read, so they do not retain what is decoded.
+	 *
+	 * @param root
+	 * @param modules
+	 *            --- The map to which each decoded module is added.
+	 * @throws IOException
+	 */
+	private static void preload(Path.Root root, Map<Path.Entry<?>, WyilFile> modules) throws IOException {
+		for (Path.Entry<WyilFile> entry : root.get(Content.filter("**", WyilFile.ContentType))) {
+			modules.put(entry, ModuleCache.decode(entry));
+		}
+	}
+
+	/**
+	 * Describes a single project to be compiled.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	public static final class Job {
+		private final File whileydir;
+		private final String[] files;
+		private boolean verify;
+		private boolean generateLoopInvariants;
+		private boolean artifacts = true;
+
+		/**
+		 * Construct a job which compiles the given source files, found in
+		 * the given directory.
+		 *
+		 * @param whileydir
+		 *            Directory containing the source files (where the WyIL
+		 *            files are also placed).
+		 * @param files
+		 *            The source files to compile.
+		 */
+		public Job(File whileydir, String... files) {
+			this.whileydir = whileydir;
+			this.files = files;
+		}
+
+		public Job setVerify(boolean verify) {
+			this.verify = verify;
+			return this;
+		}
+
+		public Job setGenerateLoopInvariants(boolean generateLoopInvariants) {
+			this.generateLoopInvariants = generateLoopInvariants;
+			return this;
+		}
+
+		/**
+		 * Set whether generated files should be written to disk.
+		 *
+		 * @param artifacts
+		 * @return
+		 */
+		public Job setArtifacts(boolean artifacts) {
+			this.artifacts = artifacts;
+			return this;
+		}
+	}
+}
@@ -0,0 +1,108 @@
+// Copyright (c) 2011, David J. Pearce (djp@ecs.vuw.ac.nz)
+// All rights reserved.
+//
+// This software may be modified and distributed under the terms
+// of the BSD license.  See the LICENSE file for details.
+package wyc.util;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+import wyc.commands.Compile;
+
+/**
+ * A thin client for the compile server, which forwards a single compilation
+ * request to a server running on the local machine and prints its response.
+ * The arguments are those which would otherwise be given to the compiler.
+ * Since the server may have a different working directory, any file names
+ * (including those given as values of the <code>whileypath</code> or
+ * directory options) are made absolute before being sent. Lines of output
+ * escaped by the server are unescaped before being printed.
+ *
+ * @author David J. Pearce
+ *
+ */
+public class CompileClient {
+
+	/**
+	 * Send a request to a compile server listening on a given port, and copy
+	 * the output of the compiler to a given stream.
+	 *
+	 * @param port
+	 * @param args
+	 * @param output
+	 * @return
+	 * @throws IOException
+	 */
+	public static Compile.Result compile(int port, List<String> args, PrintStream output) throws IOException {
+		try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+			PrintStream out = new PrintStream(socket.getOutputStream(), false, "UTF-8");
+			for (String arg : args) {
+				out.println(absolute(arg));
+			}
+			out.println();
+			out.flush();
+			BufferedReader input = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+			String line;
+			while ((line = input.readLine()) != null) {
+				if (line.startsWith(CompileServer.RESULT_PREFIX)) {
+					return Compile.Result.valueOf(line.substring(CompileServer.RESULT_PREFIX.length()));
+				} else if (!line.isEmpty() && line.charAt(0) == CompileServer.ESCAPE) {
+					// Output from the compiler which was escaped by the server
+					line = line.substring(1);
+				}
+				output.println(line);
+			}
+			// Server closed the connection without responding
+			return Compile.Result.INTERNAL_FAILURE;
+		}
+	}
+
+	private static String absolute(String arg) {
+		if (!arg.startsWith("--")) {
+			return new File(arg).getAbsolutePath();
+		}
+		int index = arg.indexOf('=');
+		if (index < 0) {
+			return arg;
+		}
+		String name = arg.substring(2, index);
+		String value = arg.substring(index + 1);
+		if (name.equals("whileypath")) {
+			String r = "";
+			for (String path : value.split(":")) {
+				r = r.isEmpty() ? absolute(path) : r + ":" + absolute(path);
+			}
+			return "--" + name + "=" + r;
+		} else if (name.endsWith("dir")) {
+			return "--" + name + "=" + absolute(value);
+		} else {
+			return arg;
+		}
+	}
+
+	/**
+	 * Forward a compilation request to a server. The port may be given as an
+	 * argument (e.g. <code>--port=4455</code>), otherwise the server's default
+	 * port is used. The remaining arguments are passed to the compiler.
+	 *
+	 * @param args
+	 * @throws IOException
+	 */
+	public static void main(String[] args) throws IOException {
+		int port = CompileServer.DEFAULT_PORT;
+		ArrayList<String> rest = new ArrayList<>();
+		for (String arg : args) {
+			if (arg.startsWith("--port=")) {
+				port = Integer.parseInt(arg.substring(7));
+			} else {
+				rest.add(arg);
+			}
+		}
+		Compile.Result result = compile(port, rest, System.out);
+		System.exit(result == Compile.Result.SUCCESS ? 0 : 1);
+	}
+}
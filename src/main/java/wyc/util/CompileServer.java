@@ -0,0 +1,335 @@
+// Copyright (c) 2011, David J. Pearce (djp@ecs.vuw.ac.nz)
+// All rights reserved.
+//
+// This software may be modified and distributed under the terms
+// of the BSD license.  See the LICENSE file for details.
+package wyc.util;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import wyc.commands.Compile;
+import wycc.lang.Feature.ConfigurationError;
+import wycc.util.Logger;
+import wyfs.lang.Content;
+
+/**
+ * <p>
+ * A long-running compile server, which avoids the cost of starting (and
+ * warming up) a fresh JVM for every compilation. The server retains one
+ * persistent <code>Compile</code> command for each distinct set of options it
+ * has been given. Thus, the project roots, parsed source files, loaded WyIL
+ * files and resolved types of each configuration remain available between
+ * requests.
+ * </p>
+ * <p>
+ * The protocol is line-based. A request consists of the arguments which would
+ * otherwise be given to the compiler, one per line, followed by an empty line.
+ * Options are written as <code>--name</code> or <code>--name=value</code> and
+ * must come before the files to compile. File names should be absolute, since
+ * they are interpreted relative to the working directory of the server. The
+ * response consists of the output of the compiler, followed by a line
+ * "<code>#result</code> <i>RESULT</i>" where <i>RESULT</i> is one of the
+ * values of <code>Compile.Result</code>. Any line of output from the compiler
+ * which begins with <code>#</code> is escaped with an additional
+ * <code>#</code>, such that it cannot be mistaken for the result. See
+ * <code>CompileClient</code> for a client which implements this protocol.
+ * </p>
+ * <p>
+ * The <code>--watch</code> option is rejected, since a request in watch mode
+ * would never complete and, hence, would block every other request.
+ * </p>
+ * <p>
+ * Requests are processed one at a time. This ensures that requests for the
+ * same configuration never interfere with each other.
+ * </p>
+ *
+ * @author David J. Pearce
+ *
+ */
+public class CompileServer {
+	/**
+	 * The port used by both the server and its clients when none is specified.
+	 */
+	public static final int DEFAULT_PORT = 4455;
+
+	/**
+	 * Prefix of the line which terminates each response.
+	 */
+	public static final String RESULT_PREFIX = "#result ";
+
+	/**
+	 * Character with which lines of compiler output are escaped, if they begin
+	 * with it.
+	 */
+	public static final char ESCAPE = '#';
+
+	/**
+	 * The content registry used for all projects.
+	 */
+	private final Content.Registry registry;
+
+	/**
+	 * The persistent commands, indexed by the options they were configured
+	 * with.
+	 */
+	private final HashMap<List<String>, Compile> commands = new HashMap<>();
+
+	/**
+	 * The output streams given to every command. These are redirected to the
+	 * client during each request.
+	 */
+	private final Redirect sysout = new Redirect();
+	private final Redirect syserr = new Redirect();
+
+	public CompileServer(Content.Registry registry) {
+		this.registry = registry;
+	}
+
+	/**
+	 * Serve requests made on a given server socket, forever. Each connection
+	 * may make any number of requests.
+	 *
+	 * @param socket
+	 * @throws IOException
+	 */
+	public void serve(ServerSocket socket) throws IOException {
+		while (true) {
+			try (Socket client = socket.accept()) {
+				BufferedReader input = new BufferedReader(new InputStreamReader(client.getInputStream(), "UTF-8"));
+				serve(input, client.getOutputStream());
+			}
+		}
+	}
+
+	/**
+	 * Serve requests read from a given input stream, until the end of that
+	 * stream is reached. Responses are written to the given output stream.
+	 *
+	 * @param input
+	 * @param output
+	 * @throws IOException
+	 */
+	public void serve(BufferedReader input, OutputStream output) throws IOException {
+		PrintStream out = new PrintStream(new BufferedOutputStream(output), true, "UTF-8");
+		Escape escape = new Escape(out);
+		PrintStream escaped = new PrintStream(escape, true, "UTF-8");
+		List<String> request;
+		while ((request = readRequest(input)) != null) {
+			Compile.Result result = execute(request, escaped);
+			escaped.flush();
+			// Ensure the result begins on a line of its own
+			escape.terminate();
+			out.println(RESULT_PREFIX + result);
+		}
+	}
+
+	/**
+	 * Execute a single request, writing any output produced by the compiler to
+	 * a given stream.
+	 *
+	 * @param args
+	 *            Options followed by the files to compile.
+	 * @param output
+	 *            Stream to which compiler output is written.
+	 * @return
+	 */
+	public Compile.Result execute(List<String> args, PrintStream output) {
+		ArrayList<String> options = new ArrayList<>();
+		int i = 0;
+		while (i < args.size() && args.get(i).startsWith("--")) {
+			String option = args.get(i++);
+			if (option.equals("--watch") || option.startsWith("--watch=")) {
+				output.println("compile: option --watch is not supported by the compile server");
+				output.flush();
+				return Compile.Result.ERRORS;
+			}
+			options.add(option);
+		}
+		String[] files = args.subList(i, args.size()).toArray(new String[0]);
+		sysout.target = output;
+		syserr.target = output;
+		try {
+			return getCommand(options).execute(files);
+		} catch (ConfigurationError e) {
+			output.println("compile: " + e.getMessage());
+			return Compile.Result.ERRORS;
+		} catch (RuntimeException e) {
+			// Internal failures should not bring down the server
+			e.printStackTrace(output);
+			return Compile.Result.INTERNAL_FAILURE;
+		} finally {
+			output.flush();
+			sysout.target = null;
+			syserr.target = null;
+		}
+	}
+
+	/**
+	 * Get the persistent command for a given set of options, constructing it
+	 * if necessary.
+	 *
+	 * @param options
+	 * @return
+	 * @throws ConfigurationError
+	 */
+	private Compile getCommand(List<String> options) throws ConfigurationError {
+		Compile command = commands.get(options);
+		if (command == null) {
+			command = new Compile(registry, Logger.NULL, sysout, syserr);
+			for (String option : options) {
+				String name = option.substring(2);
+				String value = null;
+				int index = name.indexOf('=');
+				if (index >= 0) {
+					value = name.substring(index + 1);
+					name = name.substring(0, index);
+				}
+				command.set(name, value);
+			}
+			command.setPersistent(true);
+			commands.put(options, command);
+		}
+		return command;
+	}
+
+	/**
+	 * Read a single request, which is terminated by an empty line. If the end
+	 * of the stream is reached before any arguments are read, then null is
+	 * returned.
+	 *
+	 * @param input
+	 * @return
+	 * @throws IOException
+	 */
+	private static List<String> readRequest(BufferedReader input) throws IOException {
+		ArrayList<String> args = new ArrayList<>();
+		String line;
+		while ((line = input.readLine()) != null && !line.isEmpty()) {
+			args.add(line);
+		}
+		if (line == null && args.isEmpty()) {
+			return null;
+		}
+		return args;
+	}
+
+	/**
+	 * An output stream which forwards to a given target, or discards
+	 * everything when there is no target.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	private static final class Redirect extends OutputStream {
+		private OutputStream target;
+
+		@Override
+		public void write(int b) throws IOException {
+			if (target != null) {
+				target.write(b);
+			}
+		}
+
+		@Override
+		public void write(byte[] bytes, int offset, int length) throws IOException {
+			if (target != null) {
+				target.write(bytes, offset, length);
+			}
+		}
+
+		@Override
+		public void flush() throws IOException {
+			if (target != null) {
+				target.flush();
+			}
+		}
+	}
+
+	/**
+	 * An output stream which escapes any line beginning with the escape
+	 * character, by writing that character twice. Thus, no line written
+	 * through this stream can be mistaken for the result of a request.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	private static final class Escape extends OutputStream {
+		private final OutputStream target;
+		private boolean lineStart = true;
+
+		public Escape(OutputStream target) {
+			this.target = target;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			if (lineStart && b == ESCAPE) {
+				target.write(ESCAPE);
+			}
+			target.write(b);
+			lineStart = (b == '\n');
+		}
+
+		@Override
+		public void flush() throws IOException {
+			target.flush();
+		}
+
+		/**
+		 * Terminate the current line, unless nothing has been written to it.
+		 *
+		 * @throws IOException
+		 */
+		public void terminate() throws IOException {
+			if (!lineStart) {
+				write('\n');
+			}
+			target.flush();
+		}
+	}
+
+	// =======================================================================
+	// Main
+	// =======================================================================
+
+	/**
+	 * Start a compile server. Requests are accepted on the given port of the
+	 * loopback interface (e.g. <code>--port=4455</code>), or on the default
+	 * port if none is given. Alternatively, if <code>--stdin</code> is given,
+	 * requests are read from stdin and responses written to stdout. In the
+	 * latter case, stdout is reserved for the protocol and anything else
+	 * printed to it (e.g. by a builder or plugin) is sent to stderr instead,
+	 * since it would otherwise corrupt the responses.
+	 *
+	 * @param args
+	 * @throws IOException
+	 */
+	public static void main(String[] args) throws IOException {
+		CompileServer server = new CompileServer(new wyc.Activator.Registry());
+		int port = DEFAULT_PORT;
+		boolean stdin = false;
+		for (String arg : args) {
+			if (arg.startsWith("--port=")) {
+				port = Integer.parseInt(arg.substring(7));
+			} else if (arg.equals("--stdin")) {
+				stdin = true;
+			}
+		}
+		if (stdin) {
+			PrintStream protocol = System.out;
+			System.setOut(System.err);
+			BufferedReader input = new BufferedReader(new InputStreamReader(System.in, "UTF-8"));
+			server.serve(input, protocol);
+		} else {
+			try (ServerSocket socket = new ServerSocket(port, 0, InetAddress.getLoopbackAddress())) {
+				server.serve(socket);
+			}
+		}
+	}
+}
@@ -0,0 +1,220 @@
+// Copyright (c) 2011, David J. Pearce (djp@ecs.vuw.ac.nz)
+// All rights reserved.
+//
+// This software may be modified and distributed under the terms
+// of the BSD license.  See the LICENSE file for details.
+package wyc.util;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.concurrent.*;
+
+import wyal.lang.SyntacticItem;
+import wyal.lang.WyalFile;
+import wybs.lang.Attribute;
+import wybs.lang.Build;
+import wybs.lang.SyntaxError;
+import wyil.builders.ProofCache;
+import wyil.util.BuildMetrics;
+import wytp.provers.AutomatedTheoremProver;
+import wytp.types.TypeSystem;
+
+/**
+ * <p>
+ * A theorem prover which records the size, proof time and outcome of every
+ * assertion it checks, and which optionally limits the time spent on each
+ * assertion. The source location recorded for each assertion is that of the
+ * WyIL bytecode from which it was generated. This makes it possible to
+ * identify which assertions make verification slow.
+ * </p>
+ * <p>
+ * When a time budget is given, each assertion is checked on a separate
+ * (daemon) thread. An assertion which is not proven within the budget is
+ * reported as a syntax error, and the thread checking it is interrupted and
+ * abandoned. Thus, a single pathological assertion cannot stall the build.
+ * Since the prover does not respond to interrupts, an abandoned thread may
+ * continue for some time. Therefore, each assertion is checked by a fresh
+ * prover (with its own type system), so that an abandoned thread only ever
+ * modifies state which nothing else uses. Furthermore, at most one abandoned
+ * thread per processor may be running at once. Whilst this many are, any
+ * further assertion is reported as not proven within the budget without
+ * being checked.
+ * </p>
+ * <p>
+ * When a proof cache is given, it is notified of every assertion which is not
+ * proven. Thus, no assertion of the same file is recorded as proven, even if
+ * the build otherwise completes.
+ * </p>
+ *
+ * @author David J. Pearce
+ *
+ */
+public class InstrumentedProver extends AutomatedTheoremProver {
+	private final Build.Project project;
+
+	private final BuildMetrics metrics;
+
+	/**
+	 * The time (in milliseconds) allowed for checking each assertion, or zero
+	 * if there is no limit.
+	 */
+	private final long budget;
+
+	/**
+	 * Those threads which were abandoned after exceeding the budget, and
+	 * which may still be running.
+	 */
+	private final ArrayList<Thread> abandoned = new ArrayList<>();
+
+	/**
+	 * Determines whether the proof of each assertion is printed. This is
+	 * passed on to the fresh prover used for each assertion.
+	 */
+	private volatile boolean printProof;
+
+	/**
+	 * Notified of every assertion which is not proven, or null.
+	 */
+	private volatile ProofCache proofs;
+
+	public InstrumentedProver(Build.Project project, TypeSystem typeSystem, BuildMetrics metrics, long budget) {
+		super(typeSystem);
+		if (budget < 0) {
+			throw new IllegalArgumentException("invalid proof budget: " + budget);
+		}
+		this.project = project;
+		this.metrics = metrics;
+		this.budget = budget;
+	}
+
+	public void setProofCache(ProofCache proofs) {
+		this.proofs = proofs;
+	}
+
+	@Override
+	public void setPrintProof(boolean flag) {
+		super.setPrintProof(flag);
+		this.printProof = flag;
+	}
+
+	@Override
+	public boolean check(final WyalFile parent, final WyalFile.Declaration.Assert assertion) {
+		long start = System.nanoTime();
+		BuildMetrics.Outcome outcome = BuildMetrics.Outcome.FAILED;
+		try {
+			boolean proved = budget == 0 ? super.check(parent, assertion) : checkWithin(parent, assertion);
+			if (proved) {
+				outcome = BuildMetrics.Outcome.PROVED;
+			}
+			return proved;
+		} catch (TimeoutException e) {
+			outcome = BuildMetrics.Outcome.TIMEOUT;
+			throw new SyntaxError("assertion not proven within " + budget + "ms: " + assertion.getMessage(),
+					parent.getEntry(), assertion);
+		} finally {
+			record(parent, assertion, System.nanoTime() - start, outcome);
+			ProofCache proofs = this.proofs;
+			if (proofs != null && outcome != BuildMetrics.Outcome.PROVED) {
+				proofs.setFailed(parent.getEntry().id());
+			}
+		}
+	}
+
+	/**
+	 * Check an assertion on a separate thread using a fresh prover, waiting no
+	 * longer than the budget for it to complete.
+	 *
+	 * @param parent
+	 * @param assertion
+	 * @return
+	 * @throws TimeoutException
+	 *             If the assertion was not checked within the budget, or
+	 *             could not be checked because too many abandoned threads are
+	 *             still running.
+	 */
+	private boolean checkWithin(final WyalFile parent, final WyalFile.Declaration.Assert assertion)
+			throws TimeoutException {
+		synchronized (abandoned) {
+			Iterator<Thread> i = abandoned.iterator();
+			while (i.hasNext()) {
+				if (!i.next().isAlive()) {
+					i.remove();
+				}
+			}
+			if (abandoned.size() >= Runtime.getRuntime().availableProcessors()) {
+				throw new TimeoutException();
+			}
+		}
+		final AutomatedTheoremProver prover = new AutomatedTheoremProver(new TypeSystem(project));
+		prover.setPrintProof(printProof);
+		FutureTask<Boolean> result = new FutureTask<>(new Callable<Boolean>() {
+			@Override
+			public Boolean call() {
+				return prover.check(parent, assertion);
+			}
+		});
+		Thread thread = new Thread(result, "wyc-prover");
+		thread.setDaemon(true);
+		thread.start();
+		try {
+			return result.get(budget, TimeUnit.MILLISECONDS);
+		} catch (TimeoutException e) {
+			thread.interrupt();
+			synchronized (abandoned) {
+				abandoned.add(thread);
+			}
+			throw e;
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			} else {
+				throw (Error) cause;
+			}
+		} catch (InterruptedException e) {
+			thread.interrupt();
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		}
+	}
+
+	private void record(WyalFile parent, WyalFile.Declaration.Assert assertion, long time,
+			BuildMetrics.Outcome outcome) {
+		if (!metrics.isEnabled()) {
+			return;
+		}
+		int start = -1;
+		int end = -1;
+		for (Attribute attribute : assertion.attributes()) {
+			if (attribute instanceof Attribute.Source) {
+				Attribute.Source source = (Attribute.Source) attribute;
+				start = source.start;
+				end = source.end;
+				break;
+			}
+		}
+		String file = parent.getEntry().id().toString();
+		int size = size(assertion, new IdentityHashMap<SyntacticItem, SyntacticItem>());
+		metrics.assertion(new BuildMetrics.Assertion(file, start, end, assertion.getMessage(), size, time, outcome));
+	}
+
+	/**
+	 * Count the number of distinct terms in a given item.
+	 *
+	 * @param item
+	 * @param visited
+	 * @return
+	 */
+	private static int size(SyntacticItem item, IdentityHashMap<SyntacticItem, SyntacticItem> visited) {
+		if (item == null || visited.containsKey(item)) {
+			return 0;
+		}
+		visited.put(item, item);
+		int size = 1;
+		for (int i = 0; i != item.size(); ++i) {
+			size += size(item.getOperand(i), visited);
+		}
+		return size;
+	}
+}
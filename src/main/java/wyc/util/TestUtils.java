@@ -89,19 +89,26 @@ public class TestUtils {
 	 * @throws IOException
 	 */
 	public static Pair<Compile.Result,String> compile(File whileydir, boolean verify, boolean generateLoopInvariants, String... args) throws IOException {
-		ByteArrayOutputStream syserr = new ByteArrayOutputStream();
-		ByteArrayOutputStream sysout = new ByteArrayOutputStream();
-		Content.Registry registry = new wyc.Activator.Registry();
-		Compile cmd = new Compile(registry,Logger.NULL,sysout,syserr);
-		cmd.setWhileydir(whileydir);
-		cmd.setWyaldir(whileydir); //
-		cmd.setVerify(verify);
-		cmd.setGenerateLoopInvariant(generateLoopInvariants);
-		Compile.Result result = cmd.execute(args);
-		byte[] errBytes = syserr.toByteArray();
-		byte[] outBytes = sysout.toByteArray();
-		String output = new String(errBytes) + new String(outBytes);
-		return new Pair<>(result,output);
+		BatchCompiler.Job job = new BatchCompiler.Job(whileydir, args);
+		job.setVerify(verify);
+		job.setGenerateLoopInvariants(generateLoopInvariants);
+		// Verification tests never execute the generated WyIL and, hence,
+		// there is no need to write it to disk.
+		job.setArtifacts(!verify);
+		return getBatchCompiler().compile(job);
+	}
+
+	/**
+	 * The batch compiler used for all tests. This allows library state to be
+	 * shared between tests, rather than being reconstructed for each.
+	 */
+	private static BatchCompiler batch;
+
+	private static synchronized BatchCompiler getBatchCompiler() throws IOException {
+		if (batch == null) {
+			batch = new BatchCompiler(new wyc.Activator.Registry(), 1);
+		}
+		return batch;
 	}
 
 
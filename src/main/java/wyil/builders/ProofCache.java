@@ -0,0 +1,362 @@
+// Copyright (c) 2011, David J. Pearce (djp@ecs.vuw.ac.nz)
+// All rights reserved.
+//
+// This software may be modified and distributed under the terms
+// of the BSD license.  See the LICENSE file for details.
+
+package wyil.builders;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+import wyal.lang.SyntacticItem;
+import wyal.lang.WyalFile;
+import wybs.lang.Build;
+import wybs.lang.NameID;
+import wycc.util.Pair;
+import wyfs.lang.Path;
+import wyil.lang.WyilFile;
+import wyil.util.BuildCache;
+import wyil.util.ModuleCache;
+import wyil.util.ModuleInterface;
+
+/**
+ * <p>
+ * Records which verification conditions have previously been proven, so that
+ * they need not be proven again. Each assertion generated for a module is
+ * identified by a key computed from its canonical form, along with everything
+ * else which determines whether or not it holds. This consists of the other
+ * (i.e. non-assertion) declarations in the same module, every declaration in
+ * another module reachable from it and the version of the prover. An assertion
+ * which has previously been proven is simply omitted from the generated WyAL
+ * file.
+ * </p>
+ * <p>
+ * Likewise, each function or method is identified by a fingerprint covering
+ * its body, its contract and every declaration it can reach. When every
+ * assertion generated for a function or method has previously been proven,
+ * verification conditions need not even be generated for it.
+ * </p>
+ * <p>
+ * A declaration is reachable if it is named by the module or function in
+ * question, or by another reachable declaration, in whichever module it is
+ * declared. Since
+ * the bodies of types and properties are expanded wherever they are used,
+ * these are covered in their entirety. However, only the contract of a
+ * reachable function or method is covered, since that is all its callers
+ * depend upon. Interface hashes are not sufficient for this, since e.g. a
+ * public contract may refer to a private property.
+ * </p>
+ * <p>
+ * The canonical form of an assertion does not depend upon the names given to
+ * its variables. Thus, an assertion remains proven even when the variable
+ * versions generated for it change (e.g. because of an unrelated edit
+ * elsewhere in the same function).
+ * </p>
+ * <p>
+ * An assertion is only recorded as proven once verification of the entire
+ * WyAL file containing it has completed, and the prover has reported no
+ * assertion in that file as failing. Outcomes are stored in the given build
+ * cache and, hence, may be shared between projects and machines.
+ * </p>
+ *
+ * @author David J. Pearce
+ *
+ */
+public class ProofCache {
+	private static final String SUFFIX = "proof";
+
+	private final BuildCache cache;
+
+	/**
+	 * Identifies the version of the prover. Proofs found by one version are
+	 * not reused by another.
+	 */
+	private final String prover;
+
+	/**
+	 * Used to find the declarations reachable from a given function or
+	 * method.
+	 */
+	private final ModuleCache modules;
+
+	/**
+	 * The assertions generated for each module which have yet to be proven.
+	 */
+	private final ConcurrentHashMap<Path.ID, List<BuildCache.Key>> pending = new ConcurrentHashMap<>();
+
+	/**
+	 * The modules for which the prover has reported some assertion as failing
+	 * during the current verification.
+	 */
+	private final Set<Path.ID> failed = Collections.newSetFromMap(new ConcurrentHashMap<Path.ID, Boolean>());
+
+	public ProofCache(BuildCache cache, String prover, ModuleCache modules) {
+		this.cache = cache;
+		this.prover = prover;
+		this.modules = modules;
+	}
+
+	/**
+	 * Compute a hash of everything (other than the assertion itself) which
+	 * determines whether an assertion in a given module holds. That is, the
+	 * non-assertion declarations generated for the module, along with every
+	 * declaration reachable from the module in other modules.
+	 *
+	 * @param module
+	 *            --- The module from which the assertions were generated.
+	 * @param declarations
+	 *            --- The non-assertion declarations of the module.
+	 * @return
+	 * @throws IOException
+	 */
+	public String context(WyilFile module, List<WyalFile.Declaration> declarations) throws IOException {
+		BuildCache.Key key = new BuildCache.Key();
+		key.add(prover);
+		HashSet<NameID> roots = new HashSet<>();
+		for (WyilFile.Block b : module.blocks()) {
+			if (b instanceof WyilFile.Declaration) {
+				roots.addAll(ModuleInterface.references((WyilFile.Declaration) b));
+			}
+		}
+		addReachable(module, roots, key);
+		for (WyalFile.Declaration d : declarations) {
+			write(d, key, new IdentityHashMap<SyntacticItem, Integer>());
+		}
+		return key.toString();
+	}
+
+	/**
+	 * Extend a given context with some additional declarations. This is used
+	 * for declarations which are only referred to by the assertions of a
+	 * single function or method (e.g. loop invariant macros).
+	 *
+	 * @param context
+	 * @param declarations
+	 * @return
+	 */
+	public String context(String context, List<WyalFile.Declaration> declarations) {
+		BuildCache.Key key = new BuildCache.Key().add(context);
+		for (WyalFile.Declaration d : declarations) {
+			write(d, key, new IdentityHashMap<SyntacticItem, Integer>());
+		}
+		return key.toString();
+	}
+
+	/**
+	 * Compute the fingerprint of a given function or method. This covers the
+	 * function or method itself (including its body) and every declaration
+	 * reachable from it.
+	 *
+	 * @param module
+	 * @param declaration
+	 * @param slicing
+	 *            --- Whether verification conditions are sliced.
+	 * @return
+	 * @throws IOException
+	 */
+	public BuildCache.Key key(WyilFile module, WyilFile.FunctionOrMethod declaration, boolean slicing)
+			throws IOException {
+		BuildCache.Key key = new BuildCache.Key();
+		key.add(prover).add(slicing);
+		key.add(ModuleInterface.hash(declaration));
+		addReachable(module, ModuleInterface.references(declaration), key);
+		return key;
+	}
+
+	/**
+	 * Add a hash of every declaration reachable from a given set of names to
+	 * a given key. Declarations are added in order of their names, so that the
+	 * key does not depend upon the order in which they are found. A name
+	 * whose module cannot be found is added without any declarations.
+	 *
+	 * @param module
+	 *            --- The module being verified. Names in this module are
+	 *            resolved against it directly, since it may not yet have been
+	 *            written.
+	 * @param roots
+	 *            --- The names from which declarations are reached.
+	 * @param key
+	 * @throws IOException
+	 */
+	private void addReachable(WyilFile module, Set<NameID> roots, BuildCache.Key key) throws IOException {
+		TreeMap<String, List<Long>> hashes = new TreeMap<>();
+		HashSet<NameID> visited = new HashSet<>(roots);
+		ArrayDeque<NameID> worklist = new ArrayDeque<>(roots);
+		while (!worklist.isEmpty()) {
+			NameID name = worklist.pop();
+			ArrayList<Long> hash = new ArrayList<>();
+			hashes.put(name.toString(), hash);
+			Path.ID id = name.module();
+			WyilFile m = id.equals(module.getEntry().id()) ? module : modules.get(id);
+			if (m == null) {
+				continue;
+			}
+			// A name may refer to several (overloaded) declarations
+			for (WyilFile.Block b : m.blocks()) {
+				if (!(b instanceof WyilFile.Declaration) || !((WyilFile.Declaration) b).name().equals(name.name())) {
+					continue;
+				}
+				Set<NameID> references;
+				if (b instanceof WyilFile.FunctionOrMethod) {
+					WyilFile.FunctionOrMethod fm = (WyilFile.FunctionOrMethod) b;
+					hash.add(ModuleInterface.contract(fm));
+					references = ModuleInterface.contractReferences(fm);
+				} else {
+					WyilFile.Declaration d = (WyilFile.Declaration) b;
+					hash.add(ModuleInterface.hash(d));
+					references = ModuleInterface.references(d);
+				}
+				for (NameID reference : references) {
+					if (visited.add(reference)) {
+						worklist.push(reference);
+					}
+				}
+			}
+		}
+		for (Map.Entry<String, List<Long>> e : hashes.entrySet()) {
+			key.add(e.getKey()).add(e.getValue().size());
+			for (Long hash : e.getValue()) {
+				key.add(hash);
+			}
+		}
+	}
+
+	/**
+	 * Compute the key identifying a given assertion.
+	 *
+	 * @param context
+	 *            --- The hash of the module's context, as returned by
+	 *            <code>context()</code>.
+	 * @param assertion
+	 * @return
+	 */
+	public BuildCache.Key key(String context, WyalFile.Declaration.Assert assertion) {
+		BuildCache.Key key = new BuildCache.Key().add(context);
+		write(assertion, key, new IdentityHashMap<SyntacticItem, Integer>());
+		return key;
+	}
+
+	/**
+	 * Check whether the assertion (or function or method) with a given key has
+	 * previously been proven.
+	 *
+	 * @param key
+	 * @return
+	 * @throws IOException
+	 */
+	public boolean isProven(BuildCache.Key key) throws IOException {
+		return cache.get(key, SUFFIX) != null;
+	}
+
+	/**
+	 * Set the assertions (and functions or methods) generated for a given
+	 * module which have yet to be proven. These are recorded as proven once the module is successfully
+	 * verified.
+	 *
+	 * @param id
+	 * @param keys
+	 */
+	public void setPending(Path.ID id, List<BuildCache.Key> keys) {
+		pending.put(id, keys);
+	}
+
+	/**
+	 * Record that all assertions pending for a given module have been proven.
+	 *
+	 * @param id
+	 * @throws IOException
+	 */
+	public void setProven(Path.ID id) throws IOException {
+		List<BuildCache.Key> keys = pending.remove(id);
+		if (keys != null) {
+			for (BuildCache.Key key : keys) {
+				cache.put(key, SUFFIX, new byte[0]);
+			}
+		}
+	}
+
+	/**
+	 * Record that the prover could not prove some assertion generated for a
+	 * given module. None of the assertions pending for that module are then
+	 * recorded as proven.
+	 *
+	 * @param id
+	 */
+	public void setFailed(Path.ID id) {
+		failed.add(id);
+	}
+
+	/**
+	 * Wrap a task which verifies WyAL files, such that the assertions pending
+	 * for each file are recorded as proven once that file is successfully
+	 * verified. That is, the verifier completed and the prover reported no
+	 * assertion of the file as failing (see <code>setFailed()</code>).
+	 *
+	 * @param verifier
+	 * @return
+	 */
+	public Build.Task record(final Build.Task verifier) {
+		return new Build.Task() {
+			@Override
+			public Build.Project project() {
+				return verifier.project();
+			}
+
+			@Override
+			public Set<Path.Entry<?>> build(Collection<Pair<Path.Entry<?>, Path.Root>> delta, Build.Graph graph)
+					throws IOException {
+				boolean completed = false;
+				try {
+					Set<Path.Entry<?>> generated = verifier.build(delta, graph);
+					completed = true;
+					return generated;
+				} finally {
+					for (Pair<Path.Entry<?>, Path.Root> p : delta) {
+						Path.ID id = p.first().id();
+						boolean unproven = failed.remove(id);
+						if (completed && !unproven) {
+							setProven(id);
+						} else {
+							pending.remove(id);
+						}
+					}
+				}
+			}
+		};
+	}
+
+	/**
+	 * Write the canonical form of a syntactic item into a given key. Variables
+	 * are numbered in the order they are declared, rather than named.
+	 *
+	 * @param item
+	 * @param key
+	 * @param variables
+	 *            --- The number assigned to each variable declared so far.
+	 */
+	private static void write(SyntacticItem item, BuildCache.Key key, Map<SyntacticItem, Integer> variables) {
+		if (item == null) {
+			key.add("null");
+		} else if (item instanceof WyalFile.VariableDeclaration) {
+			Integer index = variables.get(item);
+			if (index == null) {
+				index = variables.size();
+				variables.put(item, index);
+				key.add("decl").add(index);
+				write(((WyalFile.VariableDeclaration) item).getType(), key, variables);
+			} else {
+				key.add("var").add(index);
+			}
+		} else {
+			Object data = item.getData();
+			key.add(item.getOpcode().name());
+			key.add(data == null ? "" : data.toString());
+			key.add(item.size());
+			for (int i = 0; i != item.size(); ++i) {
+				write(item.getOperand(i), key, variables);
+			}
+		}
+	}
+}
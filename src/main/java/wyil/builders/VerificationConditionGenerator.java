@@ -8,8 +8,10 @@ package wyil.builders;
 
 import static wyil.util.ErrorMessages.errorMessage;
 
+import java.io.IOException;
 import java.math.BigInteger;
 import java.util.*;
+import java.util.concurrent.Callable;
 
 import wybs.lang.Attribute;
 import wybs.lang.NameID;
@@ -36,6 +38,8 @@ import wyil.lang.SyntaxTree.Location;
 import wyil.lang.Constant;
 import wyil.lang.Type;
 import wyil.lang.WyilFile;
+import wyil.util.BuildCache;
+import wyil.util.BuildMetrics;
 import wyil.util.ErrorMessages;
 import wyil.util.SyntaxTrees;
 import wyil.util.TypeSystem;
@@ -106,6 +110,15 @@ import wyil.util.TypeSystem;
  * (named) macro.
  * </p>
  *
+ * <p>
+ * Each declaration in a WyIL file is translated independently of the others
+ * and, when the builder is configured with more than one thread, declarations
+ * are translated concurrently. The WyAL declarations generated for each WyIL
+ * declaration are added to the WyAL file in the order in which the WyIL
+ * declarations occur. Thus, the declarations of the WyAL file do not depend
+ * upon how translation happens to be scheduled.
+ * </p>
+ *
  * @author David J. Pearce
  *
  */
@@ -114,9 +127,34 @@ public class VerificationConditionGenerator {
 	private final TypeSystem typeSystem;
 	private final WyalFile wyalFile;
 
+	/**
+	 * The top-level WyAL declarations generated so far, along with their
+	 * attributes. These are only added to the WyAL file once translation is
+	 * complete, so that they can be added in a deterministic order.
+	 */
+	private final Fragment fragment = new Fragment();
+
+	/**
+	 * The flattened form of each assumption set, indexed by the ancestor up to
+	 * which it was flattened. Assumption sets are shared between the branches
+	 * of a conditional and between the verification conditions generated
+	 * along a path. Hence, reusing their flattened forms ensures that the WyAL
+	 * generated for a given assumption is shared, rather than duplicated for
+	 * every branch and verification condition which depends upon it.
+	 */
+	private final HashMap<AssumptionSet, HashMap<AssumptionSet, WyalFile.Stmt>> flattened = new HashMap<>();
+
+	/**
+	 * The canonical representative of every distinct term occurring in an
+	 * assumption. Structurally identical assumptions (e.g. those established
+	 * independently on different branches) are thus represented by the same
+	 * item.
+	 */
+	private final HashMap<Term, SyntacticItem> terms = new HashMap<>();
+
 	public VerificationConditionGenerator(WyalFile wyalFile, Wyil2WyalBuilder builder) {
 		this.builder = builder;
-		this.typeSystem = new TypeSystem(builder.project());
+		this.typeSystem = builder.getTypeSystem();
 		this.wyalFile = wyalFile;
 	}
 
@@ -133,24 +171,136 @@ public class VerificationConditionGenerator {
 	 * @param wyilFile
 	 *            The input file to be translated
 	 * @return
+	 * @throws IOException
 	 */
-	public WyalFile translate(WyilFile wyilFile) {
+	public WyalFile translate(WyilFile wyilFile) throws IOException {
+		return merge(wyilFile, builder.executor.execute(translateDeclarations(wyilFile)));
+	}
+
+	/**
+	 * Construct a task for each declaration in a given WyilFile, which
+	 * translates that declaration into WyAL. The tasks are independent of each
+	 * other and, hence, may be executed concurrently. However, their results
+	 * must then be merged in the order given.
+	 *
+	 * @param wyilFile
+	 *            The input file to be translated
+	 * @return
+	 */
+	List<Callable<Fragment>> translateDeclarations(final WyilFile wyilFile) {
+		final String module = wyilFile.getEntry().id().toString();
+		ArrayList<Callable<Fragment>> tasks = new ArrayList<>();
 		for (WyilFile.Block b : wyilFile.blocks()) {
-			if (b instanceof WyilFile.Constant) {
-				translateConstantDeclaration((WyilFile.Constant) b);
-			} else if (b instanceof WyilFile.Type) {
-				translateTypeDeclaration((WyilFile.Type) b);
-			} else if (b instanceof WyilFile.Property) {
-				translatePropertyDeclaration((WyilFile.Property) b);
-			} else if (b instanceof WyilFile.FunctionOrMethod) {
-				WyilFile.FunctionOrMethod method = (WyilFile.FunctionOrMethod) b;
-				translateFunctionOrMethodDeclaration(method);
+			if (b instanceof WyilFile.Declaration) {
+				final WyilFile.Declaration declaration = (WyilFile.Declaration) b;
+				tasks.add(new Callable<Fragment>() {
+					@Override
+					public Fragment call() throws IOException {
+						BuildMetrics.Timer timer = builder.metrics.start("vcg", module + ":" + declaration.name());
+						// Use a fresh generator, so that the declarations it
+						// generates are kept separate from those of other tasks.
+						VerificationConditionGenerator vcg = new VerificationConditionGenerator(wyalFile, builder);
+						ProofCache proofs = builder.proofs;
+						if (proofs != null && declaration instanceof WyilFile.FunctionOrMethod) {
+							WyilFile.FunctionOrMethod fm = (WyilFile.FunctionOrMethod) declaration;
+							BuildCache.Key fingerprint = proofs.key(wyilFile, fm, builder.slicing);
+							if (proofs.isProven(fingerprint)) {
+								// Every assertion generated for this function or
+								// method has been proven before, so only its
+								// contract is needed (e.g. by its callers).
+								builder.metrics.hit("function");
+								vcg.translateFunctionOrMethodContract(fm);
+							} else {
+								builder.metrics.miss("function");
+								vcg.fragment.fingerprint = fingerprint;
+								vcg.translateDeclaration(declaration);
+							}
+						} else {
+							vcg.translateDeclaration(declaration);
+						}
+						timer.stop(0);
+						return vcg.fragment;
+					}
+				});
 			}
 		}
+		return tasks;
+	}
 
+	/**
+	 * Add the WyAL declarations generated for each WyIL declaration to the WyAL
+	 * file, in the order given. When the builder has a proof cache, any
+	 * assertion which has previously been proven is omitted, whilst the
+	 * remainder (along with the fingerprints of those functions and methods
+	 * which were translated in full) are recorded as pending. The context of
+	 * each assertion excludes declarations local to other functions or
+	 * methods, since these are not generated for functions or methods whose
+	 * assertions have all been proven.
+	 *
+	 * @param wyilFile
+	 *            The file from which the declarations were generated.
+	 * @param fragments
+	 *            The results of executing the tasks constructed by
+	 *            <code>translateDeclarations()</code>.
+	 * @return
+	 * @throws IOException
+	 */
+	WyalFile merge(WyilFile wyilFile, List<Fragment> fragments) throws IOException {
+		ProofCache proofs = builder.proofs;
+		String context = null;
+		ArrayList<BuildCache.Key> pending = new ArrayList<>();
+		if (proofs != null) {
+			ArrayList<WyalFile.Declaration> declarations = new ArrayList<>();
+			for (Fragment f : fragments) {
+				for (Pair<WyalFile.Declaration, List<Attribute>> d : f.declarations) {
+					if (!(d.first() instanceof WyalFile.Declaration.Assert) && !f.locals.contains(d.first())) {
+						declarations.add(d.first());
+					}
+				}
+			}
+			context = proofs.context(wyilFile, declarations);
+		}
+		for (Fragment f : fragments) {
+			String local = context;
+			if (proofs != null) {
+				if (f.fingerprint != null) {
+					pending.add(f.fingerprint);
+				}
+				if (!f.locals.isEmpty()) {
+					local = proofs.context(context, f.locals);
+				}
+			}
+			for (Pair<WyalFile.Declaration, List<Attribute>> d : f.declarations) {
+				if (context != null && d.first() instanceof WyalFile.Declaration.Assert) {
+					BuildCache.Key key = proofs.key(local, (WyalFile.Declaration.Assert) d.first());
+					if (proofs.isProven(key)) {
+						builder.metrics.hit("proof");
+						continue;
+					}
+					builder.metrics.miss("proof");
+					pending.add(key);
+				}
+				allocate(d.first(), d.second());
+			}
+		}
+		if (proofs != null) {
+			proofs.setPending(wyilFile.getEntry().id(), pending);
+		}
 		return wyalFile;
 	}
 
+	private void translateDeclaration(WyilFile.Declaration declaration) {
+		if (declaration instanceof WyilFile.Constant) {
+			translateConstantDeclaration((WyilFile.Constant) declaration);
+		} else if (declaration instanceof WyilFile.Type) {
+			translateTypeDeclaration((WyilFile.Type) declaration);
+		} else if (declaration instanceof WyilFile.Property) {
+			translatePropertyDeclaration((WyilFile.Property) declaration);
+		} else if (declaration instanceof WyilFile.FunctionOrMethod) {
+			translateFunctionOrMethodDeclaration((WyilFile.FunctionOrMethod) declaration);
+		}
+	}
+
 	/**
 	 * Translate a constant declaration into WyAL. At the moment, this does
 	 * nothing because constant declarations are not supported in WyAL files.
@@ -196,7 +346,7 @@ public class VerificationConditionGenerator {
 		// Done
 		WyalFile.Identifier name = new WyalFile.Identifier(declaration.name());
 		WyalFile.Declaration td = new WyalFile.Declaration.Named.Type(name, var, invariant);
-		allocate(td,declaration.attributes());
+		declare(td,declaration.attributes());
 	}
 
 	private void translatePropertyDeclaration(WyilFile.Property declaration) {
@@ -216,7 +366,7 @@ public class VerificationConditionGenerator {
 		WyalFile.Stmt.Block block = new WyalFile.Stmt.Block(stmts);
 		WyalFile.Identifier name = new WyalFile.Identifier(declaration.name());
 		WyalFile.Declaration pd = new WyalFile.Declaration.Named.Macro(name, type, block);
-		allocate(pd,declaration.attributes());
+		declare(pd,declaration.attributes());
 	}
 
 	/**
@@ -232,20 +382,7 @@ public class VerificationConditionGenerator {
 	 *            The WyAL file being constructed
 	 */
 	private void translateFunctionOrMethodDeclaration(WyilFile.FunctionOrMethod declaration) {
-		// Create the prototype for this function or method. This is the
-		// function or method declaration which can be used within verification
-		// conditions to refer to this function or method. This does not include
-		// a body, since function or methods are treated as being
-		// "uninterpreted" for the purposes of verification.
-		createFunctionOrMethodPrototype(declaration);
-
-		// Create macros representing the individual clauses of the function or
-		// method's precondition and postcondition. These macros can then be
-		// called either to assume the precondition/postcondition or to check
-		// them. Using individual clauses helps to provide better error
-		// messages.
-		translatePreconditionMacros(declaration);
-		translatePostconditionMacros(declaration);
+		translateFunctionOrMethodContract(declaration);
 
 		// The environments are needed to prevent clashes between variable
 		// versions across verification conditions, and also to type variables
@@ -270,6 +407,32 @@ public class VerificationConditionGenerator {
 		createAssertions(declaration, vcs, globalEnvironment);
 	}
 
+	/**
+	 * Translate the contract of a function or method, but not its body. That
+	 * is, generate its prototype along with the macros representing its
+	 * precondition and postcondition. These are all that is needed to verify
+	 * other functions or methods which invoke it.
+	 *
+	 * @param declaration
+	 *            The function or method declaration being translated.
+	 */
+	private void translateFunctionOrMethodContract(WyilFile.FunctionOrMethod declaration) {
+		// Create the prototype for this function or method. This is the
+		// function or method declaration which can be used within verification
+		// conditions to refer to this function or method. This does not include
+		// a body, since function or methods are treated as being
+		// "uninterpreted" for the purposes of verification.
+		createFunctionOrMethodPrototype(declaration);
+
+		// Create macros representing the individual clauses of the function or
+		// method's precondition and postcondition. These macros can then be
+		// called either to assume the precondition/postcondition or to check
+		// them. Using individual clauses helps to provide better error
+		// messages.
+		translatePreconditionMacros(declaration);
+		translatePostconditionMacros(declaration);
+	}
+
 	/**
 	 * Translate the sequence of invariant expressions which constitute the
 	 * precondition of a function or method into corresponding macro
@@ -302,7 +465,7 @@ public class VerificationConditionGenerator {
 			//
 			WyalFile.Identifier ident = new WyalFile.Identifier(name);
 			WyalFile.Declaration md = new WyalFile.Declaration.Named.Macro(ident, type, clause);
-			allocate(md,invariants.get(i).attributes());
+			declare(md,invariants.get(i).attributes());
 		}
 	}
 
@@ -337,7 +500,7 @@ public class VerificationConditionGenerator {
 			//
 			WyalFile.Identifier ident = new WyalFile.Identifier(name);
 			WyalFile.Declaration md = new WyalFile.Declaration.Named.Macro(ident, type, clause);
-			allocate(md,invariants.get(i).attributes());
+			declare(md,invariants.get(i).attributes());
 		}
 	}
 
@@ -743,7 +906,7 @@ public class VerificationConditionGenerator {
 		WyilFile.Declaration declaration = context.getEnvironment().getParent().enclosingDeclaration;
 		Location<?>[] loopInvariant = stmt.getOperandGroup(0);
 		// Translate the loop invariant and generate appropriate macro
-		translateLoopInvariantMacros(loopInvariant, declaration, context.wyalFile);
+		translateLoopInvariantMacros(loopInvariant, declaration);
 		// Rule 1. Check loop invariant after first iteration
 		LoopScope firstScope = new LoopScope();
 		Context beforeFirstBodyContext = context.newLoopScope(firstScope);
@@ -1021,7 +1184,7 @@ public class VerificationConditionGenerator {
 		WyilFile.Declaration declaration = context.getEnvironment().getParent().enclosingDeclaration;
 		Location<?>[] loopInvariant = stmt.getOperandGroup(0);
 		// Translate the loop invariant and generate appropriate macro
-		translateLoopInvariantMacros(loopInvariant, declaration, context.wyalFile);
+		translateLoopInvariantMacros(loopInvariant, declaration);
 		// Rule 1. Check loop invariant on entry
 		checkLoopInvariant("loop invariant does not hold on entry", loopInvariant, context);
 		// Rule 2. Check loop invariant preserved. On entry to the loop body we
@@ -1057,11 +1220,9 @@ public class VerificationConditionGenerator {
 	 *
 	 * @param loopInvariant
 	 *            The clauses making up the loop invariant
-	 * @param environment
-	 * @param wyalFile
+	 * @param declaration
 	 */
-	private void translateLoopInvariantMacros(Location<?>[] loopInvariant, WyilFile.Declaration declaration,
-			WyalFile wyalFile) {
+	private void translateLoopInvariantMacros(Location<?>[] loopInvariant, WyilFile.Declaration declaration) {
 		//
 		String prefix = declaration.name() + "_loopinvariant_";
 		//
@@ -1076,7 +1237,8 @@ public class VerificationConditionGenerator {
 					localEnvironment);
 			WyalFile.Stmt.Block e = translateAsBlock(clause, localEnvironment.clone());
 			Named.Macro macro = new Named.Macro(name, vars, e);
-			wyalFile.allocate(macro);
+			declare(macro, Collections.<Attribute>emptyList());
+			fragment.locals.add(macro);
 		}
 	}
 
@@ -1472,7 +1634,7 @@ public class VerificationConditionGenerator {
 		} catch (Throwable e) {
 			throw new InternalFailure(e.getMessage(), decl.parent().getEntry(), loc, e);
 		}
-		return allocate(result,loc.attributes());
+		return attribute(result,loc.attributes());
 	}
 
 	private Expr translateConstant(Location<Const> expr, LocalEnvironment environment) {
@@ -2064,7 +2226,7 @@ public class VerificationConditionGenerator {
 		}
 		//
 		WyalFile.Identifier name = new WyalFile.Identifier(declaration.name());
-		wyalFile.allocate(new Declaration.Named.Function(name, parameters, wyalReturns));
+		declare(new Declaration.Named.Function(name, parameters, wyalReturns), Collections.<Attribute>emptyList());
 	}
 
 	/**
@@ -2092,7 +2254,7 @@ public class VerificationConditionGenerator {
 			WyalFile.Stmt.Block verificationCondition = buildVerificationCondition(declaration, environment, vc);
 			// Add generated verification condition as assertion
 			WyalFile.Declaration.Assert assrt = new WyalFile.Declaration.Assert(verificationCondition, vc.description);
-			allocate(assrt,vc.attributes());
+			declare(assrt,vc.attributes());
 		}
 	}
 
@@ -2108,8 +2270,11 @@ public class VerificationConditionGenerator {
 	 */
 	public WyalFile.Stmt.Block buildVerificationCondition(WyilFile.FunctionOrMethod declaration,
 			GlobalEnvironment environment, VerificationCondition vc) {
-		WyalFile.Stmt antecedent = flatten(vc.antecedent);
 		Expr consequent = vc.consequent;
+		WyalFile.Stmt antecedent = flatten(vc.antecedent);
+		if (builder.slicing) {
+			antecedent = slice(antecedent, consequent);
+		}
 		HashSet<WyalFile.VariableDeclaration> freeVariables = new HashSet<>();
 		freeVariables(antecedent,freeVariables);
 		freeVariables(consequent,freeVariables);
@@ -2131,6 +2296,105 @@ public class VerificationConditionGenerator {
 		return new WyalFile.Stmt.Block(verificationCondition);
 	}
 
+	/**
+	 * Slice the antecedent of a verification condition with respect to its
+	 * consequent. That is, remove any conjunct of the antecedent which cannot
+	 * affect whether the consequent holds. A conjunct is retained if it
+	 * shares a free variable, or an invoked function or macro, with the
+	 * consequent or with another conjunct which is retained. Conjuncts which
+	 * have neither (e.g. <code>false</code>) are always retained, since these
+	 * may make the verification condition vacuous.
+	 *
+	 * @param antecedent
+	 *            The flattened antecedent.
+	 * @param consequent
+	 * @return
+	 */
+	public static WyalFile.Stmt slice(WyalFile.Stmt antecedent, Expr consequent) {
+		ArrayList<WyalFile.Stmt> conjuncts = new ArrayList<>();
+		conjuncts(antecedent, conjuncts);
+		ArrayList<Set<Object>> symbols = new ArrayList<>();
+		for (WyalFile.Stmt conjunct : conjuncts) {
+			symbols.add(symbols(conjunct));
+		}
+		Set<Object> relevant = symbols(consequent);
+		boolean[] retained = new boolean[conjuncts.size()];
+		int count = 0;
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			for (int i = 0; i != retained.length; ++i) {
+				Set<Object> s = symbols.get(i);
+				if (!retained[i] && (s.isEmpty() || !Collections.disjoint(relevant, s))) {
+					retained[i] = true;
+					relevant.addAll(s);
+					changed = true;
+					count++;
+				}
+			}
+		}
+		if (count == conjuncts.size()) {
+			return antecedent;
+		}
+		WyalFile.Stmt[] stmts = new WyalFile.Stmt[count];
+		for (int i = 0, j = 0; i != retained.length; ++i) {
+			if (retained[i]) {
+				stmts[j++] = conjuncts.get(i);
+			}
+		}
+		switch (count) {
+		case 0:
+			return new Expr.Constant(new Value.Bool(true));
+		case 1:
+			return stmts[0];
+		default:
+			return new WyalFile.Stmt.Block(stmts);
+		}
+	}
+
+	/**
+	 * Split a statement into its conjuncts.
+	 *
+	 * @param stmt
+	 * @param conjuncts
+	 */
+	private static void conjuncts(WyalFile.Stmt stmt, List<WyalFile.Stmt> conjuncts) {
+		if (stmt instanceof WyalFile.Stmt.Block || stmt instanceof Expr.LogicalAnd) {
+			for (int i = 0; i != stmt.size(); ++i) {
+				conjuncts((WyalFile.Stmt) stmt.getOperand(i), conjuncts);
+			}
+		} else {
+			conjuncts.add(stmt);
+		}
+	}
+
+	/**
+	 * Determine the free variables of a statement, along with the names of
+	 * any functions or macros it invokes.
+	 *
+	 * @param stmt
+	 * @return
+	 */
+	private static Set<Object> symbols(WyalFile.Stmt stmt) {
+		HashSet<WyalFile.VariableDeclaration> variables = new HashSet<>();
+		freeVariables(stmt, variables);
+		HashSet<Object> symbols = new HashSet<Object>(variables);
+		invokedNames(stmt, symbols);
+		return symbols;
+	}
+
+	private static void invokedNames(SyntacticItem item, Set<Object> names) {
+		if (item instanceof Expr.Invoke) {
+			names.add(((Expr.Invoke) item).getName().toString());
+		}
+		for (int i = 0; i != item.size(); ++i) {
+			SyntacticItem operand = item.getOperand(i);
+			if (operand != null) {
+				invokedNames(operand, names);
+			}
+		}
+	}
+
 	/**
 	 * Flatten a given assumption set into a single logical condition. The key
 	 * challenge here is to try and do this as efficiency as possible.
@@ -2166,6 +2430,13 @@ public class VerificationConditionGenerator {
 			// We have reached the ancestor
 			return null;
 		} else {
+			HashMap<AssumptionSet, WyalFile.Stmt> cache = flattened.get(assumptions);
+			if (cache == null) {
+				cache = new HashMap<>();
+				flattened.put(assumptions, cache);
+			} else if (cache.containsKey(ancestor)) {
+				return cache.get(ancestor);
+			}
 			// Flattern parent assumptions
 			AssumptionSet[] parents = assumptions.parents;
 			WyalFile.Stmt e = null;
@@ -2190,13 +2461,46 @@ public class VerificationConditionGenerator {
 			// Combine with local assumptions (if applicable)
 			WyalFile.Stmt[] local = assumptions.assumptions;
 			for (int i = 0; i != local.length; ++i) {
-				e = and(e, local[i]);
+				e = and(e, (WyalFile.Stmt) intern(local[i]));
 			}
 			//
+			cache.put(ancestor, e);
 			return e;
 		}
 	}
 
+	/**
+	 * Get the canonical representative of a given term. That is, the first
+	 * structurally identical term to have been interned. The operands of a
+	 * representative are themselves representatives, so that identical
+	 * subterms are shared throughout. Variable declarations are never merged,
+	 * since distinct declarations of the same name may denote different
+	 * variables.
+	 *
+	 * @param item
+	 * @return
+	 */
+	private SyntacticItem intern(SyntacticItem item) {
+		if (item == null || item instanceof WyalFile.VariableDeclaration) {
+			return item;
+		}
+		SyntacticItem[] operands = new SyntacticItem[item.size()];
+		boolean changed = false;
+		for (int i = 0; i != operands.length; ++i) {
+			operands[i] = intern(item.getOperand(i));
+			changed |= operands[i] != item.getOperand(i);
+		}
+		Term term = new Term(item.getOpcode(), item.getData(), operands);
+		SyntacticItem representative = terms.get(term);
+		if (representative == null) {
+			// Rebuild the term if any operand was replaced by its
+			// representative.
+			representative = changed ? item.clone(operands) : item;
+			terms.put(term, representative);
+		}
+		return representative;
+	}
+
 	/**
 	 * Determine any variable aliases which need to be accounted for. This is
 	 * done by adding an equality between the aliased variables to ensure they
@@ -2346,7 +2650,7 @@ public class VerificationConditionGenerator {
 		WyalFile.Identifier id = new WyalFile.Identifier(name);
 		components[module.size()] = id;
 		WyalFile.Name n = new WyalFile.Name(components);
-		return allocate(n,context.attributes());
+		return attribute(n,context.attributes());
 	}
 
 	/**
@@ -2485,7 +2789,7 @@ public class VerificationConditionGenerator {
 					context.parent().getEntry(), context);
 		}
 		//
-		result = allocate(result,context.attributes());
+		result = attribute(result,context.attributes());
 		//
 		return result;
 	}
@@ -2564,7 +2868,7 @@ public class VerificationConditionGenerator {
 	 * @param e
 	 * @param freeVars
 	 */
-	public void freeVariables(SyntacticItem e, Set<WyalFile.VariableDeclaration> freeVars) {
+	public static void freeVariables(SyntacticItem e, Set<WyalFile.VariableDeclaration> freeVars) {
 		if(e instanceof Expr.VariableAccess) {
 			Expr.VariableAccess va = (Expr.VariableAccess)e;
 			freeVars.add(va.getVariableDeclaration());
@@ -2606,12 +2910,11 @@ public class VerificationConditionGenerator {
 		SyntaxTree tree = stmt.getEnclosingTree();
 		WyilFile.Declaration decl = tree.getEnclosingDeclaration();
 		//
-		Path.Entry<WyilFile> e = builder.project().get(name.module(), WyilFile.ContentType);
-		if (e == null) {
+		WyilFile m = builder.getTypeSystem().modules().get(name.module());
+		if (m == null) {
 			throw new InternalFailure(errorMessage(ErrorMessages.RESOLUTION_ERROR, name.module().toString()),
 					decl.parent().getEntry(), stmt);
 		}
-		WyilFile m = e.read();
 		return m.functionOrMethodOrProperty(name.name(), fun);
 	}
 
@@ -2667,14 +2970,50 @@ public class VerificationConditionGenerator {
 		return rs;
 	}
 
-	private <T extends SyntacticItem> T allocate(T item, List<Attribute> attributes) {
-		item = wyalFile.allocate(item);
+	/**
+	 * Attach the attributes of a WyIL element to the WyAL item generated from
+	 * it. Items are not allocated to the WyAL file during translation, since
+	 * declarations may be translated concurrently and the order of allocation
+	 * would then depend on thread scheduling. Instead, each top-level
+	 * declaration (along with every item it refers to) is allocated when the
+	 * results of all declarations are merged.
+	 *
+	 * @param item
+	 * @param attributes
+	 * @return
+	 */
+	private static <T extends SyntacticItem> T attribute(T item, List<Attribute> attributes) {
 		// FIXME: this should be removed eventually #121
-		for(Attribute attr : attributes) {
+		for (Attribute attr : attributes) {
 			item.attributes().add(attr);
 		}
 		return item;
 	}
+
+	/**
+	 * Allocate a top-level declaration, and every item it refers to, to the
+	 * WyAL file. This is only called when merging and, hence, items are
+	 * allocated in the order their declarations are merged.
+	 *
+	 * @param item
+	 * @param attributes
+	 * @return
+	 */
+	private <T extends SyntacticItem> T allocate(T item, List<Attribute> attributes) {
+		return wyalFile.allocate(attribute(item, attributes));
+	}
+
+	/**
+	 * Record a top-level declaration generated for the WyIL declaration being
+	 * translated. This is allocated to the WyAL file only when the results of
+	 * all declarations are merged.
+	 *
+	 * @param declaration
+	 * @param attributes
+	 */
+	private void declare(WyalFile.Declaration declaration, List<Attribute> attributes) {
+		fragment.declarations.add(new Pair<>(declaration, attributes));
+	}
 	/**
 	 * Create exact copy of a given array, but with evey null element removed.
 	 *
@@ -2719,13 +3058,41 @@ public class VerificationConditionGenerator {
 		return result;
 	}
 
+	/**
+	 * The top-level WyAL declarations generated for a single WyIL declaration,
+	 * in the order they were generated.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	static final class Fragment {
+		private final ArrayList<Pair<WyalFile.Declaration, List<Attribute>>> declarations = new ArrayList<>();
+
+		/**
+		 * Those declarations which are referred to only by the assertions of
+		 * this fragment (e.g. loop invariant macros).
+		 */
+		private final ArrayList<WyalFile.Declaration> locals = new ArrayList<>();
+
+		/**
+		 * The fingerprint of the function or method this fragment was
+		 * generated from, or null if there is none (or no proof cache is
+		 * used).
+		 */
+		private BuildCache.Key fingerprint;
+	}
+
 	// =============================================================
 	// Assumptions
 	// =============================================================
 
 	/**
 	 * Provides an immutable assumption set which (in principle) can be factored
-	 * more precisely than a flat collection.
+	 * more precisely than a flat collection. Assumption sets form a persistent
+	 * DAG: extending a set, or joining several descendants of a set, never
+	 * copies the assumptions already present. Hence, the size of an assumption
+	 * set grows with the length of a path, rather than with the number of
+	 * paths.
 	 *
 	 * @author David J. Pearce
 	 *
@@ -2771,6 +3138,53 @@ public class VerificationConditionGenerator {
 		public static final AssumptionSet ROOT = new AssumptionSet(null, new AssumptionSet[0]);
 	}
 
+	/**
+	 * Identifies a term by its opcode, data and the canonical representatives
+	 * of its operands. Operands are compared by identity and, hence, two terms
+	 * are equal only when their operands have been interned to the same
+	 * representatives.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	private static final class Term {
+		private final Opcode opcode;
+		private final Object data;
+		private final SyntacticItem[] operands;
+
+		private Term(Opcode opcode, Object data, SyntacticItem[] operands) {
+			this.opcode = opcode;
+			this.data = data;
+			this.operands = operands;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (o instanceof Term) {
+				Term t = (Term) o;
+				if (opcode != t.opcode || !Objects.equals(data, t.data) || operands.length != t.operands.length) {
+					return false;
+				}
+				for (int i = 0; i != operands.length; ++i) {
+					if (operands[i] != t.operands[i]) {
+						return false;
+					}
+				}
+				return true;
+			}
+			return false;
+		}
+
+		@Override
+		public int hashCode() {
+			int hash = opcode.hashCode() ^ Objects.hashCode(data);
+			for (SyntacticItem operand : operands) {
+				hash = (hash * 31) + System.identityHashCode(operand);
+			}
+			return hash;
+		}
+	}
+
 	// =============================================================
 	// Verification Conditions
 	// =============================================================
@@ -2916,7 +3330,7 @@ public class VerificationConditionGenerator {
 			// The following is necessary to ensure that the alias structure of
 			// VariableDeclarations is properly preserved.
 			//
-			return allocate(new WyalFile.VariableDeclaration(type, new WyalFile.Identifier(versionedVar)),
+			return attribute(new WyalFile.VariableDeclaration(type, new WyalFile.Identifier(versionedVar)),
 					Collections.EMPTY_LIST);
 		}
 
@@ -6,8 +6,11 @@
 
 package wyil.builders;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.*;
 
 import wyal.lang.WyalFile;
 import wybs.lang.Build;
@@ -15,6 +18,10 @@ import wycc.util.Logger;
 import wycc.util.Pair;
 import wyfs.lang.Path;
 import wyil.lang.*;
+import wyil.util.BuildCache;
+import wyil.util.BuildMetrics;
+import wyil.util.TaskExecutor;
+import wyil.util.TypeSystem;
 
 /**
  * Responsible for converting a Wyil file into a Wycs file which can then be
@@ -32,13 +39,71 @@ public class Wyil2WyalBuilder implements Build.Task {
 	 */
 	protected final Build.Project project;
 
+	/**
+	 * Provides mechanism for operating on types. This is shared by all files
+	 * translated by this builder, so that cached results can be reused.
+	 */
+	protected final TypeSystem typeSystem;
+
 	/**
 	 * For logging information.
 	 */
 	protected Logger logger = Logger.NULL;
 
+	/**
+	 * Signals whether each generated file should be written to disk as soon
+	 * as it is generated. Otherwise, generated files are held in memory
+	 * until their root is flushed (if ever).
+	 */
+	protected boolean flush = true;
+
+	/**
+	 * Records the time spent translating each file.
+	 */
+	protected BuildMetrics metrics = BuildMetrics.NULL;
+
+	/**
+	 * The cache from which previously generated WyAL files are restored, or
+	 * null if no cache is used.
+	 */
+	protected BuildCache cache;
+
+	/**
+	 * The number of threads used to generate verification conditions. When
+	 * this is one, all files are translated sequentially on the calling
+	 * thread. The same executor (and, hence, thread pool) is used for every
+	 * build.
+	 */
+	protected TaskExecutor executor = new TaskExecutor(1);
+
+	/**
+	 * Records which assertions have previously been proven, so that these can
+	 * be omitted from generated files. If null, every assertion is generated.
+	 */
+	protected ProofCache proofs;
+
+	/**
+	 * Signals whether the antecedent of each verification condition should be
+	 * sliced, such that only those assumptions relevant to its consequent are
+	 * retained.
+	 */
+	protected boolean slicing = false;
+
 	public Wyil2WyalBuilder(Build.Project project) {
+		this(project, new TypeSystem(project));
+	}
+
+	/**
+	 * Construct a builder which uses a given type system. This allows the type
+	 * system (and its caches) to be shared with other tasks operating on the
+	 * same project.
+	 *
+	 * @param project
+	 * @param typeSystem
+	 */
+	public Wyil2WyalBuilder(Build.Project project, TypeSystem typeSystem) {
 		this.project = project;
+		this.typeSystem = typeSystem;
 	}
 
 	@Override
@@ -46,10 +111,89 @@ public class Wyil2WyalBuilder implements Build.Task {
 		return project;
 	}
 
+	/**
+	 * Access the type system object this builder is using.
+	 *
+	 * @return
+	 */
+	public TypeSystem getTypeSystem() {
+		return typeSystem;
+	}
+
 	public void setLogger(Logger logger) {
 		this.logger = logger;
 	}
 
+	public void setMetrics(BuildMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Set the cache in which generated WyAL files are stored. A WyAL file is
+	 * restored from the cache when the WyIL file it is generated from is
+	 * unchanged. Since every WyIL file records the interfaces of those
+	 * modules it was compiled against, this accounts for any changes to them.
+	 *
+	 * @param cache
+	 *            --- The cache, or null if no cache should be used.
+	 */
+	public void setCache(BuildCache cache) {
+		this.cache = cache;
+	}
+
+	public ProofCache getProofCache() {
+		return proofs;
+	}
+
+	/**
+	 * Set the cache of previously proven assertions. Since whether an
+	 * assertion is omitted depends upon this cache, generated WyAL files are
+	 * not then restored from the build cache.
+	 *
+	 * @param proofs
+	 *            --- The proof cache, or null if every assertion should be
+	 *            generated.
+	 */
+	public void setProofCache(ProofCache proofs) {
+		this.proofs = proofs;
+	}
+
+	public boolean isSlicing() {
+		return slicing;
+	}
+
+	/**
+	 * Set whether verification conditions are sliced. Slicing makes
+	 * verification conditions smaller and, hence, easier to prove. However,
+	 * an assertion on an infeasible path may then no longer be provable, since
+	 * the contradictory assumptions may be removed.
+	 *
+	 * @param slicing
+	 */
+	public void setSlicing(boolean slicing) {
+		this.slicing = slicing;
+	}
+
+	public void setFlush(boolean flush) {
+		this.flush = flush;
+	}
+
+	public int getThreads() {
+		return executor.getThreads();
+	}
+
+	/**
+	 * Set the number of threads used to generate verification conditions.
+	 * Verification conditions are generated for each declaration
+	 * independently, regardless of which file it belongs to.
+	 *
+	 * @param threads
+	 *            Number of threads (must be positive).
+	 */
+	public void setThreads(int threads) {
+		this.executor = new TaskExecutor(threads);
+	}
+
 	public String id() {
 		return null;
 	}
@@ -65,21 +209,65 @@ public class Wyil2WyalBuilder implements Build.Task {
 		// ========================================================================
 		// Translate files
 		// ========================================================================
+		BuildMetrics.Timer timer = metrics.start("vcg", null);
 		HashSet<Path.Entry<?>> generatedFiles = new HashSet<>();
+		ArrayList<Path.Entry<WyalFile>> targets = new ArrayList<>();
+		ArrayList<BuildCache.Key> keys = new ArrayList<>();
+		ArrayList<WyalFile> restored = new ArrayList<>();
+		ArrayList<WyilFile> wyils = new ArrayList<>();
+		ArrayList<VerificationConditionGenerator> generators = new ArrayList<>();
+		ArrayList<Callable<VerificationConditionGenerator.Fragment>> tasks = new ArrayList<>();
+		ArrayList<Integer> counts = new ArrayList<>();
 		for (Pair<Path.Entry<?>, Path.Root> p : delta) {
 			Path.Entry<WyilFile> source = (Path.Entry<WyilFile>) p.first();
 			Path.Root dst = p.second();
 			Path.Entry<WyalFile> target = (Path.Entry<WyalFile>) dst.create(source.id(), WyalFile.ContentType);
 			graph.registerDerivation(source, target);
 			generatedFiles.add(target);
-			WyalFile contents = new VerificationConditionGenerator(new WyalFile(target),this).translate(source.read());
+			targets.add(target);
+			// NOTE: when the source was generated in this build, it is still
+			// held in memory and, hence, is not read back from disk.
+			WyilFile wyil = typeSystem.modules().get(source);
+			BuildCache.Key key = cache == null || proofs != null ? null : key(wyil);
+			WyalFile contents = key == null ? null : restore(key, target);
+			keys.add(key);
+			restored.add(contents);
+			wyils.add(wyil);
+			if (contents == null) {
+				// Translate the declarations of every file together, so that
+				// the load is balanced across files as well as within them.
+				VerificationConditionGenerator vcg = new VerificationConditionGenerator(new WyalFile(target), this);
+				List<Callable<VerificationConditionGenerator.Fragment>> declarations = vcg.translateDeclarations(wyil);
+				generators.add(vcg);
+				tasks.addAll(declarations);
+				counts.add(declarations.size());
+			} else {
+				generators.add(null);
+				counts.add(0);
+			}
+		}
+		List<VerificationConditionGenerator.Fragment> fragments = executor.execute(tasks);
+		for (int i = 0, j = 0; i != targets.size(); ++i) {
+			Path.Entry<WyalFile> target = targets.get(i);
+			WyalFile contents = restored.get(i);
+			if (contents == null) {
+				int count = counts.get(i);
+				contents = generators.get(i).merge(wyils.get(i), fragments.subList(j, j + count));
+				j += count;
+				if (keys.get(i) != null) {
+					store(keys.get(i), contents);
+				}
+			}
 			// Write the file into its destination
 			target.write(contents);
 			// Then, flush contents to disk in case we generate an assertion
 			// error later. In principle, this should be unnecessary when
 			// syntax errors are no longer implemented as exceptions.
-			target.flush();
+			if (flush) {
+				target.flush();
+			}
 		}
+		timer.stop(delta.size());
 
 		// ========================================================================
 		// Done
@@ -91,4 +279,44 @@ public class Wyil2WyalBuilder implements Build.Task {
 
 		return generatedFiles;
 	}
+
+	/**
+	 * Determine the key under which the WyAL file generated from a given WyIL
+	 * file is cached. This must include every option which affects the
+	 * generated file. Currently, this is only whether slicing is enabled,
+	 * since no file is restored when a proof cache is used and the number of
+	 * threads does not affect the generated file.
+	 *
+	 * @param source
+	 * @return
+	 * @throws IOException
+	 */
+	private BuildCache.Key key(WyilFile source) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		WyilFile.ContentType.write(bytes, source);
+		return new BuildCache.Key().add(source.getEntry().id().toString()).add(slicing).add(bytes.toByteArray());
+	}
+
+	/**
+	 * Restore a previously generated WyAL file from the cache, or return null
+	 * if there is none.
+	 *
+	 * @param key
+	 * @param target
+	 * @return
+	 * @throws IOException
+	 */
+	private WyalFile restore(BuildCache.Key key, Path.Entry<WyalFile> target) throws IOException {
+		byte[] cached = cache.get(key, WyalFile.ContentType.getSuffix());
+		if (cached != null) {
+			return WyalFile.ContentType.read(target, new ByteArrayInputStream(cached));
+		}
+		return null;
+	}
+
+	private void store(BuildCache.Key key, WyalFile contents) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		WyalFile.ContentType.write(bytes, contents);
+		cache.put(key, WyalFile.ContentType.getSuffix(), bytes.toByteArray());
+	}
 }
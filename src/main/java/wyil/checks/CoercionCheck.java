@@ -63,6 +63,10 @@ public class CoercionCheck implements Build.Stage<WyilFile> {
 		this.typeSystem = new TypeSystem(builder.project());
 	}
 
+	public CoercionCheck(TypeSystem typeSystem) {
+		this.typeSystem = typeSystem;
+	}
+
 	@Override
 	public void apply(WyilFile module) {
 		this.file = module;
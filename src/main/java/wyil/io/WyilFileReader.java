@@ -44,6 +44,18 @@ public final class WyilFileReader {
 		this.input = new BinaryInputStream(entry.inputStream());
 	}
 
+	/**
+	 * Construct a WyilFileReader to read a WyilFile for a given entry, but
+	 * from some other input stream (e.g. a cached copy of the entry).
+	 *
+	 * @param entry
+	 * @param input
+	 */
+	public WyilFileReader(Path.Entry<WyilFile> entry, InputStream input) throws IOException {
+		this.entry = entry;
+		this.input = new BinaryInputStream(input);
+	}
+
 	/**
 	 * Construct a WyilFileReader to read a WyilFile in headless mode. That is,
 	 * where the file is not associated with a Path.Entry.
@@ -60,7 +72,39 @@ public final class WyilFileReader {
 	}
 
 	public WyilFile read() throws IOException {
+		Map<Path.ID, Long> dependencies = readHeader(true);
+
+		input.pad_u8();
+
+		WyilFile wyilFile = readModule();
+		wyilFile.dependencies().putAll(dependencies);
+		return wyilFile;
+	}
+
+	/**
+	 * Read only the interface hashes of those modules the WyIL file depends
+	 * upon (see <code>WyilFile.dependencies()</code>). These follow the string
+	 * and path pools and, hence, neither the remaining pools nor the module
+	 * itself are decoded. This makes it much cheaper to determine whether a
+	 * file must be recompiled than reading the entire file.
+	 *
+	 * @return
+	 * @throws IOException
+	 */
+	public Map<Path.ID, Long> readDependencies() throws IOException {
+		return readHeader(false);
+	}
 
+	/**
+	 * Read the header block, returning the dependencies recorded in it.
+	 *
+	 * @param pools
+	 *            --- Whether the name, type and constant pools should also be
+	 *            read.
+	 * @return
+	 * @throws IOException
+	 */
+	private Map<Path.ID, Long> readHeader(boolean pools) throws IOException {
 		for (int i = 0; i != 8; ++i) {
 			char c = (char) input.read_u8();
 			if (magic[i] != c) {
@@ -90,13 +134,46 @@ public final class WyilFileReader {
 
 		readStringPool(stringPoolCount);
 		readPathPool(pathPoolCount);
-		readNamePool(namePoolCount);
-		readTypePool(typePoolCount);
-		readConstantPool(constantPoolCount);
-
-		input.pad_u8();
+		// Dependencies were added in version 0.2
+		HashMap<Path.ID, Long> dependencies = new HashMap<>();
+		if (majorVersion > 0 || minorVersion >= 2) {
+			readDependencyTable(dependencies);
+		}
+		if (pools) {
+			readNamePool(namePoolCount);
+			readTypePool(typePoolCount);
+			readConstantPool(constantPoolCount);
+		}
+		return dependencies;
+	}
 
-		return readModule();
+	/**
+	 * Read the list of modules this file depends upon, along with the hash of
+	 * their interface. Each entry is formated like so:
+	 *
+	 * <pre>
+	 * +-----------------+
+	 * | uv : pathIdx    |
+	 * +-----------------+
+	 * | u8[8] : hash    |
+	 * +-----------------+
+	 * </pre>
+	 *
+	 * The entries are preceded by their count.
+	 *
+	 * @param dependencies
+	 * @throws IOException
+	 */
+	private void readDependencyTable(Map<Path.ID, Long> dependencies) throws IOException {
+		int count = input.read_uv();
+		for (int i = 0; i != count; ++i) {
+			int pathIndex = input.read_uv();
+			long hash = 0;
+			for (int j = 0; j != 8; ++j) {
+				hash = (hash << 8) | (input.read_u8() & 0xFF);
+			}
+			dependencies.put(pathPool[pathIndex], hash);
+		}
 	}
 
 	/**
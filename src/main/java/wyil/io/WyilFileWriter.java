@@ -45,7 +45,7 @@ import wyil.util.AbstractBytecode;
  */
 public final class WyilFileWriter {
 	private static final int MAJOR_VERSION = 0;
-	private static final int MINOR_VERSION = 1;
+	private static final int MINOR_VERSION = 2;
 
 	private final BinaryOutputStream out;
 
@@ -152,6 +152,9 @@ public final class WyilFileWriter {
 
 		writeStringPool(output);
 		writePathPool(output);
+		// Dependencies are written before the remaining pools, so they can be
+		// read without decoding those pools.
+		writeDependencies(module, output);
 		writeNamePool(output);
 		writeTypePool(output);
 		writeConstantPool(output);
@@ -419,6 +422,42 @@ public final class WyilFileWriter {
 		return bytes.toByteArray();
 	}
 
+	/**
+	 * Write the list of modules this WYIL file depends upon, along with the
+	 * hash of their interface. Each entry is formated like so:
+	 *
+	 * <pre>
+	 * +-----------------+
+	 * | uv : pathIdx    |
+	 * +-----------------+
+	 * | u8[8] : hash    |
+	 * +-----------------+
+	 * </pre>
+	 *
+	 * The entries are preceded by their count, and are written in order of
+	 * module name to ensure the output is deterministic.
+	 *
+	 * @throws IOException
+	 */
+	private void writeDependencies(WyilFile module, BinaryOutputStream output) throws IOException {
+		Map<Path.ID, Long> dependencies = module.dependencies();
+		ArrayList<Path.ID> ids = new ArrayList<>(dependencies.keySet());
+		Collections.sort(ids, new Comparator<Path.ID>() {
+			@Override
+			public int compare(Path.ID o1, Path.ID o2) {
+				return o1.toString().compareTo(o2.toString());
+			}
+		});
+		output.write_uv(ids.size());
+		for (Path.ID id : ids) {
+			long hash = dependencies.get(id);
+			output.write_uv(pathCache.get(id));
+			for (int i = 56; i >= 0; i -= 8) {
+				output.write_u8((int) (hash >>> i) & 0xFF);
+			}
+		}
+	}
+
 	private void writeModuleBlock(WyilFile.Block d, BinaryOutputStream output) throws IOException {
 		if (d instanceof WyilFile.Constant) {
 			writeBlock(BLOCK_Constant, d, output);
@@ -882,6 +921,9 @@ public final class WyilFileWriter {
 		typeCache.clear();
 
 		addPathItem(module.getEntry().id());
+		for (Path.ID id : module.dependencies().keySet()) {
+			addPathItem(id);
+		}
 		for (WyilFile.Block d : module.blocks()) {
 			buildPools(d);
 		}
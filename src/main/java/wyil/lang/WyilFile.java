@@ -92,6 +92,14 @@ public final class WyilFile extends AbstractCompilationUnit {
 	 */
 	private final ArrayList<Block> blocks;
 
+	/**
+	 * The modules this WyilFile was compiled against, mapped to the hash of
+	 * their interface at that time. This allows a build to determine when this
+	 * file must be recompiled because the interface of some module it depends
+	 * upon has changed.
+	 */
+	private final HashMap<Path.ID, Long> dependencies;
+
 	// =========================================================================
 	// Constructors
 	// =========================================================================
@@ -107,6 +115,7 @@ public final class WyilFile extends AbstractCompilationUnit {
 	public WyilFile(Path.Entry<? extends CompilationUnit> entry) {
 		super(entry);
 		this.blocks = new ArrayList<>();
+		this.dependencies = new HashMap<>();
 	}
 
 	// =========================================================================
@@ -142,6 +151,17 @@ public final class WyilFile extends AbstractCompilationUnit {
 		return blocks;
 	}
 
+	/**
+	 * Returns the interface hashes of all modules this WyilFile was compiled
+	 * against (see <code>wyil.util.ModuleInterface</code>). This map is
+	 * modifiable, and is written out along with the WyilFile.
+	 *
+	 * @return
+	 */
+	public Map<Path.ID, Long> dependencies() {
+		return dependencies;
+	}
+
 	/**
 	 * Looks up a type declaration in this WyilFile with the given name; if none
 	 * exists, returns null.
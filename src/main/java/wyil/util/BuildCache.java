@@ -0,0 +1,288 @@
+// Copyright (c) 2011, David J. Pearce (djp@ecs.vuw.ac.nz)
+// All rights reserved.
+//
+// This software may be modified and distributed under the terms
+// of the BSD license.  See the LICENSE file for details.
+package wyil.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.CodeSource;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.stream.Stream;
+
+/**
+ * <p>
+ * A content-addressed cache of build outputs, stored in a local directory.
+ * Each output is stored under a key computed from everything which determines
+ * it (e.g. the contents of the source file, the compiler version and any
+ * relevant options). Thus, an output can be restored from the cache rather
+ * than regenerated whenever its key matches, regardless of which project,
+ * branch or machine it was originally generated for.
+ * </p>
+ * <p>
+ * Outputs are written to a temporary file, which is then moved into place.
+ * This ensures that other processes sharing the same directory never see a
+ * partially written output. Since an output is determined entirely by its
+ * key, it does not matter which of several processes generating the same
+ * output wins.
+ * </p>
+ *
+ * @author David J. Pearce
+ *
+ */
+public class BuildCache {
+	/**
+	 * Identifies the version of the compiler. This is included in every key,
+	 * so that outputs generated by one version are never restored by another.
+	 * Version numbers are not reliable for this, since they are not changed
+	 * between development builds. Instead, this is a hash of the class files
+	 * of the compiler, and of the libraries which determine its outputs. This
+	 * is null if the class files could not be found, in which case no cache
+	 * can be used.
+	 */
+	public static final String VERSION = version(BuildCache.class, wyal.lang.WyalFile.class,
+			wytp.provers.AutomatedTheoremProver.class);
+
+	/**
+	 * The root directory of the cache.
+	 */
+	private final File dir;
+
+	public BuildCache(File dir) {
+		if (VERSION == null) {
+			throw new IllegalStateException("compiler version unknown");
+		}
+		this.dir = dir;
+	}
+
+	/**
+	 * Check whether a cache can be used at all. This is not possible when the
+	 * version of the compiler cannot be determined, since outputs from one
+	 * version could then be restored by another.
+	 *
+	 * @return
+	 */
+	public static boolean isSupported() {
+		return VERSION != null;
+	}
+
+	public File getDirectory() {
+		return dir;
+	}
+
+	/**
+	 * Get the output stored under a given key, or null if there is none.
+	 *
+	 * @param key
+	 *            --- The key identifying the output.
+	 * @param suffix
+	 *            --- The kind of output (e.g. "wyil").
+	 * @return
+	 * @throws IOException
+	 */
+	public byte[] get(Key key, String suffix) throws IOException {
+		try {
+			return Files.readAllBytes(file(key, suffix).toPath());
+		} catch (NoSuchFileException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Store an output under a given key, replacing any existing output.
+	 *
+	 * @param key
+	 *            --- The key identifying the output.
+	 * @param suffix
+	 *            --- The kind of output (e.g. "wyil").
+	 * @param data
+	 *            --- The output itself.
+	 * @throws IOException
+	 */
+	public void put(Key key, String suffix, byte[] data) throws IOException {
+		File target = file(key, suffix);
+		File parent = target.getParentFile();
+		parent.mkdirs();
+		File tmp = File.createTempFile(target.getName(), ".tmp", parent);
+		try {
+			Files.write(tmp.toPath(), data);
+			try {
+				Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE,
+						StandardCopyOption.REPLACE_EXISTING);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+		} finally {
+			tmp.delete();
+		}
+	}
+
+	/**
+	 * Determine the file in which a given output is stored. Outputs are spread
+	 * over subdirectories named after the first two digits of their key, to
+	 * avoid any one directory becoming too large.
+	 *
+	 * @param key
+	 * @param suffix
+	 * @return
+	 */
+	private File file(Key key, String suffix) {
+		String hex = key.toString();
+		return new File(new File(dir, hex.substring(0, 2)), hex.substring(2) + "." + suffix);
+	}
+
+	/**
+	 * Compute a hash of the jar files (or class directories) from which a
+	 * given set of classes were loaded.
+	 *
+	 * @param classes
+	 * @return The hash, or null if any class was not loaded from a jar file
+	 *         or directory.
+	 */
+	private static String version(Class<?>... classes) {
+		try {
+			Key key = new Key(null);
+			for (Class<?> c : classes) {
+				CodeSource source = c.getProtectionDomain().getCodeSource();
+				if (source == null || source.getLocation() == null) {
+					return null;
+				}
+				java.nio.file.Path location = Paths.get(source.getLocation().toURI());
+				if (Files.isDirectory(location)) {
+					// Visit the class files in a fixed order
+					try (Stream<java.nio.file.Path> files = Files.walk(location)) {
+						Iterator<java.nio.file.Path> i = files.sorted().iterator();
+						while (i.hasNext()) {
+							java.nio.file.Path file = i.next();
+							if (Files.isRegularFile(file)) {
+								key.add(location.relativize(file).toString());
+								key.add(Files.readAllBytes(file));
+							}
+						}
+					}
+				} else {
+					key.add(Files.readAllBytes(location));
+				}
+			}
+			return key.toString();
+		} catch (IOException | URISyntaxException | SecurityException | IllegalArgumentException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Read the remainder of a given input stream, closing it afterwards.
+	 *
+	 * @param input
+	 * @return
+	 * @throws IOException
+	 */
+	public static byte[] readAll(InputStream input) throws IOException {
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			byte[] buffer = new byte[8192];
+			int n;
+			while ((n = input.read(buffer)) >= 0) {
+				bytes.write(buffer, 0, n);
+			}
+			return bytes.toByteArray();
+		} finally {
+			input.close();
+		}
+	}
+
+	/**
+	 * A key identifying an output in the cache. This is built up from those
+	 * things which determine the output, and always includes the compiler
+	 * version.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	public static final class Key {
+		private final MessageDigest digest;
+		private String hex;
+
+		public Key() {
+			this(VERSION);
+			if (VERSION == null) {
+				throw new IllegalStateException("compiler version unknown");
+			}
+		}
+
+		private Key(String version) {
+			try {
+				digest = MessageDigest.getInstance("SHA-1");
+			} catch (NoSuchAlgorithmException e) {
+				// SHA-1 is required of every Java platform
+				throw new IllegalStateException(e);
+			}
+			if (version != null) {
+				add(version);
+			}
+		}
+
+		public Key add(String s) {
+			return add(s.getBytes(StandardCharsets.UTF_8));
+		}
+
+		public Key add(boolean b) {
+			return add(b ? "true" : "false");
+		}
+
+		public Key add(long l) {
+			return add(Long.toString(l));
+		}
+
+		/**
+		 * Add some data to this key. The length of the data is included, so
+		 * that the boundaries between items are unambiguous.
+		 *
+		 * @param bytes
+		 * @return
+		 */
+		public Key add(byte[] bytes) {
+			if (hex != null) {
+				throw new IllegalStateException("key already computed");
+			}
+			digest.update(Integer.toString(bytes.length).getBytes(StandardCharsets.UTF_8));
+			digest.update((byte) ':');
+			digest.update(bytes);
+			return this;
+		}
+
+		@Override
+		public String toString() {
+			if (hex == null) {
+				StringBuilder r = new StringBuilder();
+				for (byte b : digest.digest()) {
+					r.append(String.format("%02x", b & 0xFF));
+				}
+				hex = r.toString();
+			}
+			return hex;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			return o instanceof Key && o.toString().equals(toString());
+		}
+
+		@Override
+		public int hashCode() {
+			return toString().hashCode();
+		}
+	}
+}
@@ -0,0 +1,483 @@
+// Copyright (c) 2011, David J. Pearce (djp@ecs.vuw.ac.nz)
+// All rights reserved.
+//
+// This software may be modified and distributed under the terms
+// of the BSD license.  See the LICENSE file for details.
+package wyil.util;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>
+ * Records structured metrics about a build, so that the performance of the
+ * compiler can be tracked over time. A record is made for each phase of a
+ * build and, where a phase operates on each file independently, for each file
+ * as well. Each record gives the wall time, CPU time and number of bytes
+ * allocated. In addition, hits and misses are counted for each named cache.
+ * </p>
+ * <p>
+ * The CPU time and allocated bytes of a record are those of the thread on
+ * which it was measured. Thus, for a phase whose files are processed on
+ * several threads, these figures are only meaningful for the per-file records.
+ * Allocated bytes are not available on all virtual machines, in which case
+ * they are reported as -1.
+ * </p>
+ * <p>
+ * When verifying, a record is also made for each assertion checked by the
+ * prover. This gives the size of the assertion, the time taken to check it,
+ * its outcome and the source location from which it was generated. Thus, it
+ * is possible to identify those assertions which make verification slow.
+ * </p>
+ * <p>
+ * Metrics are recorded from any number of threads, and can be exported as
+ * either JSON or CSV.
+ * </p>
+ *
+ * @author David J. Pearce
+ *
+ */
+public class BuildMetrics {
+	/**
+	 * Metrics which discard everything recorded.
+	 */
+	public static final BuildMetrics NULL = new BuildMetrics(false);
+
+	private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+	private final boolean enabled;
+
+	private final ConcurrentLinkedQueue<Record> records = new ConcurrentLinkedQueue<>();
+
+	private final ConcurrentLinkedQueue<Assertion> assertions = new ConcurrentLinkedQueue<>();
+
+	private final ConcurrentHashMap<String, AtomicLong> hits = new ConcurrentHashMap<>();
+
+	private final ConcurrentHashMap<String, AtomicLong> misses = new ConcurrentHashMap<>();
+
+	public BuildMetrics() {
+		this(true);
+	}
+
+	private BuildMetrics(boolean enabled) {
+		this.enabled = enabled;
+	}
+
+	/**
+	 * Check whether anything recorded is retained.
+	 *
+	 * @return
+	 */
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Begin measuring a phase of the build on the current thread.
+	 *
+	 * @param phase
+	 *            --- The name of the phase (e.g. "parse").
+	 * @param file
+	 *            --- The file this measurement is for, or null if it is for
+	 *            the phase as a whole.
+	 * @return
+	 */
+	public Timer start(String phase, String file) {
+		return new Timer(phase, file);
+	}
+
+	/**
+	 * Record that a lookup in the given cache succeeded.
+	 *
+	 * @param cache
+	 */
+	public void hit(String cache) {
+		if (enabled) {
+			counter(hits, cache).incrementAndGet();
+			counter(misses, cache);
+		}
+	}
+
+	/**
+	 * Record that a lookup in the given cache failed.
+	 *
+	 * @param cache
+	 */
+	public void miss(String cache) {
+		if (enabled) {
+			counter(misses, cache).incrementAndGet();
+			counter(hits, cache);
+		}
+	}
+
+	/**
+	 * Record the outcome of checking a single assertion.
+	 *
+	 * @param assertion
+	 */
+	public void assertion(Assertion assertion) {
+		if (enabled) {
+			assertions.add(assertion);
+		}
+	}
+
+	/**
+	 * Get all records made so far, in the order they were completed.
+	 *
+	 * @return
+	 */
+	public List<Record> getRecords() {
+		return new ArrayList<>(records);
+	}
+
+	/**
+	 * Get all assertions recorded so far, in the order they were checked.
+	 *
+	 * @return
+	 */
+	public List<Assertion> getAssertions() {
+		return new ArrayList<>(assertions);
+	}
+
+	/**
+	 * Discard all records and cache counts made so far.
+	 */
+	public void clear() {
+		records.clear();
+		assertions.clear();
+		hits.clear();
+		misses.clear();
+	}
+
+	/**
+	 * Write all metrics in JSON format. This consists of an object with three
+	 * fields: <code>records</code>, an array with one object per record;
+	 * <code>caches</code>, an object mapping each cache name to its hits and
+	 * misses; and, <code>assertions</code>, an array with one object per
+	 * assertion checked.
+	 *
+	 * @param out
+	 * @throws IOException
+	 */
+	public void writeJSON(Writer out) throws IOException {
+		out.write("{\n  \"records\": [");
+		String sep = "\n";
+		for (Record r : records) {
+			out.write(sep);
+			out.write("    {\"phase\": " + quote(r.phase) + ", \"file\": " + (r.file == null ? "null" : quote(r.file))
+					+ ", \"files\": " + r.files + ", \"wallNanos\": " + r.wallTime + ", \"cpuNanos\": " + r.cpuTime
+					+ ", \"allocatedBytes\": " + r.allocatedBytes + "}");
+			sep = ",\n";
+		}
+		out.write("\n  ],\n  \"caches\": {");
+		sep = "\n";
+		for (Map.Entry<String, long[]> e : caches().entrySet()) {
+			long[] counts = e.getValue();
+			out.write(sep);
+			out.write("    " + quote(e.getKey()) + ": {\"hits\": " + counts[0] + ", \"misses\": " + counts[1] + "}");
+			sep = ",\n";
+		}
+		out.write("\n  },\n  \"assertions\": [");
+		sep = "\n";
+		for (Assertion a : assertions) {
+			out.write(sep);
+			out.write("    {\"file\": " + quote(a.file) + ", \"start\": " + a.start + ", \"end\": " + a.end
+					+ ", \"message\": " + quote(a.message) + ", \"size\": " + a.size + ", \"wallNanos\": "
+					+ a.wallTime + ", \"outcome\": " + quote(a.outcome.toString()) + "}");
+			sep = ",\n";
+		}
+		out.write("\n  ]\n}\n");
+		out.flush();
+	}
+
+	/**
+	 * Write all metrics in CSV format. Each record is written as a row.
+	 * Following this, each cache is written as a row whose phase is
+	 * "cache:<i>NAME</i>" and whose file count and wall time columns hold
+	 * the number of hits and misses respectively. Finally, each assertion is
+	 * written as a row whose phase is "assert:<i>OUTCOME</i>", whose file is
+	 * "<i>FILE</i>:<i>START</i>-<i>END</i>" and whose file count column holds
+	 * its size.
+	 *
+	 * @param out
+	 * @throws IOException
+	 */
+	public void writeCSV(Writer out) throws IOException {
+		out.write("phase,file,files,wallNanos,cpuNanos,allocatedBytes\n");
+		for (Record r : records) {
+			out.write(csv(r.phase) + "," + (r.file == null ? "" : csv(r.file)) + "," + r.files + "," + r.wallTime
+					+ "," + r.cpuTime + "," + r.allocatedBytes + "\n");
+		}
+		for (Map.Entry<String, long[]> e : caches().entrySet()) {
+			long[] counts = e.getValue();
+			out.write(csv("cache:" + e.getKey()) + ",," + counts[0] + "," + counts[1] + ",,\n");
+		}
+		for (Assertion a : assertions) {
+			out.write(csv("assert:" + a.outcome) + "," + csv(a.file + ":" + a.start + "-" + a.end) + "," + a.size + ","
+					+ a.wallTime + ",,\n");
+		}
+		out.flush();
+	}
+
+	private Map<String, long[]> caches() {
+		TreeMap<String, long[]> r = new TreeMap<>();
+		for (Map.Entry<String, AtomicLong> e : hits.entrySet()) {
+			AtomicLong m = misses.get(e.getKey());
+			r.put(e.getKey(), new long[] { e.getValue().get(), m == null ? 0 : m.get() });
+		}
+		return r;
+	}
+
+	private static AtomicLong counter(ConcurrentHashMap<String, AtomicLong> counters, String name) {
+		AtomicLong c = counters.get(name);
+		if (c == null) {
+			counters.putIfAbsent(name, new AtomicLong());
+			c = counters.get(name);
+		}
+		return c;
+	}
+
+	private static String quote(String s) {
+		StringBuilder r = new StringBuilder("\"");
+		for (int i = 0; i != s.length(); ++i) {
+			char c = s.charAt(i);
+			if (c == '"' || c == '\\') {
+				r.append('\\').append(c);
+			} else if (c < 0x20) {
+				r.append(String.format("\\u%04x", (int) c));
+			} else {
+				r.append(c);
+			}
+		}
+		return r.append('"').toString();
+	}
+
+	private static String csv(String s) {
+		if (s.indexOf(',') >= 0 || s.indexOf('"') >= 0 || s.indexOf('\n') >= 0) {
+			return "\"" + s.replace("\"", "\"\"") + "\"";
+		}
+		return s;
+	}
+
+	private static long cpuTime() {
+		return THREADS.isCurrentThreadCpuTimeSupported() ? THREADS.getCurrentThreadCpuTime() : -1;
+	}
+
+	private static long allocatedBytes() {
+		if (THREADS instanceof com.sun.management.ThreadMXBean) {
+			com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) THREADS;
+			if (threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled()) {
+				return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Measures a single phase (or file within a phase) on the thread which
+	 * started it.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	public final class Timer {
+		private final String phase;
+		private final String file;
+		private final long wallTime;
+		private final long cpuTime;
+		private final long allocatedBytes;
+
+		private Timer(String phase, String file) {
+			this.phase = phase;
+			this.file = file;
+			this.wallTime = System.nanoTime();
+			this.cpuTime = enabled ? cpuTime() : -1;
+			this.allocatedBytes = enabled ? allocatedBytes() : -1;
+		}
+
+		/**
+		 * Finish this measurement, recording the number of files which were
+		 * processed. This must be called on the same thread which started the
+		 * measurement.
+		 *
+		 * @param files
+		 */
+		public void stop(int files) {
+			if (enabled) {
+				long cpu = cpuTime;
+				long allocated = allocatedBytes;
+				if (cpu >= 0) {
+					cpu = cpuTime() - cpu;
+				}
+				if (allocated >= 0) {
+					allocated = allocatedBytes() - allocated;
+				}
+				records.add(new Record(phase, file, files, System.nanoTime() - wallTime, cpu, allocated));
+			}
+		}
+	}
+
+	/**
+	 * A single measurement made during a build.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	public static final class Record {
+		private final String phase;
+		private final String file;
+		private final int files;
+		private final long wallTime;
+		private final long cpuTime;
+		private final long allocatedBytes;
+
+		public Record(String phase, String file, int files, long wallTime, long cpuTime, long allocatedBytes) {
+			this.phase = phase;
+			this.file = file;
+			this.files = files;
+			this.wallTime = wallTime;
+			this.cpuTime = cpuTime;
+			this.allocatedBytes = allocatedBytes;
+		}
+
+		public String getPhase() {
+			return phase;
+		}
+
+		/**
+		 * Get the file this record is for, or null if it is for a phase as a
+		 * whole.
+		 *
+		 * @return
+		 */
+		public String getFile() {
+			return file;
+		}
+
+		public int getFiles() {
+			return files;
+		}
+
+		/**
+		 * Get the wall time (in nanoseconds).
+		 *
+		 * @return
+		 */
+		public long getWallTime() {
+			return wallTime;
+		}
+
+		/**
+		 * Get the CPU time (in nanoseconds), or -1 if this was not available.
+		 *
+		 * @return
+		 */
+		public long getCpuTime() {
+			return cpuTime;
+		}
+
+		/**
+		 * Get the number of bytes allocated, or -1 if this was not available.
+		 *
+		 * @return
+		 */
+		public long getAllocatedBytes() {
+			return allocatedBytes;
+		}
+	}
+
+	/**
+	 * The possible outcomes of checking an assertion.
+	 */
+	public enum Outcome {
+		PROVED, FAILED, TIMEOUT;
+
+		@Override
+		public String toString() {
+			return name().toLowerCase();
+		}
+	}
+
+	/**
+	 * Describes the checking of a single assertion.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	public static final class Assertion {
+		private final String file;
+		private final int start;
+		private final int end;
+		private final String message;
+		private final int size;
+		private final long wallTime;
+		private final Outcome outcome;
+
+		/**
+		 * Construct a record of a single assertion.
+		 *
+		 * @param file
+		 *            --- The file from which the assertion was generated.
+		 * @param start
+		 *            --- The start of the source location from which the
+		 *            assertion was generated, or -1 if this is unknown.
+		 * @param end
+		 *            --- The end of that source location, or -1 if unknown.
+		 * @param message
+		 *            --- The message reported if the assertion fails.
+		 * @param size
+		 *            --- The number of distinct terms in the assertion.
+		 * @param wallTime
+		 *            --- The time taken to check the assertion (in
+		 *            nanoseconds).
+		 * @param outcome
+		 */
+		public Assertion(String file, int start, int end, String message, int size, long wallTime,
+				Outcome outcome) {
+			this.file = file;
+			this.start = start;
+			this.end = end;
+			this.message = message;
+			this.size = size;
+			this.wallTime = wallTime;
+			this.outcome = outcome;
+		}
+
+		public String getFile() {
+			return file;
+		}
+
+		public int getStart() {
+			return start;
+		}
+
+		public int getEnd() {
+			return end;
+		}
+
+		public String getMessage() {
+			return message;
+		}
+
+		public int getSize() {
+			return size;
+		}
+
+		public long getWallTime() {
+			return wallTime;
+		}
+
+		public Outcome getOutcome() {
+			return outcome;
+		}
+	}
+}
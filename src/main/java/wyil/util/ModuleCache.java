@@ -0,0 +1,277 @@
+// Copyright (c) 2011, David J. Pearce (djp@ecs.vuw.ac.nz)
+// All rights reserved.
+//
+// This software may be modified and distributed under the terms
+// of the BSD license.  See the LICENSE file for details.
+package wyil.util;
+
+import java.io.IOException;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import wybs.lang.Build;
+import wyfs.lang.Path;
+import wyil.io.WyilFileReader;
+import wyil.lang.WyilFile;
+
+/**
+ * <p>
+ * A memory-sensitive cache of the WyIL modules in a project. Every component
+ * which needs the contents of a compiled module (e.g. during name resolution,
+ * type expansion, verification condition generation or interpretation)
+ * should obtain it from here. This ensures that a module (e.g. from the
+ * standard library) is decoded at most once, rather than once by each
+ * component which needs it.
+ * </p>
+ * <p>
+ * Modules are held by soft references. Thus, they are retained for as long
+ * as memory permits, and are reclaimed by the garbage collector when memory
+ * is low. A reclaimed module is simply decoded again when next requested.
+ * For this to work, a module is decoded from disk without going through its
+ * entry (which would otherwise retain it), and other caches must not refer to
+ * modules strongly. Likewise, components must not read modules from their
+ * entries directly, since each would then decode its own copy.
+ * </p>
+ * <p>
+ * A cached module remains valid until its entry is replaced or modified on
+ * disk. However, a module which is written in memory (e.g. by the compiler)
+ * must be explicitly invalidated, since this cannot otherwise be detected.
+ * </p>
+ * <p>
+ * A single cache is shared (via the type system) by all components operating
+ * on the same project, and may be used by several threads at once.
+ * </p>
+ *
+ * @author David J. Pearce
+ *
+ */
+public class ModuleCache {
+	private final Build.Project project;
+
+	private final ConcurrentHashMap<Path.ID, Ref> modules = new ConcurrentHashMap<>();
+
+	/**
+	 * Receives references once their modules have been reclaimed, so that
+	 * evictions can be counted.
+	 */
+	private final ReferenceQueue<WyilFile> reclaimed = new ReferenceQueue<>();
+
+	/**
+	 * Those to be told whenever a module is invalidated.
+	 */
+	private final CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<>();
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+
+	/**
+	 * Modules which have been decoded in advance (e.g. from a library shared
+	 * by several projects), indexed by the entry they were decoded from. These
+	 * are never modified and, hence, may be shared between caches.
+	 */
+	private final Map<Path.Entry<?>, WyilFile> shared;
+
+	public ModuleCache(Build.Project project) {
+		this(project, Collections.<Path.Entry<?>, WyilFile> emptyMap());
+	}
+
+	/**
+	 * Construct a cache which obtains the modules of any entry in a given map
+	 * from that map, rather than decoding them. The map is not copied and must
+	 * not subsequently change.
+	 *
+	 * @param project
+	 * @param shared
+	 *            --- Modules already decoded from entries of the project.
+	 */
+	public ModuleCache(Build.Project project, Map<Path.Entry<?>, WyilFile> shared) {
+		this.project = project;
+		this.shared = shared;
+	}
+
+	/**
+	 * Get the module with a given identifier, or null if there is no such
+	 * module in the project.
+	 *
+	 * @param id
+	 * @return
+	 * @throws IOException
+	 */
+	public WyilFile get(Path.ID id) throws IOException {
+		Path.Entry<WyilFile> entry = project.get(id, WyilFile.ContentType);
+		if (entry == null) {
+			return null;
+		}
+		return get(entry);
+	}
+
+	/**
+	 * Get the module held in a given entry of the project. This should be
+	 * used in place of <code>entry.read()</code> whenever the entry is
+	 * already known.
+	 *
+	 * @param entry
+	 * @return
+	 * @throws IOException
+	 */
+	public WyilFile get(Path.Entry<WyilFile> entry) throws IOException {
+		WyilFile module = shared.get(entry);
+		if (module != null) {
+			hits.incrementAndGet();
+			return module;
+		}
+		expunge();
+		Path.ID id = entry.id();
+		Ref ref = modules.get(id);
+		module = ref == null ? null : ref.get();
+		if (module != null && ref.entry == entry && ref.lastModified == entry.lastModified()) {
+			hits.incrementAndGet();
+			return module;
+		}
+		misses.incrementAndGet();
+		if (module != null) {
+			// The cached module is stale, since its entry has been replaced
+			// or modified on disk.
+			notify(id);
+		}
+		long lastModified = entry.lastModified();
+		if (entry.isModified()) {
+			// The module has been written in memory (e.g. by the compiler)
+			// but not yet flushed and, hence, can only be obtained from its
+			// entry.
+			module = entry.read();
+		} else {
+			module = decode(entry);
+		}
+		modules.put(id, new Ref(id, entry, lastModified, module, reclaimed));
+		return module;
+	}
+
+	/**
+	 * Discard the cached module with a given identifier (if any). This must be
+	 * called whenever a new module is written to its entry.
+	 *
+	 * @param id
+	 */
+	public void invalidate(Path.ID id) {
+		modules.remove(id);
+		notify(id);
+	}
+
+	/**
+	 * Discard all cached modules.
+	 */
+	public void clear() {
+		modules.clear();
+		notify(null);
+	}
+
+	/**
+	 * Register a listener to be told whenever a module is invalidated. This
+	 * allows other caches of information derived from modules to be kept
+	 * consistent without checking the module on every use.
+	 *
+	 * @param listener
+	 */
+	public void addListener(Listener listener) {
+		listeners.add(listener);
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * Get the number of modules reclaimed by the garbage collector.
+	 *
+	 * @return
+	 */
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	@Override
+	public String toString() {
+		return hits + " hit(s), " + misses + " miss(es), " + evictions + " eviction(s)";
+	}
+
+	/**
+	 * Remove any references whose modules have been reclaimed. References
+	 * which had already been replaced are not counted as evictions.
+	 */
+	private void expunge() {
+		Reference<? extends WyilFile> r;
+		while ((r = reclaimed.poll()) != null) {
+			if (modules.remove(((Ref) r).id, r)) {
+				evictions.incrementAndGet();
+			}
+		}
+	}
+
+	private void notify(Path.ID id) {
+		for (Listener listener : listeners) {
+			listener.invalidated(id);
+		}
+	}
+
+	/**
+	 * Told whenever a module is invalidated, either explicitly or because its
+	 * entry was found to have changed.
+	 */
+	public interface Listener {
+		/**
+		 * Signals that the module with a given identifier has been
+		 * invalidated.
+		 *
+		 * @param id
+		 *            --- The identifier of the module, or null if every
+		 *            module has been invalidated.
+		 */
+		public void invalidated(Path.ID id);
+	}
+
+	/**
+	 * Decode a module directly from disk. This bypasses the entry, since the
+	 * entry would otherwise retain the decoded module (and it could never be
+	 * reclaimed). Entries are not owned by this cache and, hence, their state
+	 * is never changed here. Since nothing is written to the entry, several
+	 * threads may decode from the same entry at once.
+	 *
+	 * @param entry
+	 * @return
+	 * @throws IOException
+	 */
+	public static WyilFile decode(Path.Entry<WyilFile> entry) throws IOException {
+		WyilFileReader reader = new WyilFileReader(entry);
+		try {
+			return reader.read();
+		} finally {
+			reader.close();
+		}
+	}
+
+	private static final class Ref extends SoftReference<WyilFile> {
+		private final Path.ID id;
+		private final Path.Entry<WyilFile> entry;
+		private final long lastModified;
+
+		public Ref(Path.ID id, Path.Entry<WyilFile> entry, long lastModified, WyilFile module,
+				ReferenceQueue<WyilFile> queue) {
+			super(module, queue);
+			this.id = id;
+			this.entry = entry;
+			this.lastModified = lastModified;
+		}
+	}
+}
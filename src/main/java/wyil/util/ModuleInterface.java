@@ -0,0 +1,498 @@
+// Copyright (c) 2011, David J. Pearce (djp@ecs.vuw.ac.nz)
+// All rights reserved.
+//
+// This software may be modified and distributed under the terms
+// of the BSD license.  See the LICENSE file for details.
+
+package wyil.util;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+import wybs.lang.NameID;
+import wyfs.lang.Path;
+import wyil.lang.*;
+import wyil.lang.SyntaxTree.Location;
+
+/**
+ * <p>
+ * Helper functions for determining the <i>interface</i> of a WyilFile. This is
+ * that part of a module which other modules can depend upon. Specifically, it
+ * consists of all type and constant declarations (including type invariants),
+ * along with the signatures and contracts of all public functions, methods and
+ * properties. The bodies of functions and methods are not part of the
+ * interface, nor are private functions or methods. Type declarations are
+ * always included regardless of their modifiers, since expanding a public type
+ * may require expanding a private one.
+ * </p>
+ * <p>
+ * An interface is summarised by a hash which, unlike
+ * <code>Object.hashCode()</code>, is stable across runs of the compiler. This
+ * allows it to be recorded in a binary WyilFile and compared later. Two
+ * modules whose interfaces hash to the same value are assumed to be
+ * interchangeable from the perspective of any module which depends upon them.
+ * </p>
+ *
+ * @author David J. Pearce
+ *
+ */
+public class ModuleInterface {
+
+	/**
+	 * Compute a hash of the interface of a given WyilFile.
+	 *
+	 * @param module
+	 * @return
+	 */
+	public static long hash(WyilFile module) {
+		MessageDigest digest = newDigest();
+		Hasher hasher = new Hasher(new DataOutputStream(new DigestStream(digest)));
+		try {
+			for (WyilFile.Block block : module.blocks()) {
+				hasher.write(block);
+			}
+		} catch (IOException e) {
+			// deadcode, since digest streams never throw
+			throw new RuntimeException(e);
+		}
+		return toLong(digest);
+	}
+
+	/**
+	 * Compute a hash of a given declaration in its entirety. Unlike the hash
+	 * of an interface, this includes the body of a function or method and
+	 * does not depend upon its modifiers.
+	 *
+	 * @param declaration
+	 * @return
+	 */
+	public static long hash(WyilFile.Declaration declaration) {
+		MessageDigest digest = newDigest();
+		Hasher hasher = new Hasher(new DataOutputStream(new DigestStream(digest)));
+		try {
+			hasher.writeDeclaration(declaration);
+		} catch (IOException e) {
+			// deadcode, since digest streams never throw
+			throw new RuntimeException(e);
+		}
+		return toLong(digest);
+	}
+
+	/**
+	 * Compute a hash of the contract of a given function, method or property.
+	 * That is, its signature, precondition and postcondition (regardless of
+	 * its modifiers).
+	 *
+	 * @param declaration
+	 * @return
+	 */
+	public static long contract(WyilFile.FunctionOrMethodOrProperty declaration) {
+		MessageDigest digest = newDigest();
+		Hasher hasher = new Hasher(new DataOutputStream(new DigestStream(digest)));
+		try {
+			hasher.writeContract(declaration);
+		} catch (IOException e) {
+			// deadcode, since digest streams never throw
+			throw new RuntimeException(e);
+		}
+		return toLong(digest);
+	}
+
+	private static long toLong(MessageDigest digest) {
+		byte[] bytes = digest.digest();
+		long result = 0;
+		for (int i = 0; i != 8; ++i) {
+			result = (result << 8) | (bytes[i] & 0xFF);
+		}
+		return result;
+	}
+
+	/**
+	 * Determine the set of modules which a given WyilFile refers to directly.
+	 * That is, all modules containing a named type, function, method or
+	 * property which is used in the given file. The module itself is not
+	 * included.
+	 *
+	 * @param module
+	 * @return
+	 */
+	public static Set<Path.ID> dependencies(WyilFile module) {
+		HashSet<Path.ID> dependencies = new HashSet<>();
+		for (WyilFile.Block block : module.blocks()) {
+			if (block instanceof WyilFile.Declaration) {
+				for (NameID name : references((WyilFile.Declaration) block)) {
+					dependencies.add(name.module());
+				}
+			}
+		}
+		dependencies.remove(module.getEntry().id());
+		return dependencies;
+	}
+
+	/**
+	 * Determine the named types, functions, methods and properties which a
+	 * given declaration refers to directly, whether in its signature, its
+	 * contract or its body.
+	 *
+	 * @param declaration
+	 * @return
+	 */
+	public static Set<NameID> references(WyilFile.Declaration declaration) {
+		HashSet<NameID> references = new HashSet<>();
+		if (declaration instanceof WyilFile.Type) {
+			addReferences(((WyilFile.Type) declaration).type(), references);
+		} else if (declaration instanceof WyilFile.Constant) {
+			addReferences(((WyilFile.Constant) declaration).constant(), references);
+		} else if (declaration instanceof WyilFile.FunctionOrMethodOrProperty) {
+			addReferences(((WyilFile.FunctionOrMethodOrProperty) declaration).type(), references);
+		} else {
+			return references;
+		}
+		// Traverse the syntax tree of the declaration as well
+		for (Location<?> loc : declaration.getTree().getLocations()) {
+			addReferences(loc, references);
+		}
+		return references;
+	}
+
+	/**
+	 * Determine the named types, functions, methods and properties which the
+	 * contract of a given function, method or property refers to directly.
+	 * Unlike <code>references()</code>, this ignores the body of a function
+	 * or method, since its callers do not depend upon it.
+	 *
+	 * @param declaration
+	 * @return
+	 */
+	public static Set<NameID> contractReferences(WyilFile.FunctionOrMethodOrProperty declaration) {
+		HashSet<NameID> references = new HashSet<>();
+		addReferences(declaration.type(), references);
+		IdentityHashMap<Location<?>, Location<?>> visited = new IdentityHashMap<>();
+		for (Location<?> clause : declaration.getPrecondition()) {
+			addReferences(clause, references, visited);
+		}
+		if (declaration instanceof WyilFile.FunctionOrMethod) {
+			for (Location<?> clause : ((WyilFile.FunctionOrMethod) declaration).getPostcondition()) {
+				addReferences(clause, references, visited);
+			}
+		}
+		return references;
+	}
+
+	// ======================================================================
+	// References
+	// ======================================================================
+
+	/**
+	 * Add the references made by a given location and everything beneath it.
+	 *
+	 * @param loc
+	 * @param references
+	 * @param visited
+	 *            --- Those locations already traversed.
+	 */
+	private static void addReferences(Location<?> loc, Set<NameID> references,
+			IdentityHashMap<Location<?>, Location<?>> visited) {
+		if (loc == null || visited.put(loc, loc) != null) {
+			return;
+		}
+		addReferences(loc, references);
+		for (int i = 0; i != loc.numberOfOperands(); ++i) {
+			addReferences(loc.getOperand(i), references, visited);
+		}
+		for (int i = 0; i != loc.numberOfOperandGroups(); ++i) {
+			for (Location<?> operand : loc.getOperandGroup(i)) {
+				addReferences(operand, references, visited);
+			}
+		}
+		for (int i = 0; i != loc.numberOfBlocks(); ++i) {
+			addReferences(loc.getBlock(i), references, visited);
+		}
+	}
+
+	private static void addReferences(Location<?> loc, Set<NameID> references) {
+		for (int i = 0; i != loc.numberOfTypes(); ++i) {
+			addReferences(loc.getType(i), references);
+		}
+		Bytecode code = loc.getBytecode();
+		if (code instanceof Bytecode.Invoke) {
+			Bytecode.Invoke c = (Bytecode.Invoke) code;
+			references.add(c.name());
+			addReferences(c.type(), references);
+		} else if (code instanceof Bytecode.Const) {
+			Bytecode.Const c = (Bytecode.Const) code;
+			addReferences(c.constant(), references);
+		} else if (code instanceof Bytecode.Lambda) {
+			Bytecode.Lambda c = (Bytecode.Lambda) code;
+			addReferences(c.type(), references);
+		} else if (code instanceof Bytecode.IndirectInvoke) {
+			Bytecode.IndirectInvoke c = (Bytecode.IndirectInvoke) code;
+			addReferences(c.type(), references);
+		} else if (code instanceof Bytecode.Switch) {
+			Bytecode.Switch c = (Bytecode.Switch) code;
+			for (Bytecode.Case cAse : c.cases()) {
+				for (Constant value : cAse.values()) {
+					addReferences(value, references);
+				}
+			}
+		}
+	}
+
+	private static void addReferences(Constant constant, Set<NameID> references) {
+		if (constant instanceof Constant.FunctionOrMethod) {
+			Constant.FunctionOrMethod c = (Constant.FunctionOrMethod) constant;
+			references.add(c.name());
+			addReferences(c.type(), references);
+		} else if (constant instanceof Constant.Type) {
+			Constant.Type c = (Constant.Type) constant;
+			addReferences(c.value(), references);
+		} else if (constant instanceof Constant.Array) {
+			for (Constant value : ((Constant.Array) constant).values()) {
+				addReferences(value, references);
+			}
+		} else if (constant instanceof Constant.Record) {
+			for (Constant value : ((Constant.Record) constant).values().values()) {
+				addReferences(value, references);
+			}
+		}
+	}
+
+	private static void addReferences(Type type, Set<NameID> references) {
+		if (type instanceof Type.Nominal) {
+			references.add(((Type.Nominal) type).name());
+		} else if (type instanceof Type.Array) {
+			addReferences(((Type.Array) type).element(), references);
+		} else if (type instanceof Type.Reference) {
+			addReferences(((Type.Reference) type).element(), references);
+		} else if (type instanceof Type.Negation) {
+			addReferences(((Type.Negation) type).element(), references);
+		} else if (type instanceof Type.Record) {
+			Type.Record t = (Type.Record) type;
+			for (String field : t.getFieldNames()) {
+				addReferences(t.getField(field), references);
+			}
+		} else if (type instanceof Type.Union) {
+			addReferences(((Type.Union) type).bounds(), references);
+		} else if (type instanceof Type.Intersection) {
+			addReferences(((Type.Intersection) type).bounds(), references);
+		} else if (type instanceof Type.FunctionOrMethod) {
+			Type.FunctionOrMethod t = (Type.FunctionOrMethod) type;
+			addReferences(t.params(), references);
+			addReferences(t.returns(), references);
+		}
+	}
+
+	private static void addReferences(Type[] types, Set<NameID> references) {
+		for (Type type : types) {
+			addReferences(type, references);
+		}
+	}
+
+	// ======================================================================
+	// Hashing
+	// ======================================================================
+
+	/**
+	 * Responsible for writing a canonical representation of the interface
+	 * of a module. This uses the textual form of types and constants, and
+	 * avoids anything which depends upon e.g. the layout of a syntax tree.
+	 * Locations are identified by the order in which they are first
+	 * encountered, so that shared (or cyclic) references are written once.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	private static final class Hasher {
+		private final DataOutputStream out;
+		private final IdentityHashMap<Location<?>, Integer> visited = new IdentityHashMap<>();
+
+		public Hasher(DataOutputStream out) {
+			this.out = out;
+		}
+
+		public void write(WyilFile.Block block) throws IOException {
+			if (block instanceof WyilFile.Type) {
+				WyilFile.Type td = (WyilFile.Type) block;
+				write("type", td);
+				writeString(td.type().toString());
+				write(td.getInvariant());
+			} else if (block instanceof WyilFile.Constant) {
+				WyilFile.Constant cd = (WyilFile.Constant) block;
+				write("constant", cd);
+				writeString(cd.constant().toString());
+			} else if (block instanceof WyilFile.FunctionOrMethodOrProperty) {
+				WyilFile.FunctionOrMethodOrProperty fmp = (WyilFile.FunctionOrMethodOrProperty) block;
+				if (fmp.hasModifier(Modifier.PUBLIC)) {
+					writeContract(fmp);
+				}
+			}
+		}
+
+		public void writeContract(WyilFile.FunctionOrMethodOrProperty fmp) throws IOException {
+			write("function", fmp);
+			writeString(fmp.type().toString());
+			write(fmp.getPrecondition());
+			if (fmp instanceof WyilFile.FunctionOrMethod) {
+				write(((WyilFile.FunctionOrMethod) fmp).getPostcondition());
+			}
+		}
+
+		/**
+		 * Write a declaration in its entirety, including the body of a
+		 * function or method.
+		 *
+		 * @param declaration
+		 * @throws IOException
+		 */
+		public void writeDeclaration(WyilFile.Declaration declaration) throws IOException {
+			if (declaration instanceof WyilFile.FunctionOrMethodOrProperty) {
+				writeContract((WyilFile.FunctionOrMethodOrProperty) declaration);
+				if (declaration instanceof WyilFile.FunctionOrMethod) {
+					write(((WyilFile.FunctionOrMethod) declaration).getBody());
+				}
+			} else {
+				write(declaration);
+			}
+		}
+
+		/**
+		 * Write a string as its length followed by its UTF-8 encoding. Unlike
+		 * <code>DataOutputStream.writeUTF()</code>, this places no limit on
+		 * the length of the string (e.g. of a large constant).
+		 *
+		 * @param str
+		 * @throws IOException
+		 */
+		private void writeString(String str) throws IOException {
+			byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+			out.writeInt(bytes.length);
+			out.write(bytes);
+		}
+
+		private void write(String kind, WyilFile.Declaration d) throws IOException {
+			// Reset the visited map, since locations are local to a declaration
+			visited.clear();
+			writeString(kind);
+			writeString(d.name());
+			out.writeInt(d.modifiers().size());
+			for (Modifier m : d.modifiers()) {
+				writeString(m.toString());
+			}
+		}
+
+		private void write(List<? extends Location<?>> clauses) throws IOException {
+			out.writeInt(clauses.size());
+			for (Location<?> clause : clauses) {
+				write(clause);
+			}
+		}
+
+		private void write(Location<?> loc) throws IOException {
+			if (loc == null) {
+				// Skeleton files contain dummy invariants
+				out.writeInt(-2);
+				return;
+			}
+			Integer ordinal = visited.get(loc);
+			if (ordinal != null) {
+				// Back reference to a location already written
+				out.writeInt(-1);
+				out.writeInt(ordinal);
+				return;
+			}
+			visited.put(loc, visited.size());
+			out.writeInt(loc.getOpcode());
+			out.writeInt(loc.numberOfTypes());
+			for (int i = 0; i != loc.numberOfTypes(); ++i) {
+				writeString(loc.getType(i).toString());
+			}
+			writeExtras(loc.getBytecode());
+			out.writeInt(loc.numberOfOperands());
+			for (int i = 0; i != loc.numberOfOperands(); ++i) {
+				write(loc.getOperand(i));
+			}
+			out.writeInt(loc.numberOfOperandGroups());
+			for (int i = 0; i != loc.numberOfOperandGroups(); ++i) {
+				write(Arrays.asList(loc.getOperandGroup(i)));
+			}
+			out.writeInt(loc.numberOfBlocks());
+			for (int i = 0; i != loc.numberOfBlocks(); ++i) {
+				write(loc.getBlock(i));
+			}
+		}
+
+		/**
+		 * Write those parts of a bytecode which are not operands, such as
+		 * the value of a constant or the name of an invoked function. This
+		 * mirrors the extras written by <code>WyilFileWriter</code>.
+		 *
+		 * @param code
+		 * @throws IOException
+		 */
+		private void writeExtras(Bytecode code) throws IOException {
+			if (code instanceof Bytecode.Const) {
+				writeString(((Bytecode.Const) code).constant().toString());
+			} else if (code instanceof Bytecode.FieldLoad) {
+				writeString(((Bytecode.FieldLoad) code).fieldName());
+			} else if (code instanceof Bytecode.Invoke) {
+				Bytecode.Invoke c = (Bytecode.Invoke) code;
+				writeString(c.name().toString());
+				writeString(c.type().toString());
+			} else if (code instanceof Bytecode.IndirectInvoke) {
+				writeString(((Bytecode.IndirectInvoke) code).type().toString());
+			} else if (code instanceof Bytecode.Lambda) {
+				writeString(((Bytecode.Lambda) code).type().toString());
+			} else if (code instanceof Bytecode.NamedBlock) {
+				writeString(((Bytecode.NamedBlock) code).getName());
+			} else if (code instanceof Bytecode.VariableDeclaration) {
+				writeString(((Bytecode.VariableDeclaration) code).getName());
+			} else if (code instanceof Bytecode.Switch) {
+				for (Bytecode.Case cAse : ((Bytecode.Switch) code).cases()) {
+					out.writeInt(cAse.values().length);
+					for (Constant value : cAse.values()) {
+						writeString(value.toString());
+					}
+				}
+			}
+		}
+	}
+
+	private static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			// deadcode, since every Java platform is required to support SHA-1
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Simple output stream which feeds everything written into a message
+	 * digest.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	private static final class DigestStream extends OutputStream {
+		private final MessageDigest digest;
+
+		public DigestStream(MessageDigest digest) {
+			this.digest = digest;
+		}
+
+		@Override
+		public void write(int b) {
+			digest.update((byte) b);
+		}
+
+		@Override
+		public void write(byte[] bytes, int offset, int length) {
+			digest.update(bytes, offset, length);
+		}
+	}
+}
@@ -0,0 +1,138 @@
+// Copyright (c) 2011, David J. Pearce (djp@ecs.vuw.ac.nz)
+// All rights reserved.
+//
+// This software may be modified and distributed under the terms
+// of the BSD license.  See the LICENSE file for details.
+package wyil.util;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * <p>
+ * Executes lists of independent tasks (e.g. one per file or declaration) on
+ * behalf of a build task, returning their results in the order given. When
+ * more than one thread is configured, tasks are executed concurrently on a
+ * work-stealing thread pool. This helps balance the load when tasks differ
+ * greatly in size (e.g. when checking declarations of varying complexity).
+ * </p>
+ * <p>
+ * A single pool is created (on first use) and reused for every list of tasks
+ * executed, rather than one being created per phase of the build. Its threads
+ * are daemon threads which terminate once idle and, hence, the pool need not
+ * be shut down. Lists of tasks may be executed from several threads at once.
+ * However, a task must not itself execute tasks on the same executor, since
+ * it would then wait on a thread it may be occupying.
+ * </p>
+ *
+ * @author David J. Pearce
+ *
+ */
+public final class TaskExecutor {
+	private final int threads;
+
+	private ExecutorService executor;
+
+	/**
+	 * Construct an executor which uses a given number of threads.
+	 *
+	 * @param threads
+	 *            Number of threads (must be positive). When this is one, all
+	 *            tasks are executed sequentially on the calling thread.
+	 */
+	public TaskExecutor(int threads) {
+		if (threads < 1) {
+			throw new IllegalArgumentException("invalid number of threads: " + threads);
+		}
+		this.threads = threads;
+	}
+
+	public int getThreads() {
+		return threads;
+	}
+
+	/**
+	 * Execute a list of independent tasks, returning their results in the same
+	 * order. When tasks are executed concurrently, the failure reported is
+	 * always that of the first task (in order) to fail. Thus, the error
+	 * reported for a given set of source files does not depend upon how tasks
+	 * happen to be scheduled. Syntax errors and I/O errors are propagated as
+	 * if the failing task had been executed directly.
+	 *
+	 * @param tasks
+	 *            The tasks to execute, which are typically given in source
+	 *            file order.
+	 * @return
+	 * @throws IOException
+	 */
+	public <T> List<T> execute(List<? extends Callable<T>> tasks) throws IOException {
+		ArrayList<T> results = new ArrayList<>();
+		if (threads == 1 || tasks.size() <= 1) {
+			for (Callable<T> task : tasks) {
+				try {
+					results.add(task.call());
+				} catch (Exception e) {
+					rethrow(e);
+				}
+			}
+			return results;
+		}
+		ExecutorService executor = executor();
+		ArrayList<Future<T>> futures = new ArrayList<>();
+		try {
+			for (Callable<T> task : tasks) {
+				futures.add(executor.submit(task));
+			}
+			for (Future<T> future : futures) {
+				try {
+					results.add(future.get());
+				} catch (ExecutionException e) {
+					rethrow(e.getCause());
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException(e.getMessage());
+				}
+			}
+			return results;
+		} finally {
+			// Any tasks still running at this point (e.g. because an earlier
+			// task failed) are no longer needed.
+			for (Future<T> future : futures) {
+				future.cancel(true);
+			}
+		}
+	}
+
+	private synchronized ExecutorService executor() {
+		if (executor == null) {
+			executor = Executors.newWorkStealingPool(threads);
+		}
+		return executor;
+	}
+
+	/**
+	 * Rethrow an exception raised by a task, such that syntax errors and I/O
+	 * errors are propagated as if the task had been executed directly.
+	 *
+	 * @param t
+	 * @throws IOException
+	 */
+	private static void rethrow(Throwable t) throws IOException {
+		if (t instanceof RuntimeException) {
+			throw (RuntimeException) t;
+		} else if (t instanceof Error) {
+			throw (Error) t;
+		} else if (t instanceof IOException) {
+			throw (IOException) t;
+		} else {
+			throw new RuntimeException(t);
+		}
+	}
+}
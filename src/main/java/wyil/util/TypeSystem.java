@@ -7,6 +7,10 @@
 package wyil.util;
 
 import java.io.IOException;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.BitSet;
@@ -17,6 +21,8 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import wyautl_old.lang.Automata;
 import wyautl_old.lang.Automaton;
@@ -53,8 +59,20 @@ import wyil.util.type.TypeAlgorithms;
  * type associated with a given type.
  * </p>
  * <p>
- * <b>NOTE:</b> in principle, this could cache expanded types for performance
- * reasons (though it currently does not).
+ * <b>NOTE:</b> the declarations of nominal types are cached on a per-name
+ * basis, to avoid repeatedly locating them within the enclosing project. A
+ * cached declaration remains valid only as long as the enclosing WyIL file is
+ * unchanged, and is discarded when that file is invalidated in the module
+ * cache. For example, the skeleton written for a source file during
+ * compilation is subsequently replaced by the fully generated file, and this
+ * invalidates any declarations cached from the skeleton. Likewise, the
+ * (normalised) automaton for each type is cached, and remains valid only as
+ * long as every nominal declaration it was expanded from is valid.
+ * </p>
+ * <p>
+ * A type system is safe for use by multiple threads at the same time. This
+ * allows a single instance to be shared by all of the build tasks operating
+ * on a given project.
  * </p>
  *
  * @author David J. Pearce
@@ -63,8 +81,77 @@ import wyil.util.type.TypeAlgorithms;
 public class TypeSystem {
 	private final Build.Project project;
 
+	/**
+	 * Caches the declarations of nominal types which have been previously
+	 * resolved.
+	 */
+	private final ConcurrentHashMap<NameID, NominalEntry> nominalCache = new ConcurrentHashMap<>();
+
+	/**
+	 * The number of times a module has been invalidated. This is used to
+	 * detect an invalidation which occurs whilst a declaration is being
+	 * resolved.
+	 */
+	private final AtomicLong invalidations = new AtomicLong();
+
+	/**
+	 * Caches the normalised automata of types which have been previously
+	 * expanded. Since a type system may live for as long as the process (e.g.
+	 * in a compile server), automata are held by soft references and are
+	 * reclaimed by the garbage collector when memory is low.
+	 */
+	private final ConcurrentHashMap<Type, AutomatonEntry> automatonCache = new ConcurrentHashMap<>();
+
+	/**
+	 * Receives entries of the automaton cache once their automata have been
+	 * reclaimed, so that they can be removed.
+	 */
+	private final ReferenceQueue<Automaton> reclaimed = new ReferenceQueue<>();
+
+	/**
+	 * Caches the modules of the project. Since the type system is shared by
+	 * all tasks operating on a project, so is this.
+	 */
+	private final ModuleCache modules;
+
 	public TypeSystem(Build.Project project) {
+		this(project, new ModuleCache(project));
+	}
+
+	/**
+	 * Construct a type system which obtains modules through a given cache.
+	 *
+	 * @param project
+	 * @param modules
+	 *            --- A cache of the modules in the given project.
+	 */
+	public TypeSystem(Build.Project project, ModuleCache modules) {
 		this.project = project;
+		this.modules = modules;
+		modules.addListener(new ModuleCache.Listener() {
+			@Override
+			public void invalidated(Path.ID id) {
+				invalidate(id);
+			}
+		});
+	}
+
+	/**
+	 * Get the project whose nominal types this type system resolves.
+	 *
+	 * @return
+	 */
+	public Build.Project project() {
+		return project;
+	}
+
+	/**
+	 * Get the cache through which modules of the project should be accessed.
+	 *
+	 * @return
+	 */
+	public ModuleCache modules() {
+		return modules;
 	}
 
 	/**
@@ -314,11 +401,10 @@ public class TypeSystem {
 			if (type instanceof Type.Nominal) {
 				Type.Nominal nt = (Type.Nominal) type;
 				NameID nid = nt.name();
-				Path.Entry<WyilFile> p = project.get(nid.module(), WyilFile.ContentType);
-				if (p == null) {
+				WyilFile.Type td = resolveNominal(nid, null);
+				if (td == null) {
 					throw new ResolveError("name not found: " + nid);
 				}
-				WyilFile.Type td = p.read().type(nid.name());
 				if(maximise || td.getInvariant().isEmpty()) {
 					return expandOneLevel(td.type(),maximise);
 				} else {
@@ -356,6 +442,127 @@ public class TypeSystem {
 		}
 	}
 
+	/**
+	 * Resolve the declaration of a given nominal type. Previously resolved
+	 * declarations are cached, and a cached declaration is reused until the
+	 * WyIL file containing it is invalidated in the module cache or
+	 * reclaimed. Thus, a cache hit requires no lookup in the project. Two
+	 * threads may resolve the same name concurrently, in which case both
+	 * obtain equivalent entries and either may end up in the cache.
+	 *
+	 * @param nid
+	 *            The name of the nominal type being resolved.
+	 * @param dependencies
+	 *            The list to which the cache entry used is added, or null.
+	 * @return The declaration of the given name, or null if the enclosing
+	 *         module does not declare a type of this name.
+	 * @throws ResolveError
+	 *             If the enclosing module cannot be found.
+	 * @throws IOException
+	 */
+	private WyilFile.Type resolveNominal(NameID nid, List<NominalEntry> dependencies)
+			throws ResolveError, IOException {
+		NominalEntry entry = nominalCache.get(nid);
+		// Holding the file ensures the declaration is not reclaimed
+		WyilFile file = entry == null ? null : entry.file.get();
+		if (file == null || entry.stale) {
+			// cache miss
+			long generation = invalidations.get();
+			file = modules.get(nid.module());
+			if (file == null) {
+				throw new ResolveError("name not found: " + nid);
+			}
+			entry = new NominalEntry(file, file.type(nid.name()));
+			nominalCache.put(nid, entry);
+			if (invalidations.get() != generation) {
+				// A module was invalidated whilst this entry was being
+				// constructed, and this may have been missed.
+				entry.stale = true;
+			}
+		}
+		if (dependencies != null) {
+			dependencies.add(entry);
+		}
+		return entry.declaration.get();
+	}
+
+	/**
+	 * Mark every cached declaration resolved from a given module as stale,
+	 * along with every automaton expanded from them. This is called whenever
+	 * the module is invalidated in the module cache.
+	 *
+	 * @param id
+	 *            --- The identifier of the module, or null if every module
+	 *            has been invalidated.
+	 */
+	private void invalidate(Path.ID id) {
+		invalidations.incrementAndGet();
+		Iterator<Map.Entry<NameID, NominalEntry>> i = nominalCache.entrySet().iterator();
+		while (i.hasNext()) {
+			Map.Entry<NameID, NominalEntry> e = i.next();
+			if (id == null || e.getKey().module().equals(id)) {
+				e.getValue().stale = true;
+				i.remove();
+			}
+		}
+	}
+
+	/**
+	 * An entry in the nominal cache, which records the WyIL file from which a
+	 * declaration was resolved. The entry is marked stale when that file is
+	 * invalidated, at which point any automaton expanded from it is also
+	 * stale. The file and declaration are only weakly referenced, since
+	 * otherwise this cache would keep every module it had ever seen alive,
+	 * regardless of the module cache. Once the file is reclaimed, the entry is
+	 * likewise stale.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	private static final class NominalEntry {
+		private final WeakReference<WyilFile> file;
+		private final WeakReference<WyilFile.Type> declaration;
+		private volatile boolean stale;
+
+		public NominalEntry(WyilFile file, WyilFile.Type declaration) {
+			this.file = new WeakReference<>(file);
+			this.declaration = new WeakReference<>(declaration);
+		}
+
+		public boolean isValid() {
+			return !stale && file.get() != null;
+		}
+	}
+
+	/**
+	 * An entry in the automaton cache, which records the nominal declarations
+	 * used to construct the automaton. The automaton is stale if any of these
+	 * is.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	private static final class AutomatonEntry extends SoftReference<Automaton> {
+		private final Type type;
+		private final NominalEntry[] dependencies;
+
+		public AutomatonEntry(Type type, Automaton automaton, List<NominalEntry> dependencies,
+				ReferenceQueue<Automaton> queue) {
+			super(automaton, queue);
+			this.type = type;
+			this.dependencies = dependencies.toArray(new NominalEntry[dependencies.size()]);
+		}
+
+		public boolean isValid() {
+			for (NominalEntry dependency : dependencies) {
+				if (!dependency.isValid()) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+
 	// =============================================================
 	// Automaton Representation
 	// =============================================================
@@ -481,6 +688,9 @@ public class TypeSystem {
 	 * type. In some cases, we're not permitted to inline the body because it's
 	 * not visible to this file (e.g. it is marked as private).
 	 *
+	 * <b>NOTE:</b> the returned automaton may be shared and must not be
+	 * modified.
+	 *
 	 * @param type
 	 * @return
 	 */
@@ -491,11 +701,32 @@ public class TypeSystem {
 		if(type == null) {
 			throw new IllegalArgumentException();
 		}
+		expunge();
+		AutomatonEntry cached = automatonCache.get(type);
+		Automaton automaton = cached == null ? null : cached.get();
+		if (automaton != null && cached.isValid()) {
+			// cache hit
+			return automaton;
+		}
+		// cache miss
 		ArrayList<Automaton.State> states = new ArrayList<>();
 		HashMap<NameID,Integer> roots = new HashMap<>();
-		toAutomatonHelper(type, true, states, roots);
-		Automaton automaton = new Automaton(states);
-		return normalise(automaton);
+		ArrayList<NominalEntry> dependencies = new ArrayList<>();
+		toAutomatonHelper(type, true, states, roots, dependencies);
+		automaton = normalise(new Automaton(states));
+		automatonCache.put(type, new AutomatonEntry(type, automaton, dependencies, reclaimed));
+		return automaton;
+	}
+
+	/**
+	 * Remove any entries of the automaton cache whose automata have been
+	 * reclaimed.
+	 */
+	private void expunge() {
+		Reference<? extends Automaton> r;
+		while ((r = reclaimed.poll()) != null) {
+			automatonCache.remove(((AutomatonEntry) r).type, r);
+		}
 	}
 
 	/**
@@ -527,11 +758,14 @@ public class TypeSystem {
 	 * @param roots
 	 *            The cache of previously inline nominal types which is
 	 *            necessary to break recursive cycles.
+	 * @param dependencies
+	 *            The nominal declarations used during expansion, which
+	 *            determine when the resulting automaton becomes stale.
 	 * @return
 	 * @throws IOException
 	 */
 	private int toAutomatonHelper(Type type, boolean sign, ArrayList<Automaton.State> states,
-			HashMap<NameID, Integer> roots) throws ResolveError {
+			HashMap<NameID, Integer> roots, List<NominalEntry> dependencies) throws ResolveError {
 		// First, handle nominals (which are challenging) and primitive types
 		// (which are simple).
 		if(type instanceof Type.Nominal) {
@@ -546,8 +780,7 @@ public class TypeSystem {
 			} else {
 				// At this point, need to find the corresponding declaration.
 				try {
-					WyilFile mi = project.get(nid.module(),WyilFile.ContentType).read();
-					WyilFile.Type td = mi.type(nid.name());
+					WyilFile.Type td = resolveNominal(nid, dependencies);
 					if(td == null) {
 						// This indicates the name is valid, but does not
 						// correspond to a type per se. It must correspond to
@@ -565,7 +798,7 @@ public class TypeSystem {
 						// Now, store the root of this expansion so that it can
 						// be used subsequently to form a recursive cycle.
 						roots.put(nid, states.size());
-						return toAutomatonHelper(td.type(), sign, states, roots);
+						return toAutomatonHelper(td.type(), sign, states, roots, dependencies);
 					}
 				} catch (IOException e) {
 					throw new ResolveError(e.getMessage(), e);
@@ -590,7 +823,7 @@ public class TypeSystem {
 		if (type instanceof Type.Array) {
 			Type.Array tt = (Type.Array) type;
 			myChildren = new int[1];
-			myChildren[0] = toAutomatonHelper(tt.element(),sign,states,roots);
+			myChildren[0] = toAutomatonHelper(tt.element(),sign,states,roots,dependencies);
 			myKind = K_ARRAY;
 		} else if(type instanceof Type.Record) {
 			Type.Record tt = (Type.Record) type;
@@ -601,19 +834,19 @@ public class TypeSystem {
 			myChildren = new int[fields.size()];
 			for (int i = 0; i != myChildren.length; ++i) {
 				String field = fields.get(i);
-				myChildren[i] = toAutomatonHelper(tt.getField(field), sign,states, roots);
+				myChildren[i] = toAutomatonHelper(tt.getField(field), sign,states, roots, dependencies);
 			}
 			myData = fields;
 		} else if(type instanceof Type.Reference) {
 			Type.Reference tt = (Type.Reference) type;
 			myChildren = new int[1];
-			myChildren[0] = toAutomatonHelper(tt.element(),sign,states,roots);
+			myChildren[0] = toAutomatonHelper(tt.element(),sign,states,roots,dependencies);
 			myData = tt.lifetime();
 			myKind = K_REFERENCE;
 		} else if(type instanceof Type.Negation) {
 			Type.Negation tt = (Type.Negation) type;
 			myChildren = new int[1];
-			myChildren[0] = toAutomatonHelper(tt.element(),!sign,states,roots);
+			myChildren[0] = toAutomatonHelper(tt.element(),!sign,states,roots,dependencies);
 			myKind = K_NEGATION;
 		} else if(type instanceof Type.Union) {
 			Type.Union tt = (Type.Union) type;
@@ -621,7 +854,7 @@ public class TypeSystem {
 			myChildren = new int[bounds.length];
 			int i = 0;
 			for(Type b : bounds) {
-				myChildren[i++] = toAutomatonHelper(b,sign,states,roots);
+				myChildren[i++] = toAutomatonHelper(b,sign,states,roots,dependencies);
 			}
 			myKind = K_UNION;
 		} else if(type instanceof Type.Intersection) {
@@ -634,7 +867,7 @@ public class TypeSystem {
 				ut_bounds[i] = Type.Negation(tt_bounds[i]);
 			}
 			myChildren = new int[1];
-			myChildren[0] = toAutomatonHelper(Type.Union(ut_bounds), !sign, states, roots);
+			myChildren[0] = toAutomatonHelper(Type.Union(ut_bounds), !sign, states, roots, dependencies);
 			myKind = K_NEGATION;
 		} else if(type instanceof Type.FunctionOrMethod) {
 			Type.FunctionOrMethod tt = (Type.FunctionOrMethod) type;
@@ -644,10 +877,10 @@ public class TypeSystem {
 			int tt_returns_size = tt_returns.length;
 			myChildren = new int[tt_params_size+tt_returns_size];
 			for(int i=0;i!=tt_params_size;++i) {
-				myChildren[i] = toAutomatonHelper(tt_params[i],sign,states,roots);
+				myChildren[i] = toAutomatonHelper(tt_params[i],sign,states,roots,dependencies);
 			}
 			for(int i=0;i!=tt_returns_size;++i) {
-				myChildren[i+tt_params_size] = toAutomatonHelper(tt_returns[i],sign,states,roots);
+				myChildren[i+tt_params_size] = toAutomatonHelper(tt_returns[i],sign,states,roots,dependencies);
 			}
 			myData = new FunctionOrMethodState(tt_params_size, getContextLifetimes(tt), getLifetimeParams(tt));
 			if(tt instanceof Type.Function) {
@@ -736,17 +969,15 @@ public class TypeSystem {
 	 * <li><b>Canonicalisation.</b> A canonical form of the type is computed</li>
 	 * </ol>
 	 *
-	 * is based on the well-known algorithm for minimising a DFA (see e.g. <a
+	 * <p>Minimisation is based on the well-known algorithm for minimising a DFA
+	 * (see e.g. <a
 	 * href="http://en.wikipedia.org/wiki/DFA_minimization">[1]</a>). </p>
 	 * <p>
-	 * The algorithm operates by performing a subtype test of each node against
-	 * all others. From this, we can identify nodes which are equivalent under
-	 * the subtype operator. Using this information, the type is reconstructed
-	 * such that for each equivalence class only a single node is created.
-	 * </p>
-	 * <p>
-	 * <b>NOTE:</b> this algorithm does not put the type into a canonical form.
-	 * Additional work is necessary to do this.
+	 * The algorithm operates by partition refinement. From this, we can identify
+	 * nodes which are structurally equivalent. Using this information, the type
+	 * is reconstructed such that for each equivalence class only a single node
+	 * is created. Finally, the states are renumbered canonically, such that two
+	 * equivalent types produce identical automata.
 	 * </p>
 	 *
 	 * @param afterType
@@ -760,6 +991,7 @@ public class TypeSystem {
 		automaton = Automata.extract(automaton, 0);
 		// TODO: minimise in place to avoid allocating data unless necessary
 		automaton = Automata.minimise(automaton);
+		automaton = Automata.canonicalise(automaton, TypeAlgorithms.DATA_COMPARATOR);
 		//minimisedCount += automaton.size();
 		return automaton;
 	}
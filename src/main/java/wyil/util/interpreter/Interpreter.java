@@ -15,7 +15,6 @@ import wybs.lang.Build;
 import wybs.lang.NameID;
 import wybs.lang.SyntacticElement;
 import wybs.util.ResolveError;
-import wyfs.lang.Path;
 import wyil.lang.*;
 import wyil.lang.Bytecode.*;
 
@@ -61,9 +60,13 @@ public class Interpreter {
 	private final PrintStream debug;
 
 	public Interpreter(Build.Project project, PrintStream debug) {
+		this(project, new TypeSystem(project), debug);
+	}
+
+	public Interpreter(Build.Project project, TypeSystem typeSystem, PrintStream debug) {
 		this.project = project;
 		this.debug = debug;
-		this.typeSystem = new TypeSystem(project);
+		this.typeSystem = typeSystem;
 		this.operators = StandardFunctions.standardFunctions;
 	}
 
@@ -95,12 +98,11 @@ public class Interpreter {
 	public Constant[] execute(NameID nid, Type.FunctionOrMethod sig, Constant... args) {
 		// First, find the enclosing WyilFile
 		try {
-			Path.Entry<WyilFile> entry = project.get(nid.module(), WyilFile.ContentType);
-			if (entry == null) {
+			WyilFile wyilFile = typeSystem.modules().get(nid.module());
+			if (wyilFile == null) {
 				throw new IllegalArgumentException("no WyIL file found: " + nid.module());
 			}
 			// Second, find the given function or method
-			WyilFile wyilFile = entry.read();
 			WyilFile.FunctionOrMethodOrProperty fmp = wyilFile.functionOrMethodOrProperty(nid.name(), sig);
 			if (fmp == null) {
 				throw new IllegalArgumentException("no function or method found: " + nid + ", " + sig);
@@ -1245,13 +1247,12 @@ public class Interpreter {
 			try {
 				// First, attempt to locate the enclosing module for this
 				// nominal type.
-				Path.Entry<WyilFile> entry = project.get(nid.module(), WyilFile.ContentType);
-				if (entry == null) {
-					throw new IllegalArgumentException("no WyIL file found: " + nid.module());
-				}
 				// Read in the module. This may result in it being read from
 				// disk, or from a cache in memory, or even from somewhere else.
-				WyilFile wyilFile = entry.read();
+				WyilFile wyilFile = typeSystem.modules().get(nid.module());
+				if (wyilFile == null) {
+					throw new IllegalArgumentException("no WyIL file found: " + nid.module());
+				}
 				WyilFile.Type td = wyilFile.type(nid.name());
 				if (td == null) {
 					error("undefined nominal type encountered: " + nid, context);
@@ -6,14 +6,24 @@
 
 package wyil.util.type;
 
+import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Set;
 import java.util.Stack;
 
 /**
  * This relation tracks the partial order among lifetimes.
+ * <p>
+ * Internally, each lifetime is mapped to a dense index and, for each lifetime,
+ * the set of lifetimes which outlive it is maintained as a bitset. Since the
+ * relation is kept transitively closed as lifetimes are added and removed,
+ * each outlives query amounts to a single bit test.
+ * </p>
  */
 public class LifetimeRelation {
 
@@ -30,12 +40,45 @@ public class LifetimeRelation {
 	 */
 	private final Stack<String> blocks;
 
+	/**
+	 * Maps each lifetime encountered so far to its dense index.
+	 */
+	private final HashMap<String, Integer> indices;
+
+	/**
+	 * The indices of all lifetime parameters.
+	 */
+	private final BitSet parameterBits;
+
+	/**
+	 * The indices of all lifetimes with at least one named block on the stack.
+	 */
+	private final BitSet blockBits;
+
+	/**
+	 * The number of times each lifetime occurs on the block stack, indexed by
+	 * lifetime.
+	 */
+	private final ArrayList<Integer> occurrences;
+
+	/**
+	 * The set of lifetimes which strictly outlive each lifetime, indexed by
+	 * lifetime. This is empty for any lifetime which is not on the block
+	 * stack.
+	 */
+	private final ArrayList<BitSet> outlivedBy;
+
 	/**
 	 * Create a new and empty lifetime relation.
 	 */
 	public LifetimeRelation() {
 		this.parameters = new HashSet<String>();
 		this.blocks = new Stack<String>();
+		this.indices = new HashMap<String, Integer>();
+		this.parameterBits = new BitSet();
+		this.blockBits = new BitSet();
+		this.occurrences = new ArrayList<Integer>();
+		this.outlivedBy = new ArrayList<BitSet>();
 	}
 
 	/**
@@ -47,6 +90,14 @@ public class LifetimeRelation {
 		this.parameters = new HashSet<String>(lifetimeRelation.parameters);
 		this.blocks = new Stack<String>();
 		this.blocks.addAll(lifetimeRelation.blocks);
+		this.indices = new HashMap<String, Integer>(lifetimeRelation.indices);
+		this.parameterBits = (BitSet) lifetimeRelation.parameterBits.clone();
+		this.blockBits = (BitSet) lifetimeRelation.blockBits.clone();
+		this.occurrences = new ArrayList<Integer>(lifetimeRelation.occurrences);
+		this.outlivedBy = new ArrayList<BitSet>();
+		for (BitSet row : lifetimeRelation.outlivedBy) {
+			this.outlivedBy.add((BitSet) row.clone());
+		}
 	}
 
 	/**
@@ -67,22 +118,14 @@ public class LifetimeRelation {
 			return true;
 		}
 
-		// Check whether the inner lifetime is from a named block.
-		int innerIndex = this.blocks.indexOf(innerLifetime);
-		if (innerIndex != -1) {
-			// All parameters are ordered before blocks.
-			if (this.parameters.contains(outerLifetime)) {
-				return true;
-			}
-
-			// Maybe another block at lower stack position?
-			int outerIndex = this.blocks.indexOf(outerLifetime);
-			if (outerIndex != -1 && outerIndex < innerIndex) {
-				return true;
-			}
+		Integer inner = this.indices.get(innerLifetime);
+		Integer outer = this.indices.get(outerLifetime);
+		if (inner == null || outer == null) {
+			// At least one lifetime is unknown
+			return false;
 		}
 
-		return false;
+		return this.outlivedBy.get(inner).get(outer);
 	}
 
 	/**
@@ -92,6 +135,15 @@ public class LifetimeRelation {
 	 */
 	public void addParameters(Collection<String> lifetimeParameters) {
 		this.parameters.addAll(lifetimeParameters);
+		BitSet added = new BitSet();
+		for (String lifetime : lifetimeParameters) {
+			added.set(indexOf(lifetime));
+		}
+		this.parameterBits.or(added);
+		// All parameters are ordered before blocks.
+		for (int i = blockBits.nextSetBit(0); i >= 0; i = blockBits.nextSetBit(i + 1)) {
+			this.outlivedBy.get(i).or(added);
+		}
 	}
 
 	/**
@@ -101,6 +153,7 @@ public class LifetimeRelation {
 	 */
 	public void startNamedBlock(String lifetime) {
 		this.blocks.push(lifetime);
+		push(indexOf(lifetime));
 	}
 
 	/**
@@ -112,7 +165,11 @@ public class LifetimeRelation {
 	public void endNamedBlock(String lifetime) {
 		int i = this.blocks.lastIndexOf(lifetime);
 		if (i != -1) {
-			this.blocks.subList(i, this.blocks.size()).clear();
+			List<String> removed = this.blocks.subList(i, this.blocks.size());
+			for (String b : removed) {
+				pop(this.indices.get(b));
+			}
+			removed.clear();
 		}
 	}
 
@@ -126,9 +183,18 @@ public class LifetimeRelation {
 	public void replaceWithMerge(LifetimeRelation first, LifetimeRelation second) {
 		this.parameters.clear();
 		this.blocks.clear();
+		this.parameterBits.clear();
+		this.blockBits.clear();
+		for (int i = 0; i != this.occurrences.size(); ++i) {
+			this.occurrences.set(i, 0);
+			this.outlivedBy.get(i).clear();
+		}
 
 		this.parameters.addAll(first.parameters);
 		this.parameters.retainAll(second.parameters);
+		for (String lifetime : this.parameters) {
+			this.parameterBits.set(indexOf(lifetime));
+		}
 		Iterator<String> it1 = first.blocks.iterator();
 		Iterator<String> it2 = second.blocks.iterator();
 		while (it1.hasNext() && it2.hasNext()) {
@@ -136,12 +202,65 @@ public class LifetimeRelation {
 			String b2 = it2.next();
 			if (b1.equals(b2)) {
 				this.blocks.push(b1);
+				push(indexOf(b1));
 			} else {
 				break;
 			}
 		}
 	}
 
+	/**
+	 * Get the dense index of a given lifetime, allocating one if this lifetime
+	 * has not been seen before.
+	 *
+	 * @param lifetime
+	 * @return
+	 */
+	private int indexOf(String lifetime) {
+		Integer index = this.indices.get(lifetime);
+		if (index == null) {
+			index = this.occurrences.size();
+			this.indices.put(lifetime, index);
+			this.occurrences.add(0);
+			this.outlivedBy.add(new BitSet());
+		}
+		return index;
+	}
+
+	/**
+	 * Record that a named block for the given lifetime has been pushed onto
+	 * the stack. If the lifetime is already on the stack then nothing changes,
+	 * since its position is determined by its outermost block.
+	 *
+	 * @param index
+	 */
+	private void push(int index) {
+		int count = this.occurrences.get(index);
+		if (count == 0) {
+			// All parameters and enclosing blocks outlive this block.
+			BitSet row = this.outlivedBy.get(index);
+			row.or(this.parameterBits);
+			row.or(this.blockBits);
+			this.blockBits.set(index);
+		}
+		this.occurrences.set(index, count + 1);
+	}
+
+	/**
+	 * Record that a named block for the given lifetime has been popped from
+	 * the stack.
+	 *
+	 * @param index
+	 */
+	private void pop(int index) {
+		int count = this.occurrences.get(index) - 1;
+		this.occurrences.set(index, count);
+		if (count == 0) {
+			this.outlivedBy.get(index).clear();
+			this.blockBits.clear(index);
+		}
+	}
+
 	@Override
 	public String toString() {
 		String r = "";
@@ -6,6 +6,7 @@
 
 package wyil.util.type;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.BitSet;
@@ -86,7 +87,8 @@ public final class TypeAlgorithms {
 				Boolean nid1 = (Boolean) s1.data;
 				Boolean nid2 = (Boolean) s2.data;
 				return nid1.toString().compareTo(nid2.toString());
-			} else if(s1.kind == TypeSystem.K_FUNCTION || s1.kind == TypeSystem.K_METHOD) {
+			} else if(s1.kind == TypeSystem.K_FUNCTION || s1.kind == TypeSystem.K_METHOD
+					|| s1.kind == TypeSystem.K_PROPERTY) {
 				TypeSystem.FunctionOrMethodState s1Data = (TypeSystem.FunctionOrMethodState) s1.data;
 				TypeSystem.FunctionOrMethodState s2Data = (TypeSystem.FunctionOrMethodState) s2.data;
 				return s1Data.compareTo(s2Data);
@@ -347,22 +349,14 @@ public final class TypeAlgorithms {
 		// A clear bit indicates a state is UNLABELED, a set bit indicates it
 		// has SOME inhabitants. This bit has no meaning for states that already
 		// have implicit inhabitation information.
-		BitSet lastInhabitationFlags = null;
-		BitSet inhabitationFlags = null;
+		BitSet inhabitationFlags = new BitSet(automaton.size());
+		// The reverse edges and subtype relation are shared across all passes,
+		// since simplification never changes the number of states.
+		BitSet[] predecessors = computePredecessors(automaton);
+		SubtypeCache subtypes = new SubtypeCache(automaton);
+		boolean firstTime = true;
 
 		while (true) {
-			// Swap inhabitation flags.
-			{
-				BitSet temp = inhabitationFlags;
-				lastInhabitationFlags = inhabitationFlags;
-				lastInhabitationFlags = temp;
-				if (inhabitationFlags == null) {
-					inhabitationFlags = new BitSet(automaton.size());
-				} else {
-					inhabitationFlags.clear();
-				}
-			}
-
 			// Don't assume any prior knowledge about inhabitation. Previous simplifications
 			// may have assumed states had SOME inhabitants but these could be NONE after
 			// further simplification, i.e. because !!SOME => SOME using our rules, but this
@@ -370,9 +364,8 @@ public final class TypeAlgorithms {
 			inhabitationFlags.clear();
 
 			// Perform an initial simplification on the automaton.
-			boolean simplified = simplifyInner(automaton, inhabitationFlags);
-			// Break if not simplified or inhabitaitonFlags non-null and equal
-			if (!simplified && lastInhabitationFlags != null && lastInhabitationFlags.equals(inhabitationFlags)) {
+			boolean simplified = simplifyInner(automaton, inhabitationFlags, predecessors, subtypes);
+			if (!simplified && !firstTime) {
 				// No simplification and inhabitation flags unchanged: breaking out of simplification loop
 				break;
 			}
@@ -380,43 +373,133 @@ public final class TypeAlgorithms {
 
 			// Now that simplification has occurred once, all possibly inhabited states should
 			// have a label. Anything unlabeled can be considered uninhabited.
-			boolean labelingChanged = markUnlabeledAsUninhabited(automaton, inhabitationFlags);
-			if (!labelingChanged && lastInhabitationFlags != null) {
+			boolean labelingChanged = markUnlabeledAsUninhabited(automaton, inhabitationFlags, predecessors, subtypes);
+			if (!labelingChanged && !firstTime) {
 				// No uninhabited labeling changes: breaking out of simplification loop
 				break;
 			}
 			// Found labeling changes: continuing with simplification loop
+			firstTime = false;
 		}
 	}
 
 	/**
-	 * Simplifies each state in an automaton until a fixpoint is reached.
+	 * Simplifies each state in an automaton until a fixpoint is reached. This
+	 * is driven by a worklist, such that only the predecessors of a state which
+	 * has changed are revisited. Since the subtype test used for unions
+	 * considers the entire subgraph reachable from a state, a final sweep over
+	 * all unions is made once the worklist is exhausted to confirm the
+	 * fixpoint.
 	 *
 	 * @param automaton
 	 *            --- automaton being simplified.
 	 * @param inhabitationFlags
 	 *            --- flags tracking inhabitation for some of the states
+	 * @param predecessors
+	 *            --- reverse edges of the automaton, which are extended as
+	 *            states are rewritten.
+	 * @param subtypes
+	 *            --- cached subtype relation over the states of the automaton.
 	 */
-	private static boolean simplifyInner(Automaton automaton, BitSet inhabitationFlags) {
+	private static boolean simplifyInner(Automaton automaton, BitSet inhabitationFlags, BitSet[] predecessors,
+			SubtypeCache subtypes) {
 		// Flag indicating whether any simplifications have been performed by this
 		// method.
 		boolean anySimplificationPerformed = false;
-		// Flag indicating whether or not to loop again. This will be false when
-		// no simplifications are made to any state.
-		boolean loopAgain = true;
-		while (loopAgain) {
-			loopAgain = false;
-			// Try to simplify each state and track whether or not any simplifications
-			// have occurred.
-			for(int i=0;i!=automaton.size();++i) {
-				boolean stateSimplified = simplifyState(i,automaton, inhabitationFlags);
-				loopAgain |= stateSimplified;
-				anySimplificationPerformed |= stateSimplified;
+		// Initially, every state must be visited at least once.
+		int size = automaton.size();
+		BitSet queued = new BitSet(size);
+		ArrayDeque<Integer> worklist = new ArrayDeque<Integer>();
+		for (int i = 0; i != size; ++i) {
+			worklist.add(i);
+		}
+		queued.set(0, size);
+		while (!worklist.isEmpty()) {
+			while (!worklist.isEmpty()) {
+				int index = worklist.remove();
+				queued.clear(index);
+				if (simplifyState(index, automaton, inhabitationFlags, subtypes)) {
+					anySimplificationPerformed = true;
+					stateChanged(index, automaton, predecessors, subtypes, worklist, queued);
+				}
+			}
+			// Confirm no union can be further simplified. The subtype relation
+			// is cached at this point, so this is relatively cheap.
+			for (int i = 0; i != size; ++i) {
+				if (automaton.states[i].kind == TypeSystem.K_UNION
+						&& simplifyState(i, automaton, inhabitationFlags, subtypes)) {
+					anySimplificationPerformed = true;
+					stateChanged(i, automaton, predecessors, subtypes, worklist, queued);
+				}
 			}
 		}
 		return anySimplificationPerformed;
 	}
 
+	/**
+	 * Record that a given state has been rewritten. This schedules the state
+	 * and all of its predecessors for revisiting, adds reverse edges for its
+	 * (possibly new) children and invalidates those parts of the subtype
+	 * relation which depend on it.
+	 *
+	 * @param index
+	 *            --- index of state which was changed.
+	 * @param automaton
+	 *            --- automaton being simplified.
+	 * @param predecessors
+	 *            --- reverse edges of the automaton.
+	 * @param subtypes
+	 *            --- cached subtype relation over the states of the automaton.
+	 * @param worklist
+	 *            --- states remaining to be visited.
+	 * @param queued
+	 *            --- states currently in the worklist.
+	 */
+	private static void stateChanged(int index, Automaton automaton, BitSet[] predecessors, SubtypeCache subtypes,
+			ArrayDeque<Integer> worklist, BitSet queued) {
+		addPredecessor(index, automaton.states[index], predecessors);
+		subtypes.invalidate(index, predecessors);
+		if (!queued.get(index)) {
+			queued.set(index);
+			worklist.add(index);
+		}
+		BitSet preds = predecessors[index];
+		for (int i = preds.nextSetBit(0); i >= 0; i = preds.nextSetBit(i + 1)) {
+			if (!queued.get(i)) {
+				queued.set(i);
+				worklist.add(i);
+			}
+		}
+	}
+
+	/**
+	 * Compute the reverse edges of an automaton. That is, for each state, the
+	 * set of states which have it as a child.
+	 *
+	 * @param automaton
+	 *            --- automaton being simplified.
+	 * @return
+	 */
+	private static BitSet[] computePredecessors(Automaton automaton) {
+		int size = automaton.size();
+		BitSet[] predecessors = new BitSet[size];
+		for (int i = 0; i != size; ++i) {
+			predecessors[i] = new BitSet();
+		}
+		for (int i = 0; i != size; ++i) {
+			addPredecessor(i, automaton.states[i], predecessors);
+		}
+		return predecessors;
+	}
+
+	private static void addPredecessor(int index, Automaton.State state, BitSet[] predecessors) {
+		for (int child : state.children) {
+			if (child >= 0) {
+				predecessors[child].set(index);
+			}
+		}
+	}
+
 	/**
 	 * This method is called after an initial simplification pass. Any states
 	 * that have an UNLABELED inhabitation must not be inhabited, so can be set
@@ -426,18 +509,24 @@ public final class TypeAlgorithms {
 	 *            --- automaton being simplified.
 	 * @param inhabitationFlags
 	 *            --- flags tracking inhabitation for some of the states
+	 * @param predecessors
+	 *            --- reverse edges of the automaton.
+	 * @param subtypes
+	 *            --- cached subtype relation over the states of the automaton.
 	 * @return True if the labels were changed by this method, false otherwise.
 	 */
-	private static boolean markUnlabeledAsUninhabited(Automaton automaton, BitSet inhabitationFlags) {
-		boolean labelingChanged = false;
+	private static boolean markUnlabeledAsUninhabited(Automaton automaton, BitSet inhabitationFlags,
+			BitSet[] predecessors, SubtypeCache subtypes) {
+		BitSet changed = new BitSet(automaton.size());
 		for(int i=0;i!=automaton.size();++i) {
 			if (getStateInhabitation(i, automaton, inhabitationFlags) == Inhabitation.UNLABELED) {
 				// Mark unlabeled state as uninhabited
 				setStateInhabitation(i, automaton, inhabitationFlags, Inhabitation.NONE);
-				labelingChanged = true;
+				changed.set(i);
 			}
 		}
-		return labelingChanged;
+		subtypes.invalidate(changed, predecessors);
+		return !changed.isEmpty();
 	}
 
 	// FIXME: This method is not called from anywhere.
@@ -465,10 +554,13 @@ public final class TypeAlgorithms {
 	 *            --- automaton being simplified.
 	 * @param inhabitationFlags
 	 *            --- flags tracking inhabitation for some of the states
+	 * @param subtypes
+	 *            --- cached subtype relation over the states of the automaton.
 	 * @return True if this method modified the state, false if the state is
 	 *         still the same.
 	 */
-	private static boolean simplifyState(int index, Automaton automaton, BitSet inhabitationFlags) {
+	private static boolean simplifyState(int index, Automaton automaton, BitSet inhabitationFlags,
+			SubtypeCache subtypes) {
 		Automaton.State state = automaton.states[index];
 		switch (state.kind) {
 		case TypeSystem.K_VOID:
@@ -484,7 +576,7 @@ public final class TypeAlgorithms {
 		case TypeSystem.K_NEGATION:
 			return simplifyNegation(index, state, automaton, inhabitationFlags);
 		case TypeSystem.K_UNION :
-			return simplifyUnion(index, state, automaton, inhabitationFlags);
+			return simplifyUnion(index, state, automaton, inhabitationFlags, subtypes);
 		case TypeSystem.K_REFERENCE:
 			return simplifyReference(index, state, automaton, inhabitationFlags);
 		case TypeSystem.K_ARRAY:
@@ -593,12 +685,14 @@ public final class TypeAlgorithms {
 	 *            --- state being worked on.
 	 * @param automaton
 	 *            --- automaton containing state being worked on.
+	 * @param subtypes
+	 *            --- cached subtype relation over the states of the automaton.
 	 * @return
 	 */
 	private static boolean simplifyUnion(int index, Automaton.State state,
-			Automaton automaton, BitSet inhabitationFlags) {
+			Automaton automaton, BitSet inhabitationFlags, SubtypeCache subtypes) {
 		return simplifyUnion_1(index, state, automaton, inhabitationFlags)
-				|| simplifyUnion_2(index, state, automaton);
+				|| simplifyUnion_2(index, state, automaton, subtypes);
 	}
 
 	/**
@@ -693,10 +787,12 @@ public final class TypeAlgorithms {
 	 *            --- state being worked on.
 	 * @param automaton
 	 *            --- automaton containing state being worked on.
+	 * @param subtypes
+	 *            --- cached subtype relation over the states of the automaton.
 	 * @return
 	 */
 	private static boolean simplifyUnion_2(int index, Automaton.State state,
-			Automaton automaton) {
+			Automaton automaton, SubtypeCache subtypes) {
 		boolean changed = false;
 		int[] children = state.children;
 
@@ -706,8 +802,8 @@ public final class TypeAlgorithms {
 			boolean subsumed = false;
 			for (int j = 0; j < children.length; ++j) {
 				int jChild = children[j];
-				if (i != j && isSubtype(jChild, iChild, automaton)
-						&& (!isSubtype(iChild, jChild, automaton) || i > j)) {
+				if (i != j && subtypes.isSubtype(jChild, iChild)
+						&& (!subtypes.isSubtype(iChild, jChild) || i > j)) {
 					// Found a child that's a subtype of another child; it can be
 					// subsumed into that other child.
 					subsumed = true;
@@ -731,10 +827,109 @@ public final class TypeAlgorithms {
 		return changed;
 	}
 
-	private static boolean isSubtype(int fromIndex, int toIndex,
-			Automaton automaton) {
-		SubtypeOperator op = new SubtypeOperator(automaton,automaton,LifetimeRelation.EMPTY);
-		return op.isSubtype(fromIndex, toIndex);
+	/**
+	 * Caches the subtype relation between states of a single automaton during
+	 * simplification. A single subtype operator is reused for all queries,
+	 * which is safe because simplification rewrites states in place and never
+	 * changes the size of the automaton. The relationship between two states
+	 * depends only on the states reachable from them. Thus, when a state is
+	 * rewritten, only those pairs involving a state from which it is reachable
+	 * must be invalidated.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	private final static class SubtypeCache {
+		private final SubtypeOperator operator;
+		private final int size;
+		/**
+		 * Identifies pairs whose relationship has already been computed.
+		 */
+		private final BitSet known;
+		/**
+		 * Identifies pairs which are known to be in the subtype relation.
+		 */
+		private final BitSet subtypes;
+
+		public SubtypeCache(Automaton automaton) {
+			this.operator = new SubtypeOperator(automaton, automaton, LifetimeRelation.EMPTY);
+			this.size = automaton.size();
+			this.known = new BitSet();
+			this.subtypes = new BitSet();
+		}
+
+		/**
+		 * Test whether state <code>fromIndex</code> :> state
+		 * <code>toIndex</code>.
+		 */
+		public boolean isSubtype(int fromIndex, int toIndex) {
+			int index = (fromIndex * size) + toIndex;
+			if (!known.get(index)) {
+				known.set(index);
+				subtypes.set(index, operator.isSubtype(fromIndex, toIndex));
+			}
+			return subtypes.get(index);
+		}
+
+		/**
+		 * Invalidate every pair involving a state from which a given (rewritten)
+		 * state is reachable.
+		 *
+		 * @param index
+		 *            --- index of state which was rewritten.
+		 * @param predecessors
+		 *            --- reverse edges of the automaton, which must include
+		 *            those of the rewritten state.
+		 */
+		public void invalidate(int index, BitSet[] predecessors) {
+			BitSet changed = new BitSet(size);
+			changed.set(index);
+			invalidate(changed, predecessors);
+		}
+
+		/**
+		 * Invalidate every pair involving a state from which any of a given set
+		 * of (rewritten) states is reachable.
+		 *
+		 * @param changed
+		 *            --- indices of states which were rewritten.
+		 * @param predecessors
+		 *            --- reverse edges of the automaton, which must include
+		 *            those of the rewritten states.
+		 */
+		public void invalidate(BitSet changed, BitSet[] predecessors) {
+			if (known.isEmpty() || changed.isEmpty()) {
+				return;
+			}
+			// Determine all states from which a changed state is reachable.
+			// Since reverse edges are never removed, this may include states
+			// which no longer reach it, which is safe.
+			BitSet affected = (BitSet) changed.clone();
+			ArrayDeque<Integer> worklist = new ArrayDeque<Integer>();
+			for (int i = changed.nextSetBit(0); i >= 0; i = changed.nextSetBit(i + 1)) {
+				worklist.add(i);
+			}
+			while (!worklist.isEmpty()) {
+				BitSet preds = predecessors[worklist.remove()];
+				for (int i = preds.nextSetBit(0); i >= 0; i = preds.nextSetBit(i + 1)) {
+					if (!affected.get(i)) {
+						affected.set(i);
+						worklist.add(i);
+					}
+				}
+			}
+			if (affected.cardinality() == size) {
+				known.clear();
+				subtypes.clear();
+				return;
+			}
+			for (int i = known.nextSetBit(0); i >= 0; i = known.nextSetBit(i + 1)) {
+				if (affected.get(i / size) || affected.get(i % size)) {
+					known.clear(i);
+					subtypes.clear(i);
+				}
+			}
+		}
 	}
 
 	private final static class IntersectionPoint {
@@ -0,0 +1,97 @@
+// Copyright (c) 2011, David J. Pearce (djp@ecs.vuw.ac.nz)
+// All rights reserved.
+//
+// This software may be modified and distributed under the terms
+// of the BSD license.  See the LICENSE file for details.
+
+package wyc.testing;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import wyc.commands.Compile;
+import wyc.util.BatchCompiler;
+import wycc.util.Logger;
+import wycc.util.Pair;
+import wyfs.lang.Path;
+import wyfs.util.DirectoryRoot;
+
+/**
+ * Checks that many projects can be compiled at the same time against a single
+ * library, and that each is compiled independently of the others.
+ */
+public class BatchCompilerTest {
+	private static final String LIB = "public type nat is (int x) where x >= 0\n\n"
+			+ "public function f(nat x) -> nat:\n" + "    return x\n";
+
+	private static final String VALID = "import nat from lib\n" + "import f from lib\n\n"
+			+ "function g(nat x) -> nat:\n" + "    return f(x)\n";
+
+	private static final String INVALID = "import f from lib\n\n" + "function g() -> int:\n"
+			+ "    return f(true)\n";
+
+	private static final int PROJECTS = 16;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testConcurrent() throws IOException {
+		wyc.Activator.Registry registry = new wyc.Activator.Registry();
+		ArrayList<Path.Root> whileypath = new ArrayList<>();
+		whileypath.add(new DirectoryRoot(library(), registry));
+		BatchCompiler batch = new BatchCompiler(registry, null, whileypath, 4);
+		ArrayList<BatchCompiler.Job> jobs = new ArrayList<>();
+		for (int i = 0; i != PROJECTS; ++i) {
+			// Every other project is invalid, so that a result from one project
+			// cannot go unnoticed in another.
+			File dir = folder.newFolder();
+			File source = write(dir, "main", i % 2 == 0 ? VALID : INVALID);
+			jobs.add(new BatchCompiler.Job(dir, source.getPath()).setVerify(i % 4 == 0));
+		}
+		List<Pair<Compile.Result, String>> results = batch.compile(jobs);
+		assertEquals(PROJECTS, results.size());
+		for (int i = 0; i != PROJECTS; ++i) {
+			Pair<Compile.Result, String> result = results.get(i);
+			Compile.Result expected = i % 2 == 0 ? Compile.Result.SUCCESS : Compile.Result.ERRORS;
+			assertEquals(result.second(), expected, result.first());
+		}
+	}
+
+	/**
+	 * Compile the library in a fresh directory.
+	 *
+	 * @return The directory.
+	 * @throws IOException
+	 */
+	private File library() throws IOException {
+		File dir = folder.newFolder();
+		File source = write(dir, "lib", LIB);
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		Compile cmd = new Compile(new wyc.Activator.Registry(), Logger.NULL, output, output);
+		cmd.setWhileydir(dir);
+		Compile.Result result = cmd.execute(source.getPath());
+		assertEquals(output.toString(), Compile.Result.SUCCESS, result);
+		// Otherwise, the library would be compiled again in each project
+		assertTrue(source.delete());
+		return dir;
+	}
+
+	private static File write(File dir, String name, String contents) throws IOException {
+		File file = new File(dir, name + ".whiley");
+		try (FileWriter out = new FileWriter(file)) {
+			out.write(contents);
+		}
+		return file;
+	}
+}
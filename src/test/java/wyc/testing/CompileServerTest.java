@@ -0,0 +1,67 @@
+// Copyright (c) 2011, David J. Pearce (djp@ecs.vuw.ac.nz)
+// All rights reserved.
+//
+// This software may be modified and distributed under the terms
+// of the BSD license.  See the LICENSE file for details.
+
+package wyc.testing;
+
+import static org.junit.Assert.*;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import wyc.commands.Compile;
+import wyc.util.CompileClient;
+import wyc.util.CompileServer;
+
+/**
+ * Checks the protocol between the compile server and its client.
+ */
+public class CompileServerTest {
+
+	@Test
+	public void testWatchRejected() throws IOException {
+		CompileServer server = new CompileServer(new wyc.Activator.Registry());
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		server.serve(new BufferedReader(new StringReader("--watch\nmain.whiley\n\n")), bytes);
+		String[] lines = bytes.toString("UTF-8").split("\n");
+		assertTrue(lines[0].contains("--watch"));
+		assertEquals(CompileServer.RESULT_PREFIX + Compile.Result.ERRORS, lines[lines.length - 1]);
+	}
+
+	@Test
+	public void testClient() throws IOException {
+		final CompileServer server = new CompileServer(new wyc.Activator.Registry());
+		final ServerSocket socket = new ServerSocket(0, 0, InetAddress.getLoopbackAddress());
+		Thread thread = new Thread() {
+			@Override
+			public void run() {
+				try {
+					server.serve(socket);
+				} catch (IOException e) {
+					// socket closed
+				}
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			PrintStream output = new PrintStream(bytes, true, "UTF-8");
+			Compile.Result result = CompileClient.compile(socket.getLocalPort(), Arrays.asList("--watch"), output);
+			assertEquals(Compile.Result.ERRORS, result);
+			assertTrue(bytes.toString("UTF-8").contains("--watch"));
+		} finally {
+			socket.close();
+		}
+	}
+}
@@ -0,0 +1,77 @@
+// Copyright (c) 2011, David J. Pearce (djp@ecs.vuw.ac.nz)
+// All rights reserved.
+//
+// This software may be modified and distributed under the terms
+// of the BSD license.  See the LICENSE file for details.
+
+package wyc.testing;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import wyc.commands.Compile;
+import wycc.util.Logger;
+
+/**
+ * Checks that every assertion checked during verification passes through the
+ * instrumented prover, both with and without a proof budget. Otherwise, the
+ * budget would not be enforced and no assertions would be recorded in the
+ * build metrics.
+ */
+public class InstrumentedProverTest {
+	private static final String SOURCE = "function f(int x) -> (int r)\n" + "requires x >= 0\n" + "ensures r > 0:\n"
+			+ "    assert x + 1 > 0\n" + "    return x + 1\n";
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testWithoutBudget() throws IOException {
+		String metrics = verify(0);
+		assertTrue(metrics, metrics.contains("\"outcome\": \"proved\""));
+		assertFalse(metrics, metrics.contains("\"outcome\": \"failed\""));
+	}
+
+	@Test
+	public void testWithBudget() throws IOException {
+		String metrics = verify(60000);
+		assertTrue(metrics, metrics.contains("\"outcome\": \"proved\""));
+		assertFalse(metrics, metrics.contains("\"outcome\": \"timeout\""));
+	}
+
+	/**
+	 * Verify the source file with a given budget, and return the metrics
+	 * written (in JSON format).
+	 *
+	 * @param budget
+	 * @return
+	 * @throws IOException
+	 */
+	private String verify(long budget) throws IOException {
+		File dir = folder.newFolder();
+		File source = new File(dir, "test.whiley");
+		try (FileWriter out = new FileWriter(source)) {
+			out.write(SOURCE);
+		}
+		File metrics = new File(dir, "metrics.json");
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		Compile cmd = new Compile(new wyc.Activator.Registry(), Logger.NULL, output, output);
+		cmd.setWhileydir(dir);
+		cmd.setVerify(true);
+		cmd.setProofBudget(budget);
+		cmd.setMetricsFile(metrics);
+		Compile.Result result = cmd.execute(source.getPath());
+		assertEquals(output.toString(), Compile.Result.SUCCESS, result);
+		return new String(Files.readAllBytes(metrics.toPath()), StandardCharsets.UTF_8);
+	}
+}
@@ -0,0 +1,125 @@
+// Copyright (c) 2011, David J. Pearce (djp@ecs.vuw.ac.nz)
+// All rights reserved.
+//
+// This software may be modified and distributed under the terms
+// of the BSD license.  See the LICENSE file for details.
+
+package wyc.testing;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import wyc.commands.Compile;
+import wyc.lang.WhileyFile;
+import wycc.util.Logger;
+import wyfs.lang.Path;
+
+/**
+ * Checks that a source file is invalidated exactly when the interface of a
+ * module it was compiled against has changed. In particular, the interface
+ * hashes recorded when compiling must match those of the same modules read
+ * back from disk, since otherwise an unchanged tree would be rebuilt forever.
+ */
+public class InvalidationTest {
+	private static final String MAIN = "import f from lib\n\n" + "function g() -> int:\n" + "    return f(1)\n";
+
+	private static final String LIB = "public function f(int x) -> int:\n" + "    return x\n";
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testUnchanged() throws IOException {
+		File dir = folder.newFolder();
+		write(dir, "lib", LIB);
+		write(dir, "main", MAIN);
+		assertEquals(Compile.Result.SUCCESS, compile(dir, "lib", "main"));
+		assertTrue(invalidated(dir).isEmpty());
+		// Likewise, when only the dependency was compiled last
+		assertEquals(Compile.Result.SUCCESS, compile(dir, "lib"));
+		assertTrue(invalidated(dir).isEmpty());
+	}
+
+	@Test
+	public void testBodyChanged() throws IOException {
+		File dir = folder.newFolder();
+		write(dir, "lib", LIB);
+		write(dir, "main", MAIN);
+		assertEquals(Compile.Result.SUCCESS, compile(dir, "lib", "main"));
+		write(dir, "lib", LIB.replace("return x", "return x + 1"));
+		assertEquals(Compile.Result.SUCCESS, compile(dir, "lib"));
+		assertTrue(invalidated(dir).isEmpty());
+	}
+
+	@Test
+	public void testInterfaceChanged() throws IOException {
+		File dir = folder.newFolder();
+		write(dir, "lib", LIB);
+		write(dir, "main", MAIN);
+		assertEquals(Compile.Result.SUCCESS, compile(dir, "lib", "main"));
+		write(dir, "lib", LIB.replace("-> int", "-> (int r)\nensures r == x"));
+		assertEquals(Compile.Result.SUCCESS, compile(dir, "lib"));
+		List<Path.Entry<WhileyFile>> invalidated = invalidated(dir);
+		assertEquals(1, invalidated.size());
+		assertEquals("main", invalidated.get(0).id().toString());
+	}
+
+	/**
+	 * Compile some source files in a given directory, with a fresh command.
+	 *
+	 * @param dir
+	 * @param names
+	 * @return
+	 */
+	private static Compile.Result compile(File dir, String... names) throws IOException {
+		String[] files = new String[names.length];
+		for (int i = 0; i != names.length; ++i) {
+			files[i] = new File(dir, names[i] + ".whiley").getPath();
+		}
+		return new Command(dir).execute(files);
+	}
+
+	/**
+	 * Determine which source files in a given directory would be rebuilt
+	 * because of a change to a dependency, as though the compiler were run
+	 * afresh.
+	 *
+	 * @param dir
+	 * @return
+	 * @throws IOException
+	 */
+	private static List<Path.Entry<WhileyFile>> invalidated(File dir) throws IOException {
+		Command cmd = new Command(dir);
+		return cmd.getInvalidatedSourceFiles(cmd.getProject());
+	}
+
+	private static void write(File dir, String name, String contents) throws IOException {
+		try (FileWriter out = new FileWriter(new File(dir, name + ".whiley"))) {
+			out.write(contents);
+		}
+	}
+
+	/**
+	 * Exposes the project constructed by the compile command.
+	 */
+	private static final class Command extends Compile {
+		public Command(File dir) throws IOException {
+			super(new wyc.Activator.Registry(), Logger.NULL, new ByteArrayOutputStream(), new ByteArrayOutputStream());
+			setWhileydir(dir);
+		}
+
+		@Override
+		public wybs.util.StdProject getProject() throws IOException {
+			return super.getProject();
+		}
+	}
+}
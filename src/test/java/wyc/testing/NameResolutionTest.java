@@ -0,0 +1,135 @@
+// Copyright (c) 2011, David J. Pearce (djp@ecs.vuw.ac.nz)
+// All rights reserved.
+//
+// This software may be modified and distributed under the terms
+// of the BSD license.  See the LICENSE file for details.
+
+package wyc.testing;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import wyc.commands.Compile;
+import wycc.util.Logger;
+
+/**
+ * Checks that imported names are resolved against the symbols of the module
+ * declaring them, whether that module is compiled from source or was compiled
+ * previously, and that the symbols of a module are updated when it changes
+ * between builds.
+ */
+public class NameResolutionTest {
+	private static final String MAIN = "import f from lib\n\n" + "function g() -> int:\n" + "    return f(1)\n";
+
+	private static final String PUBLIC = "public function f(int x) -> int:\n" + "    return x\n";
+
+	private static final String PRIVATE = "function f(int x) -> int:\n" + "    return x\n";
+
+	private static final String MISSING = "public function h(int x) -> int:\n" + "    return x\n";
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testSourcePublic() throws IOException {
+		File dir = folder.newFolder();
+		write(dir, "lib", PUBLIC);
+		write(dir, "main", MAIN);
+		assertEquals(Compile.Result.SUCCESS, compile(command(dir), dir, "lib", "main"));
+	}
+
+	@Test
+	public void testSourcePrivate() throws IOException {
+		File dir = folder.newFolder();
+		write(dir, "lib", PRIVATE);
+		write(dir, "main", MAIN);
+		assertEquals(Compile.Result.ERRORS, compile(command(dir), dir, "lib", "main"));
+	}
+
+	@Test
+	public void testSourceMissing() throws IOException {
+		File dir = folder.newFolder();
+		write(dir, "lib", MISSING);
+		write(dir, "main", MAIN);
+		assertEquals(Compile.Result.ERRORS, compile(command(dir), dir, "lib", "main"));
+	}
+
+	@Test
+	public void testBinaryPublic() throws IOException {
+		File dir = folder.newFolder();
+		write(dir, "lib", PUBLIC);
+		write(dir, "main", MAIN);
+		assertEquals(Compile.Result.SUCCESS, compile(command(dir), dir, "lib"));
+		// Now, lib is resolved using its WyIL file only
+		assertEquals(Compile.Result.SUCCESS, compile(command(dir), dir, "main"));
+	}
+
+	@Test
+	public void testBinaryPrivate() throws IOException {
+		File dir = folder.newFolder();
+		write(dir, "lib", PRIVATE);
+		write(dir, "main", MAIN);
+		assertEquals(Compile.Result.SUCCESS, compile(command(dir), dir, "lib"));
+		assertEquals(Compile.Result.ERRORS, compile(command(dir), dir, "main"));
+	}
+
+	@Test
+	public void testChanged() throws IOException {
+		File dir = folder.newFolder();
+		write(dir, "lib", PUBLIC);
+		write(dir, "main", MAIN);
+		// The same command is used throughout, so symbol tables are retained
+		// between builds.
+		Compile cmd = command(dir);
+		cmd.setPersistent(true);
+		assertEquals(Compile.Result.SUCCESS, compile(cmd, dir, "lib", "main"));
+		write(dir, "lib", PRIVATE);
+		assertEquals(Compile.Result.ERRORS, compile(cmd, dir, "lib", "main"));
+		write(dir, "lib", PUBLIC);
+		assertEquals(Compile.Result.SUCCESS, compile(cmd, dir, "lib", "main"));
+	}
+
+	private static Compile command(File dir) {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		Compile cmd = new Compile(new wyc.Activator.Registry(), Logger.NULL, output, output);
+		cmd.setWhileydir(dir);
+		return cmd;
+	}
+
+	private static Compile.Result compile(Compile cmd, File dir, String... names) {
+		String[] files = new String[names.length];
+		for (int i = 0; i != names.length; ++i) {
+			files[i] = new File(dir, names[i] + ".whiley").getPath();
+		}
+		return cmd.execute(files);
+	}
+
+	/**
+	 * Write a source file. Its modification time is advanced beyond that of
+	 * any previous version, since a change could otherwise go unnoticed on
+	 * file systems with a coarse timestamp resolution.
+	 *
+	 * @param dir
+	 * @param name
+	 * @param contents
+	 * @throws IOException
+	 */
+	private static void write(File dir, String name, String contents) throws IOException {
+		File file = new File(dir, name + ".whiley");
+		long previous = file.exists() ? file.lastModified() : 0;
+		try (FileWriter out = new FileWriter(file)) {
+			out.write(contents);
+		}
+		if (previous != 0) {
+			assertTrue(file.setLastModified(Math.max(previous + 1000, file.lastModified())));
+		}
+	}
+}
@@ -10,6 +10,9 @@ import org.junit.runner.RunWith;
 import org.junit.runners.Suite;
 
 @RunWith(Suite.class)
-@Suite.SuiteClasses({ ArraySubtypeTest.class, RecordSubtypeTest.class, RecursiveSubtypeTests.class })
+@Suite.SuiteClasses({ ArraySubtypeTest.class, RecordSubtypeTest.class, RecursiveSubtypeTests.class,
+		SimplifyTest.class, MinimiseTest.class, WyilFileTest.class, BuildCacheTest.class,
+		ModuleCacheTest.class, ProofCacheTest.class, SliceTest.class, LifetimeRelationTest.class,
+		BuildMetricsTest.class, VerificationConditionCacheTest.class })
 public class AllTests {
 }
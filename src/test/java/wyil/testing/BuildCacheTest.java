@@ -0,0 +1,89 @@
+// Copyright (c) 2011, David J. Pearce (djp@ecs.vuw.ac.nz)
+// All rights reserved.
+//
+// This software may be modified and distributed under the terms
+// of the BSD license.  See the LICENSE file for details.
+
+package wyil.testing;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import wyil.util.BuildCache;
+
+/**
+ * Checks that outputs are restored from a build cache exactly when their keys
+ * match.
+ */
+public class BuildCacheTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testVersionKnown() {
+		// The compiler under test was loaded from a class directory
+		assertTrue(BuildCache.isSupported());
+	}
+
+	@Test
+	public void testRoundTrip() throws IOException {
+		BuildCache cache = new BuildCache(folder.newFolder());
+		byte[] data = { 1, 2, 3, (byte) 0xFF };
+		cache.put(key("a", "b"), "wyil", data);
+		assertArrayEquals(data, cache.get(key("a", "b"), "wyil"));
+		assertNull(cache.get(key("a", "b"), "wyal"));
+		assertNull(cache.get(key("a", "c"), "wyil"));
+	}
+
+	@Test
+	public void testReplace() throws IOException {
+		BuildCache cache = new BuildCache(folder.newFolder());
+		cache.put(key("a"), "wyil", new byte[] { 1 });
+		cache.put(key("a"), "wyil", new byte[] { 2 });
+		assertArrayEquals(new byte[] { 2 }, cache.get(key("a"), "wyil"));
+	}
+
+	@Test
+	public void testSharedDirectory() throws IOException {
+		File dir = folder.newFolder();
+		new BuildCache(dir).put(key("a"), "wyil", new byte[] { 1 });
+		assertArrayEquals(new byte[] { 1 }, new BuildCache(dir).get(key("a"), "wyil"));
+		// No temporary files are left behind
+		for (String name : new File(dir, key("a").toString().substring(0, 2)).list()) {
+			assertFalse(name, name.endsWith(".tmp"));
+		}
+	}
+
+	@Test
+	public void testKeyEquality() {
+		assertEquals(key("a", "b"), key("a", "b"));
+		assertEquals(key("a", "b").hashCode(), key("a", "b").hashCode());
+		assertNotEquals(key("a", "b"), key("b", "a"));
+		// Item boundaries are part of the key
+		assertNotEquals(key("ab", "c"), key("a", "bc"));
+		assertNotEquals(key("a"), key("a", ""));
+		assertNotEquals(new BuildCache.Key().add(true), new BuildCache.Key().add(false));
+		assertNotEquals(new BuildCache.Key().add(1L), new BuildCache.Key().add(2L));
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testKeyFrozen() {
+		BuildCache.Key key = key("a");
+		key.toString();
+		key.add("b");
+	}
+
+	private static BuildCache.Key key(String... items) {
+		BuildCache.Key key = new BuildCache.Key();
+		for (String item : items) {
+			key.add(item);
+		}
+		return key;
+	}
+}
@@ -0,0 +1,90 @@
+// Copyright (c) 2011, David J. Pearce (djp@ecs.vuw.ac.nz)
+// All rights reserved.
+//
+// This software may be modified and distributed under the terms
+// of the BSD license.  See the LICENSE file for details.
+
+package wyil.testing;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.StringWriter;
+
+import org.junit.Test;
+
+import wyil.util.BuildMetrics;
+
+/**
+ * Checks that build metrics retain what is recorded, and that both output
+ * formats describe every record, cache and assertion.
+ */
+public class BuildMetricsTest {
+
+	@Test
+	public void testRecords() {
+		BuildMetrics metrics = new BuildMetrics();
+		metrics.start("parse", "a.whiley").stop(1);
+		metrics.start("compile", null).stop(2);
+		assertEquals(2, metrics.getRecords().size());
+		BuildMetrics.Record r = metrics.getRecords().get(1);
+		assertEquals("compile", r.getPhase());
+		assertNull(r.getFile());
+		assertEquals(2, r.getFiles());
+		assertTrue(r.getWallTime() >= 0);
+		metrics.clear();
+		assertTrue(metrics.getRecords().isEmpty());
+	}
+
+	@Test
+	public void testDisabled() throws IOException {
+		BuildMetrics.NULL.start("parse", "a.whiley").stop(1);
+		BuildMetrics.NULL.hit("modules");
+		BuildMetrics.NULL.assertion(assertion("a.whiley", BuildMetrics.Outcome.PROVED));
+		assertFalse(BuildMetrics.NULL.isEnabled());
+		assertTrue(BuildMetrics.NULL.getRecords().isEmpty());
+		assertTrue(BuildMetrics.NULL.getAssertions().isEmpty());
+		StringWriter out = new StringWriter();
+		BuildMetrics.NULL.writeCSV(out);
+		assertEquals("phase,file,files,wallNanos,cpuNanos,allocatedBytes\n", out.toString());
+	}
+
+	@Test
+	public void testJSON() throws IOException {
+		StringWriter out = new StringWriter();
+		metrics().writeJSON(out);
+		String json = out.toString();
+		assertTrue(json, json.contains("\"phase\": \"parse\", \"file\": \"a\\\"b.whiley\", \"files\": 1"));
+		assertTrue(json, json.contains("\"modules\": {\"hits\": 2, \"misses\": 1}"));
+		assertTrue(json, json.contains("\"proofs\": {\"hits\": 0, \"misses\": 1}"));
+		assertTrue(json, json.contains("\"file\": \"a\\\"b.whiley\", \"start\": 1, \"end\": 5"));
+		assertTrue(json, json.contains("\"outcome\": \"timeout\""));
+	}
+
+	@Test
+	public void testCSV() throws IOException {
+		StringWriter out = new StringWriter();
+		metrics().writeCSV(out);
+		String[] lines = out.toString().split("\n");
+		assertEquals(5, lines.length);
+		assertTrue(lines[1], lines[1].startsWith("parse,\"a\"\"b.whiley\",1,"));
+		assertEquals("cache:modules,,2,1,,", lines[2]);
+		assertEquals("cache:proofs,,0,1,,", lines[3]);
+		assertTrue(lines[4], lines[4].startsWith("assert:timeout,\"a\"\"b.whiley:1-5\",3,"));
+	}
+
+	private static BuildMetrics metrics() {
+		BuildMetrics metrics = new BuildMetrics();
+		metrics.start("parse", "a\"b.whiley").stop(1);
+		metrics.hit("modules");
+		metrics.hit("modules");
+		metrics.miss("modules");
+		metrics.miss("proofs");
+		metrics.assertion(assertion("a\"b.whiley", BuildMetrics.Outcome.TIMEOUT));
+		return metrics;
+	}
+
+	private static BuildMetrics.Assertion assertion(String file, BuildMetrics.Outcome outcome) {
+		return new BuildMetrics.Assertion(file, 1, 5, "assertion may not hold", 3, 1000, outcome);
+	}
+}
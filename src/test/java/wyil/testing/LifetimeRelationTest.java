@@ -0,0 +1,125 @@
+// Copyright (c) 2011, David J. Pearce (djp@ecs.vuw.ac.nz)
+// All rights reserved.
+//
+// This software may be modified and distributed under the terms
+// of the BSD license.  See the LICENSE file for details.
+
+package wyil.testing;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import wyil.util.type.LifetimeRelation;
+
+/**
+ * Checks that the outlives relation follows the stack of named blocks and
+ * lifetime parameters as blocks are entered, exited and merged.
+ */
+public class LifetimeRelationTest {
+
+	@Test
+	public void testStatic() {
+		LifetimeRelation r = new LifetimeRelation();
+		assertTrue(r.outlives("*", "a"));
+		assertTrue(r.outlives("a", "a"));
+		assertFalse(r.outlives("a", "*"));
+		assertFalse(r.outlives("a", "b"));
+	}
+
+	@Test
+	public void testNestedBlocks() {
+		LifetimeRelation r = new LifetimeRelation();
+		r.startNamedBlock("a");
+		r.startNamedBlock("b");
+		r.startNamedBlock("c");
+		assertTrue(r.outlives("a", "c"));
+		assertTrue(r.outlives("b", "c"));
+		assertFalse(r.outlives("c", "a"));
+		r.endNamedBlock("c");
+		assertFalse(r.outlives("a", "c"));
+		assertTrue(r.outlives("a", "b"));
+	}
+
+	@Test
+	public void testEndOuterBlock() {
+		LifetimeRelation r = new LifetimeRelation();
+		r.startNamedBlock("a");
+		r.startNamedBlock("b");
+		// Ending a block also ends every block nested within it
+		r.endNamedBlock("a");
+		assertFalse(r.outlives("a", "b"));
+		r.startNamedBlock("b");
+		r.startNamedBlock("a");
+		assertTrue(r.outlives("b", "a"));
+		assertFalse(r.outlives("a", "b"));
+	}
+
+	@Test
+	public void testParameters() {
+		LifetimeRelation r = new LifetimeRelation();
+		r.startNamedBlock("b");
+		// Parameters outlive all blocks, even those entered beforehand
+		r.addParameters(Arrays.asList("p", "q"));
+		r.startNamedBlock("c");
+		assertTrue(r.outlives("p", "b"));
+		assertTrue(r.outlives("q", "c"));
+		assertFalse(r.outlives("b", "p"));
+		assertFalse(r.outlives("p", "q"));
+	}
+
+	@Test
+	public void testDuplicateBlock() {
+		LifetimeRelation r = new LifetimeRelation();
+		r.startNamedBlock("a");
+		r.startNamedBlock("b");
+		r.startNamedBlock("a");
+		// The outermost block determines the position of a lifetime
+		assertTrue(r.outlives("a", "b"));
+		assertFalse(r.outlives("b", "a"));
+		r.endNamedBlock("a");
+		assertTrue(r.outlives("a", "b"));
+		r.endNamedBlock("b");
+		r.startNamedBlock("c");
+		assertTrue(r.outlives("a", "c"));
+		assertFalse(r.outlives("b", "c"));
+	}
+
+	@Test
+	public void testCopy() {
+		LifetimeRelation r = new LifetimeRelation();
+		r.startNamedBlock("a");
+		LifetimeRelation copy = new LifetimeRelation(r);
+		r.startNamedBlock("b");
+		copy.startNamedBlock("c");
+		assertTrue(r.outlives("a", "b"));
+		assertFalse(r.outlives("a", "c"));
+		assertTrue(copy.outlives("a", "c"));
+		assertFalse(copy.outlives("a", "b"));
+	}
+
+	@Test
+	public void testMerge() {
+		LifetimeRelation first = new LifetimeRelation();
+		first.addParameters(Arrays.asList("p", "q"));
+		first.startNamedBlock("a");
+		first.startNamedBlock("b");
+		first.startNamedBlock("c");
+		LifetimeRelation second = new LifetimeRelation();
+		second.addParameters(Arrays.asList("q"));
+		second.startNamedBlock("a");
+		second.startNamedBlock("b");
+		second.startNamedBlock("d");
+		LifetimeRelation r = new LifetimeRelation(first);
+		r.replaceWithMerge(first, second);
+		// Only the common parameters and the common prefix of blocks remain
+		assertTrue(r.outlives("a", "b"));
+		assertTrue(r.outlives("q", "a"));
+		assertFalse(r.outlives("p", "a"));
+		assertFalse(r.outlives("b", "c"));
+		assertFalse(r.outlives("b", "d"));
+		assertEquals("a :> b", r.toString());
+	}
+}
@@ -0,0 +1,227 @@
+// Copyright (c) 2011, David J. Pearce (djp@ecs.vuw.ac.nz)
+// All rights reserved.
+//
+// This software may be modified and distributed under the terms
+// of the BSD license.  See the LICENSE file for details.
+
+package wyil.testing;
+
+import static org.junit.Assert.*;
+
+import java.util.Comparator;
+import java.util.Random;
+
+import org.junit.Test;
+
+import wyautl_old.lang.Automata;
+import wyautl_old.lang.Automaton;
+import wybs.util.ResolveError;
+import wyil.lang.Type;
+import wyil.util.TypeSystem;
+import wyil.util.type.TypeAlgorithms;
+
+/**
+ * Checks that minimisation by partition refinement agrees with the pairwise
+ * fixpoint it replaced, and that canonicalisation is independent of the
+ * numbering of states. Since normalised automata are already minimal, each
+ * automaton is first unrolled into two copies of itself whose states refer to
+ * states of the other copy.
+ */
+public class MinimiseTest {
+	@Test public void test_1() { checkMinimise("int"); }
+	@Test public void test_2() { checkMinimise("int|null"); }
+	@Test public void test_3() { checkMinimise("{int f1,null f2}"); }
+	@Test public void test_4() { checkMinimise("{{int f1} f1,{int f1} f2}"); }
+	@Test public void test_5() { checkMinimise("(null,{null f1})"); }
+	@Test public void test_6() { checkMinimise("X<{X f1}|null>"); }
+	@Test public void test_7() { checkMinimise("X<null|(X,null)>"); }
+	@Test public void test_8() { checkMinimise("X<(X|null,null)>"); }
+	@Test public void test_9() { checkMinimise("X<{X|null f1,X|null f2}>"); }
+	@Test public void test_10() { checkMinimise("X<{Y<{X|Y f1}|null> f1}|null>"); }
+	@Test public void test_11() { checkMinimise("[X<[X]|int>]"); }
+	@Test public void test_12() { checkMinimise("!{int f1}|null"); }
+
+	@Test
+	public void test_deep() {
+		// A chain of states whose depth exceeds that which a recursive
+		// traversal could handle. Each state is distinguished by its data, so
+		// that ranks are determined in a single round.
+		int size = 100000;
+		Automaton.State[] states = new Automaton.State[size];
+		for (int i = 0; i != size; ++i) {
+			int[] children = i + 1 == size ? new int[0] : new int[] { i + 1 };
+			states[i] = new Automaton.State(TypeSystem.K_ARRAY, i, true, children);
+		}
+		Automaton chain = new Automaton(states);
+		Comparator<Automaton.State> comparator = new Comparator<Automaton.State>() {
+			@Override
+			public int compare(Automaton.State s1, Automaton.State s2) {
+				return ((Integer) s1.data).compareTo((Integer) s2.data);
+			}
+		};
+		Automaton canonical = Automata.canonicalise(permute(chain, new Random(size)), comparator);
+		assertEquals(chain, canonical);
+		assertEquals(chain.hashCode(), canonical.hashCode());
+	}
+
+	private void checkMinimise(String str) {
+		Automaton automaton;
+		try {
+			automaton = new TypeSystem(null).toAutomaton(Type.fromString(str));
+		} catch (ResolveError e) {
+			throw new RuntimeException(e);
+		}
+		Automaton unrolled = unroll(automaton);
+		Automaton expected = minimiseByFixpoint(unrolled);
+		Automaton actual = Automata.minimise(unrolled);
+		assertEquals(expected, actual);
+		assertEquals(automaton.size(), actual.size());
+		// Canonicalisation should undo any renumbering of states
+		Automaton canonical = Automata.canonicalise(actual, TypeAlgorithms.DATA_COMPARATOR);
+		assertEquals(automaton, canonical);
+		Random random = new Random(str.hashCode());
+		for (int i = 0; i != 5; ++i) {
+			Automaton permuted = permute(actual, random);
+			assertEquals(canonical, Automata.canonicalise(permuted, TypeAlgorithms.DATA_COMPARATOR));
+		}
+	}
+
+	/**
+	 * Construct an equivalent automaton with twice as many states, consisting
+	 * of two copies of the original whose children refer to the other copy.
+	 *
+	 * @param automaton
+	 * @return
+	 */
+	private static Automaton unroll(Automaton automaton) {
+		int size = automaton.size();
+		Automaton.State[] states = new Automaton.State[size * 2];
+		for (int i = 0; i != size; ++i) {
+			Automaton.State state = automaton.states[i];
+			int[] first = new int[state.children.length];
+			int[] second = new int[state.children.length];
+			for (int j = 0; j != first.length; ++j) {
+				first[j] = state.children[j] + size;
+				second[j] = state.children[j];
+			}
+			states[i] = new Automaton.State(state.kind, state.data, state.deterministic, first);
+			states[i + size] = new Automaton.State(state.kind, state.data, state.deterministic, second);
+		}
+		return new Automaton(states);
+	}
+
+	/**
+	 * Renumber all states other than the root at random.
+	 *
+	 * @param automaton
+	 * @param random
+	 * @return
+	 */
+	private static Automaton permute(Automaton automaton, Random random) {
+		int size = automaton.size();
+		int[] mapping = new int[size];
+		for (int i = 0; i != size; ++i) {
+			mapping[i] = i;
+		}
+		for (int i = size - 1; i > 1; --i) {
+			int j = 1 + random.nextInt(i);
+			int tmp = mapping[i];
+			mapping[i] = mapping[j];
+			mapping[j] = tmp;
+		}
+		Automaton.State[] states = new Automaton.State[size];
+		for (int i = 0; i != size; ++i) {
+			states[mapping[i]] = Automata.remap(automaton.states[i], mapping);
+		}
+		return new Automaton(states);
+	}
+
+	// =============================================================
+	// Reference Minimisation
+	// =============================================================
+
+	/**
+	 * Minimise an automaton by repeatedly comparing every pair of states until
+	 * a fixpoint is reached. This is the algorithm previously used by
+	 * <code>Automata.minimise()</code>.
+	 *
+	 * @param automaton
+	 * @return
+	 */
+	private static Automaton minimiseByFixpoint(Automaton automaton) {
+		int size = automaton.size();
+		boolean[][] equivs = new boolean[size][size];
+		for (int i = 0; i != size; ++i) {
+			for (int j = 0; j != size; ++j) {
+				equivs[i][j] = true;
+			}
+		}
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			for (int i = 0; i < size; ++i) {
+				for (int j = i + 1; j < size; ++j) {
+					if (equivs[i][j] && !equivalent(i, j, equivs, automaton)) {
+						equivs[i][j] = false;
+						equivs[j][i] = false;
+						changed = true;
+					}
+				}
+			}
+		}
+		int[] mapping = new int[size];
+		int newSize = 0;
+		for (int i = 0; i != size; ++i) {
+			int classRep = i;
+			for (int j = 0; j < i; ++j) {
+				if (equivs[i][j]) {
+					classRep = j;
+					break;
+				}
+			}
+			mapping[i] = i == classRep ? newSize++ : mapping[classRep];
+		}
+		Automaton.State[] states = new Automaton.State[newSize];
+		for (int i = 0; i != size; ++i) {
+			if (states[mapping[i]] == null) {
+				states[mapping[i]] = Automata.remap(automaton.states[i], mapping);
+			}
+		}
+		return new Automaton(states);
+	}
+
+	private static boolean equivalent(int i, int j, boolean[][] equivs, Automaton automaton) {
+		Automaton.State s1 = automaton.states[i];
+		Automaton.State s2 = automaton.states[j];
+		if (s1.kind != s2.kind || s1.deterministic != s2.deterministic) {
+			return false;
+		} else if (s1.data == null ? s2.data != null : !s1.data.equals(s2.data)) {
+			return false;
+		} else if (s1.deterministic) {
+			if (s1.children.length != s2.children.length) {
+				return false;
+			}
+			for (int k = 0; k != s1.children.length; ++k) {
+				if (!equivs[s1.children[k]][s2.children[k]]) {
+					return false;
+				}
+			}
+			return true;
+		} else {
+			return covers(s1.children, s2.children, equivs) && covers(s2.children, s1.children, equivs);
+		}
+	}
+
+	private static boolean covers(int[] children1, int[] children2, boolean[][] equivs) {
+		for (int c1 : children1) {
+			boolean matched = false;
+			for (int c2 : children2) {
+				matched |= equivs[c1][c2];
+			}
+			if (!matched) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
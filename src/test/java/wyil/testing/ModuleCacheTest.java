@@ -0,0 +1,158 @@
+// Copyright (c) 2011, David J. Pearce (djp@ecs.vuw.ac.nz)
+// All rights reserved.
+//
+// This software may be modified and distributed under the terms
+// of the BSD license.  See the LICENSE file for details.
+
+package wyil.testing;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import wybs.lang.NameID;
+import wybs.util.ResolveError;
+import wybs.util.StdProject;
+import wyc.commands.Compile;
+import wycc.util.Logger;
+import wyfs.lang.Content;
+import wyfs.lang.Path;
+import wyfs.util.DirectoryRoot;
+import wyfs.util.Trie;
+import wyil.lang.Type;
+import wyil.lang.WyilFile;
+import wyil.util.ModuleCache;
+import wyil.util.TypeSystem;
+
+/**
+ * Checks that the module cache decodes each module at most once whilst it is
+ * unchanged, and that it does not prevent modules from being reclaimed. Also
+ * checks that declarations cached by the type system are discarded exactly
+ * when their module is invalidated.
+ */
+public class ModuleCacheTest {
+	private static final Path.ID LIB = Trie.fromString("lib");
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testHit() throws IOException {
+		ModuleCache cache = new ModuleCache(project(compile()));
+		WyilFile module = cache.get(LIB);
+		assertNotNull(module);
+		assertSame(module, cache.get(LIB));
+		assertEquals(1, cache.getHits());
+		assertEquals(1, cache.getMisses());
+	}
+
+	@Test
+	public void testMissing() throws IOException {
+		ModuleCache cache = new ModuleCache(project(compile()));
+		assertNull(cache.get(Trie.fromString("missing")));
+	}
+
+	@Test
+	public void testInvalidate() throws IOException {
+		ModuleCache cache = new ModuleCache(project(compile()));
+		WyilFile module = cache.get(LIB);
+		cache.invalidate(LIB);
+		assertNotSame(module, cache.get(LIB));
+		assertEquals(2, cache.getMisses());
+	}
+
+	@Test
+	public void testModifiedOnDisk() throws IOException {
+		File dir = compile();
+		ModuleCache cache = new ModuleCache(project(dir));
+		WyilFile module = cache.get(LIB);
+		File binary = new File(dir, "lib.wyil");
+		assertTrue(binary.setLastModified(binary.lastModified() + 10000));
+		assertNotSame(module, cache.get(LIB));
+	}
+
+	@Test
+	public void testEntryReleased() throws IOException {
+		StdProject project = project(compile());
+		WyilFile module = new ModuleCache(project).get(LIB);
+		// The entry must not hold on to the decoded module, since it could
+		// then never be reclaimed.
+		Path.Entry<WyilFile> entry = project.get(LIB, WyilFile.ContentType);
+		assertNotSame(module, entry.read());
+	}
+
+	@Test
+	public void testEntryUntouched() throws IOException {
+		StdProject project = project(compile());
+		Path.Entry<WyilFile> entry = project.get(LIB, WyilFile.ContentType);
+		WyilFile module = entry.read();
+		// The cache does not own the entry and, hence, must not discard what
+		// has already been decoded by it.
+		assertNotNull(new ModuleCache(project).get(LIB));
+		assertSame(module, entry.read());
+	}
+
+	@Test
+	public void testEntry() throws IOException {
+		StdProject project = project(compile());
+		ModuleCache cache = new ModuleCache(project);
+		WyilFile module = cache.get(project.get(LIB, WyilFile.ContentType));
+		assertSame(module, cache.get(LIB));
+		assertEquals(1, cache.getHits());
+	}
+
+	@Test
+	public void testNominalCached() throws IOException, ResolveError {
+		StdProject project = project(compile());
+		ModuleCache cache = new ModuleCache(project);
+		TypeSystem types = new TypeSystem(project, cache);
+		Type nat = Type.Nominal(new NameID(LIB, "nat"));
+		assertEquals(Type.T_INT, types.expandOneLevel(nat));
+		assertEquals(Type.T_INT, types.expandOneLevel(nat));
+		assertTrue(types.isSubtype(Type.T_INT, nat));
+		// Once resolved, the declaration is reused without consulting the
+		// module cache (or the project).
+		assertEquals(1, cache.getMisses());
+		assertEquals(0, cache.getHits());
+		cache.invalidate(LIB);
+		assertEquals(Type.T_INT, types.expandOneLevel(nat));
+		assertTrue(types.isSubtype(Type.T_INT, nat));
+		assertEquals(2, cache.getMisses());
+		assertEquals(0, cache.getHits());
+	}
+
+	private StdProject project(File dir) throws IOException {
+		ArrayList<Path.Root> roots = new ArrayList<>();
+		roots.add(new DirectoryRoot(dir, new wyc.Activator.Registry()));
+		return new StdProject(roots);
+	}
+
+	/**
+	 * Compile a small library in a fresh directory.
+	 *
+	 * @return The directory.
+	 * @throws IOException
+	 */
+	private File compile() throws IOException {
+		File dir = folder.newFolder();
+		File source = new File(dir, "lib.whiley");
+		try (FileWriter out = new FileWriter(source)) {
+			out.write("public type nat is (int x) where x >= 0\n\npublic function f(nat x) -> nat:\n    return x\n");
+		}
+		Content.Registry registry = new wyc.Activator.Registry();
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		Compile cmd = new Compile(registry, Logger.NULL, output, output);
+		cmd.setWhileydir(dir);
+		Compile.Result result = cmd.execute(source.getPath());
+		assertEquals(output.toString(), Compile.Result.SUCCESS, result);
+		return dir;
+	}
+}
@@ -0,0 +1,110 @@
+// Copyright (c) 2011, David J. Pearce (djp@ecs.vuw.ac.nz)
+// All rights reserved.
+//
+// This software may be modified and distributed under the terms
+// of the BSD license.  See the LICENSE file for details.
+
+package wyil.testing;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import wyc.commands.Compile;
+import wycc.util.Logger;
+
+/**
+ * Checks that assertions proven previously are proven again whenever a
+ * declaration they depend upon changes, even when that declaration is private
+ * to another module and, hence, not part of its interface.
+ */
+public class ProofCacheTest {
+	private static final String MAIN = "import f from lib\n\n" + "function g() -> int:\n" + "    int x = f(1)\n"
+			+ "    assert x >= 1\n" + "    return x\n";
+
+	private static final String LIB = "property ok(int x) where x >= 1\n\n"
+			+ "public function f(int x) -> (int r)\n" + "requires ok(x)\n" + "ensures ok(r):\n" + "    return x\n";
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private File cache;
+
+	@Before
+	public void setup() throws IOException {
+		cache = folder.newFolder();
+	}
+
+	@Test
+	public void testUnchanged() throws IOException {
+		File dir = folder.newFolder();
+		write(dir, "lib", LIB);
+		write(dir, "main", MAIN);
+		assertEquals(Compile.Result.SUCCESS, verify(dir));
+		assertEquals(Compile.Result.SUCCESS, verify(dir));
+	}
+
+	@Test
+	public void testPreconditionProperty() throws IOException {
+		File dir = folder.newFolder();
+		write(dir, "lib", LIB);
+		write(dir, "main", MAIN);
+		assertEquals(Compile.Result.SUCCESS, verify(dir));
+		// The call f(1) no longer meets the precondition
+		write(dir, "lib", LIB.replace("x >= 1", "x >= 2"));
+		assertEquals(Compile.Result.ERRORS, verify(dir));
+	}
+
+	@Test
+	public void testPostconditionProperty() throws IOException {
+		File dir = folder.newFolder();
+		write(dir, "lib", LIB);
+		write(dir, "main", MAIN);
+		assertEquals(Compile.Result.SUCCESS, verify(dir));
+		// The result of f(1) is no longer known to be at least one
+		write(dir, "lib", LIB.replace("x >= 1", "x >= 0"));
+		assertEquals(Compile.Result.ERRORS, verify(dir));
+	}
+
+	@Test
+	public void testFailureNotRecorded() throws IOException {
+		File dir = folder.newFolder();
+		write(dir, "lib", LIB);
+		write(dir, "main", MAIN.replace("x >= 1", "x >= 2"));
+		assertEquals(Compile.Result.ERRORS, verify(dir));
+		// The failing assertion must not have been recorded as proven
+		assertEquals(Compile.Result.ERRORS, verify(dir));
+	}
+
+	/**
+	 * Compile and verify both modules in a given directory, using the shared
+	 * cache. Each time, a fresh command is used so that nothing is retained
+	 * other than the cache.
+	 *
+	 * @param dir
+	 * @return
+	 */
+	private Compile.Result verify(File dir) throws IOException {
+		String[] files = { new File(dir, "lib.whiley").getPath(), new File(dir, "main.whiley").getPath() };
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		Compile cmd = new Compile(new wyc.Activator.Registry(), Logger.NULL, output, output);
+		cmd.setWhileydir(dir);
+		cmd.setVerify(true);
+		cmd.setCacheDir(cache);
+		return cmd.execute(files);
+	}
+
+	private static void write(File dir, String name, String contents) throws IOException {
+		try (FileWriter out = new FileWriter(new File(dir, name + ".whiley"))) {
+			out.write(contents);
+		}
+	}
+}
@@ -0,0 +1,57 @@
+// Copyright (c) 2011, David J. Pearce (djp@ecs.vuw.ac.nz)
+// All rights reserved.
+//
+// This software may be modified and distributed under the terms
+// of the BSD license.  See the LICENSE file for details.
+
+package wyil.testing;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import wybs.util.ResolveError;
+import wyil.lang.Type;
+import wyil.util.TypeSystem;
+
+/**
+ * Checks that types are simplified to their expected normal forms. Since
+ * normalised automata are canonical, two types simplify to the same normal
+ * form exactly when their automata are equal.
+ */
+public class SimplifyTest {
+	@Test public void test_1() { checkSimplified("int|int", "int"); }
+	@Test public void test_2() { checkSimplified("int|any", "any"); }
+	@Test public void test_3() { checkSimplified("int|void", "int"); }
+	@Test public void test_4() { checkSimplified("null|int|null", "int|null"); }
+	@Test public void test_5() { checkSimplified("int|null", "null|int"); }
+	@Test public void test_6() { checkSimplified("!!int", "int"); }
+	@Test public void test_7() { checkSimplified("!any", "void"); }
+	@Test public void test_8() { checkSimplified("!void", "any"); }
+	@Test public void test_9() { checkSimplified("{void f1}", "void"); }
+	@Test public void test_10() { checkSimplified("{int f1}|{int f1}", "{int f1}"); }
+	@Test public void test_11() { checkSimplified("{int f1}|{void f2}", "{int f1}"); }
+	@Test public void test_12() { checkSimplified("(int|int,null)", "(int,null)"); }
+	@Test public void test_13() { checkSimplified("X<{X f1}>", "void"); }
+	@Test public void test_14() { checkSimplified("X<{X f1}|null>", "X<null|{X f1}>"); }
+	@Test public void test_15() { checkNotSimplified("X<{X f1}|null>", "X<{X f2}|null>"); }
+	@Test public void test_16() { checkNotSimplified("int|null", "int"); }
+
+	private void checkSimplified(String from, String to) {
+		TypeSystem types = new TypeSystem(null);
+		try {
+			assertEquals(types.toAutomaton(Type.fromString(to)), types.toAutomaton(Type.fromString(from)));
+		} catch (ResolveError e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private void checkNotSimplified(String from, String to) {
+		TypeSystem types = new TypeSystem(null);
+		try {
+			assertNotEquals(types.toAutomaton(Type.fromString(to)), types.toAutomaton(Type.fromString(from)));
+		} catch (ResolveError e) {
+			throw new RuntimeException(e);
+		}
+	}
+}
@@ -0,0 +1,116 @@
+// Copyright (c) 2011, David J. Pearce (djp@ecs.vuw.ac.nz)
+// All rights reserved.
+//
+// This software may be modified and distributed under the terms
+// of the BSD license.  See the LICENSE file for details.
+
+package wyil.testing;
+
+import static org.junit.Assert.*;
+
+import java.math.BigInteger;
+
+import org.junit.Test;
+
+import wyal.lang.WyalFile;
+import wyal.lang.WyalFile.Expr;
+import wyal.lang.WyalFile.Value;
+import wyil.builders.VerificationConditionGenerator;
+
+/**
+ * Checks that slicing a verification condition retains exactly those
+ * assumptions which may affect whether its consequent holds.
+ */
+public class SliceTest {
+	private final WyalFile.VariableDeclaration x = variable("x");
+	private final WyalFile.VariableDeclaration y = variable("y");
+	private final WyalFile.VariableDeclaration z = variable("z");
+
+	@Test
+	public void testUnrelated() {
+		Expr a = positive(x);
+		Expr b = positive(z);
+		WyalFile.Stmt result = VerificationConditionGenerator.slice(block(a, b), positive(x));
+		assertSame(a, result);
+	}
+
+	@Test
+	public void testTransitive() {
+		Expr a = new Expr.Equal(access(x), access(y));
+		Expr b = positive(y);
+		Expr c = positive(z);
+		WyalFile.Stmt result = VerificationConditionGenerator.slice(block(a, b, c), positive(x));
+		assertRetained(result, a, b);
+	}
+
+	@Test
+	public void testTransitiveOutOfOrder() {
+		// The link to x is only found after the first pass
+		Expr a = positive(y);
+		Expr b = positive(z);
+		Expr c = new Expr.Equal(access(x), access(y));
+		WyalFile.Stmt result = VerificationConditionGenerator.slice(block(a, b, c), positive(x));
+		assertRetained(result, a, c);
+	}
+
+	@Test
+	public void testInvocation() {
+		// Conjuncts mentioning the same function are related, even if they
+		// share no variables.
+		Expr a = invoke("inv", y);
+		Expr b = positive(y);
+		Expr c = positive(z);
+		WyalFile.Stmt result = VerificationConditionGenerator.slice(block(a, b, c), invoke("inv", x));
+		assertRetained(result, a, b);
+	}
+
+	@Test
+	public void testGroundRetained() {
+		// A conjunct without variables may make the condition vacuous
+		Expr a = new Expr.Constant(new Value.Bool(false));
+		Expr b = positive(z);
+		WyalFile.Stmt result = VerificationConditionGenerator.slice(block(a, b), positive(x));
+		assertSame(a, result);
+	}
+
+	@Test
+	public void testNothingRetained() {
+		WyalFile.Stmt result = VerificationConditionGenerator.slice(block(positive(y), positive(z)), positive(x));
+		assertTrue(result instanceof Expr.Constant);
+	}
+
+	@Test
+	public void testNothingRemoved() {
+		WyalFile.Stmt antecedent = block(positive(x), new Expr.Equal(access(x), access(y)));
+		assertSame(antecedent, VerificationConditionGenerator.slice(antecedent, positive(y)));
+	}
+
+	private static void assertRetained(WyalFile.Stmt result, Expr... expected) {
+		assertTrue(result instanceof WyalFile.Stmt.Block);
+		assertEquals(expected.length, result.size());
+		for (int i = 0; i != expected.length; ++i) {
+			assertSame(expected[i], result.getOperand(i));
+		}
+	}
+
+	private static WyalFile.Stmt.Block block(WyalFile.Stmt... stmts) {
+		return new WyalFile.Stmt.Block(stmts);
+	}
+
+	private static WyalFile.VariableDeclaration variable(String name) {
+		return new WyalFile.VariableDeclaration(new WyalFile.Type.Int(), new WyalFile.Identifier(name));
+	}
+
+	private static Expr access(WyalFile.VariableDeclaration var) {
+		return new Expr.VariableAccess(var);
+	}
+
+	private static Expr positive(WyalFile.VariableDeclaration var) {
+		return new Expr.GreaterThan(access(var), new Expr.Constant(new Value.Int(BigInteger.ZERO)));
+	}
+
+	private static Expr invoke(String name, WyalFile.VariableDeclaration var) {
+		WyalFile.Name n = new WyalFile.Name(new WyalFile.Identifier(name));
+		return new Expr.Invoke(null, n, null, new Expr[] { access(var) });
+	}
+}
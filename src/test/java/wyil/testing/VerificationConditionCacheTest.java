@@ -0,0 +1,102 @@
+// Copyright (c) 2011, David J. Pearce (djp@ecs.vuw.ac.nz)
+// All rights reserved.
+//
+// This software may be modified and distributed under the terms
+// of the BSD license.  See the LICENSE file for details.
+
+package wyil.testing;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import wyc.commands.Compile;
+import wycc.util.Logger;
+
+/**
+ * Checks that a WyAL file restored from the build cache is identical to that
+ * which would have been generated, regardless of the options used when it
+ * was stored. In particular, the generated file must not depend upon the
+ * number of threads used to generate it.
+ */
+public class VerificationConditionCacheTest {
+	private static final String SOURCE = "function f(int x, int y) -> int\n" + "requires x >= 0\n"
+			+ "requires y >= 0:\n" + "    assert x >= 0\n" + "    return x\n";
+
+	private static final String DECLARATIONS = "type nat is (int x) where x >= 0\n\n"
+			+ "function f(nat x) -> (nat r)\n" + "ensures r > x:\n" + "    return x + 1\n\n"
+			+ "function g(nat x, int[] xs) -> int\n" + "requires x < |xs|:\n" + "    return xs[x] + f(x)\n\n"
+			+ "function h(int[] xs) -> (nat r):\n" + "    nat i = 0\n" + "    while i < |xs| where i >= 0:\n"
+			+ "        i = i + 1\n" + "    return i\n";
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private File cache;
+
+	@Before
+	public void setup() throws IOException {
+		cache = folder.newFolder();
+	}
+
+	@Test
+	public void testSlicing() throws IOException {
+		byte[] unsliced = generate(SOURCE, false, 1, null);
+		byte[] sliced = generate(SOURCE, true, 1, null);
+		// Otherwise, this test would show nothing
+		assertFalse(new String(sliced), new String(unsliced).equals(new String(sliced)));
+		assertArrayEquals(unsliced, generate(SOURCE, false, 1, cache));
+		assertArrayEquals(sliced, generate(SOURCE, true, 1, cache));
+		assertArrayEquals(unsliced, generate(SOURCE, false, 1, cache));
+	}
+
+	@Test
+	public void testThreads() throws IOException {
+		byte[] expected = generate(DECLARATIONS, false, 1, null);
+		for (int i = 0; i != 10; ++i) {
+			assertArrayEquals(expected, generate(DECLARATIONS, false, 4, null));
+		}
+	}
+
+	/**
+	 * Generate the WyAL file for a given source file in a fresh directory,
+	 * returning its contents.
+	 *
+	 * @param contents
+	 * @param slicing
+	 * @param threads
+	 * @param cache
+	 *            --- The cache directory, or null if none should be used.
+	 * @return
+	 * @throws IOException
+	 */
+	private byte[] generate(String contents, boolean slicing, int threads, File cache) throws IOException {
+		File dir = folder.newFolder();
+		File source = new File(dir, "test.whiley");
+		try (FileWriter out = new FileWriter(source)) {
+			out.write(contents);
+		}
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		Compile cmd = new Compile(new wyc.Activator.Registry(), Logger.NULL, output, output);
+		cmd.setWhileydir(dir);
+		cmd.setWyaldir(dir);
+		cmd.setVerificationConditions(true);
+		cmd.setSlicing(slicing);
+		cmd.setThreads(threads);
+		if (cache != null) {
+			cmd.setCacheDir(cache);
+		}
+		Compile.Result result = cmd.execute(source.getPath());
+		assertEquals(output.toString(), Compile.Result.SUCCESS, result);
+		return Files.readAllBytes(new File(dir, "test.wyal").toPath());
+	}
+}
@@ -0,0 +1,123 @@
+// Copyright (c) 2011, David J. Pearce (djp@ecs.vuw.ac.nz)
+// All rights reserved.
+//
+// This software may be modified and distributed under the terms
+// of the BSD license.  See the LICENSE file for details.
+
+package wyil.testing;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Map;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import wyc.commands.Compile;
+import wycc.util.Logger;
+import wyfs.lang.Content;
+import wyfs.lang.Path;
+import wyfs.util.DirectoryRoot;
+import wyfs.util.Trie;
+import wyil.io.WyilFileReader;
+import wyil.io.WyilFileWriter;
+import wyil.lang.WyilFile;
+import wyil.util.ModuleInterface;
+
+/**
+ * Checks that the dependency table of a WyIL file survives being written and
+ * read back, and that interface hashes change exactly when the interface of a
+ * module does.
+ */
+public class WyilFileTest {
+	private static final String LIB = "public function f(int x) -> (int r)\n" + "requires x >= 0\n"
+			+ "ensures r >= 0:\n" + "    return x\n\n" + "function g(int x) -> int:\n" + "    return x\n";
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testDependencyTable() throws IOException {
+		WyilFile module = compile("lib", LIB);
+		module.dependencies().put(Trie.fromString("a/b"), 0x0123456789ABCDEFL);
+		module.dependencies().put(Trie.fromString("c"), -1L);
+		module.dependencies().put(Trie.fromString("lib"), 0L);
+		byte[] bytes = write(module);
+		WyilFile copy = new WyilFileReader(new ByteArrayInputStream(bytes)).read();
+		assertEquals(module.dependencies(), copy.dependencies());
+		assertEquals(module.blocks().size(), copy.blocks().size());
+		Map<Path.ID, Long> table = new WyilFileReader(new ByteArrayInputStream(bytes)).readDependencies();
+		assertEquals(module.dependencies(), table);
+	}
+
+	@Test
+	public void testEmptyDependencyTable() throws IOException {
+		WyilFile module = compile("lib", LIB);
+		module.dependencies().clear();
+		byte[] bytes = write(module);
+		assertTrue(new WyilFileReader(new ByteArrayInputStream(bytes)).readDependencies().isEmpty());
+		assertTrue(new WyilFileReader(new ByteArrayInputStream(bytes)).read().dependencies().isEmpty());
+	}
+
+	@Test
+	public void testHashIsStable() throws IOException {
+		WyilFile module = compile("lib", LIB);
+		long hash = ModuleInterface.hash(module);
+		assertEquals(hash, ModuleInterface.hash(compile("lib", LIB)));
+		WyilFile copy = new WyilFileReader(new ByteArrayInputStream(write(module))).read();
+		assertEquals(hash, ModuleInterface.hash(copy));
+	}
+
+	@Test
+	public void testHashIgnoresBodies() throws IOException {
+		long hash = ModuleInterface.hash(compile("lib", LIB));
+		assertEquals(hash, ModuleInterface.hash(compile("lib", LIB.replace("return x\n\n", "return x + 0\n\n"))));
+		// Private functions are not part of the interface
+		assertEquals(hash, ModuleInterface.hash(compile("lib", LIB.replace("-> int:", "-> (int r):"))));
+	}
+
+	@Test
+	public void testHashCoversContracts() throws IOException {
+		long hash = ModuleInterface.hash(compile("lib", LIB));
+		assertNotEquals(hash, ModuleInterface.hash(compile("lib", LIB.replace("x >= 0", "x > 0"))));
+		assertNotEquals(hash, ModuleInterface.hash(compile("lib", LIB.replace("r >= 0", "r > 0"))));
+		assertNotEquals(hash, ModuleInterface.hash(compile("lib", LIB.replace("-> (int r)", "-> (int|null r)"))));
+		assertNotEquals(hash, ModuleInterface.hash(compile("lib", LIB + "\ntype nat is (int x) where x >= 0\n")));
+	}
+
+	/**
+	 * Compile a single source file in a fresh directory, and read back the
+	 * generated WyIL file.
+	 *
+	 * @param name
+	 * @param contents
+	 * @return
+	 * @throws IOException
+	 */
+	private WyilFile compile(String name, String contents) throws IOException {
+		File dir = folder.newFolder();
+		File source = new File(dir, name + ".whiley");
+		try (FileWriter out = new FileWriter(source)) {
+			out.write(contents);
+		}
+		Content.Registry registry = new wyc.Activator.Registry();
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		Compile cmd = new Compile(registry, Logger.NULL, output, output);
+		cmd.setWhileydir(dir);
+		Compile.Result result = cmd.execute(source.getPath());
+		assertEquals(output.toString(), Compile.Result.SUCCESS, result);
+		return new DirectoryRoot(dir, registry).get(Trie.fromString(name), WyilFile.ContentType).read();
+	}
+
+	private static byte[] write(WyilFile module) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		new WyilFileWriter(bytes).write(module);
+		return bytes.toByteArray();
+	}
+}